@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.ChunkColumns;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits large contents into chunks so that a single row never gets close to the size of a
+ * cursor window, and a save only has to write the chunks which changed. Chunks end at a line
+ * break when there is one, so an edit inside a chunk usually leaves the following chunks as
+ * they were.
+ */
+public class ContentChunks {
+    private static final String TAG = "ContentChunks";
+
+    /**
+     * Contents up to this length are kept in one piece
+     */
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    private static final int MAX_CHUNK_SIZE = 2 * CHUNK_SIZE;
+
+    private static final String[] PROJECTION = new String[] {
+            ChunkColumns.CHUNK_INDEX, ChunkColumns.CONTENT
+    };
+
+    private static final int CHUNK_INDEX_COLUMN = 0;
+
+    private static final int CHUNK_CONTENT_COLUMN = 1;
+
+    /**
+     * Subquery of the ids of the notes with a chunk beyond the first one matching the LIKE
+     * pattern given as its argument. The snippet of a note holds its first chunk only
+     *
+     * @param escape whether the pattern escapes its wildcards with a backslash
+     */
+    public static String selectNoteIdsLike(boolean escape) {
+        return "SELECT " + TABLE.DATA + "." + DataColumns.NOTE_ID + " FROM " + TABLE.DATA + ","
+                + TABLE.CHUNK + " WHERE " + TABLE.CHUNK + "." + ChunkColumns.DATA_ID + "="
+                + TABLE.DATA + "." + DataColumns.ID + " AND " + TABLE.CHUNK + "."
+                + ChunkColumns.CONTENT + " LIKE ?" + (escape ? " ESCAPE '\\'" : "");
+    }
+
+    public static List<String> split(String content) {
+        List<String> chunks = new ArrayList<String>();
+        if (content == null) {
+            content = "";
+        }
+        int length = content.length();
+        int start = 0;
+        while (length - start > CHUNK_SIZE) {
+            int end = content.indexOf('\n', start + CHUNK_SIZE - 1) + 1;
+            if (end <= 0 || end - start > MAX_CHUNK_SIZE) {
+                end = start + CHUNK_SIZE;
+                // never split a surrogate pair
+                if (Character.isHighSurrogate(content.charAt(end - 1))) {
+                    end--;
+                }
+            }
+            chunks.add(content.substring(start, end));
+            start = end;
+        }
+        chunks.add(content.substring(start));
+        return chunks;
+    }
+
+    public static String join(List<String> chunks) {
+        if (chunks.size() == 1) {
+            return chunks.get(0);
+        }
+        int length = 0;
+        for (String chunk : chunks) {
+            length += chunk.length();
+        }
+        StringBuilder sb = new StringBuilder(length);
+        for (String chunk : chunks) {
+            sb.append(chunk);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read all chunks of a data row
+     *
+     * @param head the {@link DataColumns#CONTENT} of the row
+     * @param chunkCount the {@link DataColumns#CHUNK_COUNT} of the row
+     */
+    public static List<String> read(ContentResolver resolver, long dataId, String head,
+            int chunkCount) {
+        List<String> chunks = new ArrayList<String>(Math.max(chunkCount, 1));
+        chunks.add(head != null ? head : "");
+        if (chunkCount <= 1) {
+            return chunks;
+        }
+
+        Cursor c = resolver.query(Notes.CONTENT_CHUNK_URI, PROJECTION, ChunkColumns.DATA_ID
+                + "=? AND " + ChunkColumns.CHUNK_INDEX + "<?", new String[] {
+                String.valueOf(dataId), String.valueOf(chunkCount)
+        }, ChunkColumns.CHUNK_INDEX + " ASC");
+        if (c == null) {
+            Log.e(TAG, "Failed to read chunks of data " + dataId);
+            return chunks;
+        }
+        try {
+            while (c.moveToNext()) {
+                if (c.getInt(CHUNK_INDEX_COLUMN) != chunks.size()) {
+                    Log.w(TAG, "Chunk " + chunks.size() + " of data " + dataId + " is missing");
+                }
+                chunks.add(c.getString(CHUNK_CONTENT_COLUMN));
+            }
+        } finally {
+            c.close();
+        }
+        return chunks;
+    }
+
+    public static String readContent(ContentResolver resolver, long dataId, String head,
+            int chunkCount) {
+        return join(read(resolver, dataId, head, chunkCount));
+    }
+
+    /**
+     * Turn the {@link DataColumns#CONTENT} of {@code values} into chunks and add the writes of
+     * the chunks which differ from {@code written}. The data row must be written in the same
+     * batch, before the added operations.
+     *
+     * @param values values of the data row, the content is replaced with its first chunk or
+     *            dropped when the first chunk has not changed, the chunk count is only put
+     *            when it or the first chunk changes
+     * @param written chunks which are in the database now, null if unknown
+     * @param dataId id of the data row, or 0 to take it from operation {@code dataBackReference}
+     * @return the chunks which will be in the database once the batch is applied, null if
+     *         {@code values} has no content
+     */
+    public static List<String> prepareWrite(ContentValues values, List<String> written,
+            long dataId, int dataBackReference, ArrayList<ContentProviderOperation> operations) {
+        if (!values.containsKey(DataColumns.CONTENT)) {
+            return null;
+        }
+        List<String> chunks = split(values.getAsString(DataColumns.CONTENT));
+        boolean wasChunked = written != null && written.size() > 1;
+        if (chunks.size() == 1 && !wasChunked) {
+            // small content, written in one piece as before
+            return chunks;
+        }
+
+        int chunkCount = chunks.size() > 1 ? chunks.size() : 0;
+        if (written != null && written.get(0).equals(chunks.get(0))) {
+            values.remove(DataColumns.CONTENT);
+            if (chunkCount != (wasChunked ? written.size() : 0)) {
+                values.put(DataColumns.CHUNK_COUNT, chunkCount);
+            }
+        } else {
+            // the provider splits a content sent without its chunk count itself
+            values.put(DataColumns.CONTENT, chunks.get(0));
+            values.put(DataColumns.CHUNK_COUNT, chunkCount);
+        }
+
+        for (int i = 1; i < chunks.size(); i++) {
+            if (written != null && i < written.size() && written.get(i).equals(chunks.get(i))) {
+                continue;
+            }
+            ContentProviderOperation.Builder builder = ContentProviderOperation
+                    .newInsert(Notes.CONTENT_CHUNK_URI)
+                    .withValue(ChunkColumns.CHUNK_INDEX, i)
+                    .withValue(ChunkColumns.CONTENT, chunks.get(i));
+            if (dataId > 0) {
+                builder.withValue(ChunkColumns.DATA_ID, dataId);
+            } else {
+                builder.withValueBackReference(ChunkColumns.DATA_ID, dataBackReference);
+            }
+            operations.add(builder.build());
+        }
+        return chunks;
+    }
+}
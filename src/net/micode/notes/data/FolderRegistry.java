@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.tool.TaskExecutor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Folders of the process kept in memory, so the folder menus need not query the database.
+ * The folders are read in the background as soon as the registry is made, then read again
+ * whenever the provider tells that folders may have changed, see
+ * {@link Notes#CONTENT_FOLDER_URI}; edits of notes inside folders do not reload them.
+ * The app reloads them at once after writing a folder, see {@link #reloadNow()}.
+ */
+public class FolderRegistry {
+    private static final String TAG = "FolderRegistry";
+
+    private static final String[] PROJECTION = new String[] {
+            NoteColumns.ID,
+            NoteColumns.SNIPPET,
+            NoteColumns.NOTES_COUNT,
+            NoteColumns.TYPE,
+            NoteColumns.PARENT_ID
+    };
+
+    private static final int ID_COLUMN = 0;
+    private static final int NAME_COLUMN = 1;
+    private static final int NOTES_COUNT_COLUMN = 2;
+    private static final int TYPE_COLUMN = 3;
+    private static final int PARENT_ID_COLUMN = 4;
+
+    private static FolderRegistry sInstance;
+
+    /**
+     * A folder as it was when the folders were last read
+     */
+    public static class Folder {
+        public final long id;
+        public final String name;
+        public final int notesCount;
+        public final int type;
+        public final long parentId;
+
+        Folder(long id, String name, int notesCount, int type, long parentId) {
+            this.id = id;
+            this.name = name;
+            this.notesCount = notesCount;
+            this.type = type;
+            this.parentId = parentId;
+        }
+
+        /**
+         * Whether it is a folder of the user which is not in the trash
+         */
+        public boolean isVisibleUserFolder() {
+            return type == Notes.TYPE_FOLDER && parentId != Notes.ID_TRASH_FOLER;
+        }
+    }
+
+    private final Context mContext;
+
+    private final AtomicBoolean mReloadPending;
+
+    private final Future<?> mFirstLoad;
+
+    // folders by id, and the same folders most recently modified first; replaced as a whole
+    private volatile HashMap<Long, Folder> mFolders;
+
+    private volatile List<Folder> mOrdered;
+
+    private FolderRegistry(Context context) {
+        mContext = context.getApplicationContext();
+        mReloadPending = new AtomicBoolean();
+        mContext.getContentResolver().registerContentObserver(Notes.CONTENT_FOLDER_URI, false,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        scheduleReload();
+                    }
+                });
+        mFirstLoad = TaskExecutor.submit(TaskExecutor.Lane.READ, "load folders",
+                new Runnable() {
+                    public void run() {
+                        reload();
+                    }
+                });
+    }
+
+    /**
+     * The first call starts reading the folders in the background, call it early so they
+     * are there when a menu needs them
+     */
+    public static synchronized FolderRegistry getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new FolderRegistry(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the folder, or null if there is none with {@code id}
+     */
+    public Folder get(long id) {
+        return folders().get(id);
+    }
+
+    /**
+     * @return number of folders of the user, not counting those in the trash
+     */
+    public int getUserFolderCount() {
+        int count = 0;
+        for (Folder folder : ordered()) {
+            if (folder.isVisibleUserFolder()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return whether a folder of the user outside the trash is named {@code name}
+     */
+    public boolean hasVisibleFolder(String name) {
+        for (Folder folder : ordered()) {
+            if (folder.isVisibleUserFolder() && folder.name != null
+                    && folder.name.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the folders at once after the app made or renamed one itself, so that the next
+     * check of a name sees it without waiting for the reload in the background
+     */
+    public void reloadNow() {
+        reload();
+    }
+
+    /**
+     * @return the folders notes of {@code currentFolderId} can be moved to, most recently
+     *         modified first, with the root folder if {@code includeRoot}
+     */
+    public List<Folder> getDestinationFolders(long currentFolderId, boolean includeRoot) {
+        ArrayList<Folder> folders = new ArrayList<Folder>();
+        for (Folder folder : ordered()) {
+            if ((folder.isVisibleUserFolder() && folder.id != currentFolderId)
+                    || (includeRoot && folder.id == Notes.ID_ROOT_FOLDER)) {
+                folders.add(folder);
+            }
+        }
+        return folders;
+    }
+
+    private HashMap<Long, Folder> folders() {
+        HashMap<Long, Folder> folders = mFolders;
+        if (folders == null) {
+            // used before the first load is done, wait for it rather than read twice
+            try {
+                mFirstLoad.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Load folders failed: " + e.toString());
+            }
+            if (mFolders == null) {
+                reload();
+            }
+            folders = mFolders;
+        }
+        return folders;
+    }
+
+    private List<Folder> ordered() {
+        folders();
+        return mOrdered;
+    }
+
+    private void scheduleReload() {
+        if (!mReloadPending.compareAndSet(false, true)) {
+            return;
+        }
+        TaskExecutor.submit(TaskExecutor.Lane.READ, "reload folders", new Runnable() {
+            public void run() {
+                // changes from now on need another reload
+                mReloadPending.set(false);
+                reload();
+            }
+        });
+    }
+
+    private synchronized void reload() {
+        Cursor c = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI, PROJECTION,
+                NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE, null,
+                NoteColumns.MODIFIED_DATE + " DESC");
+        if (c == null) {
+            Log.e(TAG, "Query folders failed");
+            if (mFolders == null) {
+                mOrdered = Collections.emptyList();
+                mFolders = new HashMap<Long, Folder>();
+            }
+            return;
+        }
+        HashMap<Long, Folder> folders = new HashMap<Long, Folder>();
+        ArrayList<Folder> ordered = new ArrayList<Folder>(c.getCount());
+        try {
+            while (c.moveToNext()) {
+                Folder folder = new Folder(c.getLong(ID_COLUMN), c.getString(NAME_COLUMN),
+                        c.getInt(NOTES_COUNT_COLUMN), c.getInt(TYPE_COLUMN),
+                        c.getLong(PARENT_ID_COLUMN));
+                folders.put(folder.id, folder);
+                ordered.add(folder);
+            }
+        } finally {
+            c.close();
+        }
+        // the list first, readers go through mFolders
+        mOrdered = Collections.unmodifiableList(ordered);
+        mFolders = folders;
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.RevisionColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.tool.TaskExecutor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Revision history of the note texts. A revision is either the full text or a diff against the
+ * previous one, a full text is stored at least every {@link #SNAPSHOT_INTERVAL} revisions so
+ * rebuilding any revision applies a bounded number of diffs. Only the last
+ * {@link #MAX_REVISIONS} revisions of a note are kept, older ones are compacted away in the
+ * background.
+ */
+public class NoteRevisions {
+    private static final String TAG = "NoteRevisions";
+
+    public static final int SNAPSHOT_INTERVAL = 16;
+
+    public static final int MAX_REVISIONS = 50;
+
+    /**
+     * Compaction starts once a note has this many revisions over the limit
+     */
+    private static final int COMPACT_SLACK = 10;
+
+    /**
+     * Texts longer than this are not recorded, a full copy would not fit in a cursor window
+     */
+    public static final int MAX_CONTENT_LENGTH = 256 * 1024;
+
+    private static final Executor sCompactor = TaskExecutor.newSerialExecutor(
+            TaskExecutor.Lane.BACKGROUND, "compact revisions");
+
+    private static final String[] PROJECTION = new String[] {
+            RevisionColumns.ID, RevisionColumns.NOTE_ID, RevisionColumns.BASE_ID,
+            RevisionColumns.DEPTH, RevisionColumns.DIFF_PREFIX, RevisionColumns.DIFF_SUFFIX,
+            RevisionColumns.CONTENT
+    };
+
+    private static final String[] LIST_PROJECTION = new String[] {
+            RevisionColumns.ID, RevisionColumns.NOTE_ID, RevisionColumns.BASE_ID,
+            RevisionColumns.DEPTH, RevisionColumns.REASON, RevisionColumns.CREATED_DATE
+    };
+
+    private static final int ID_COLUMN = 0;
+
+    private static final int NOTE_ID_COLUMN = 1;
+
+    private static final int BASE_ID_COLUMN = 2;
+
+    private static final int DEPTH_COLUMN = 3;
+
+    private static final int DIFF_PREFIX_COLUMN = 4;
+
+    private static final int DIFF_SUFFIX_COLUMN = 5;
+
+    private static final int CONTENT_COLUMN = 6;
+
+    private static final int LIST_REASON_COLUMN = 4;
+
+    private static final int LIST_CREATED_DATE_COLUMN = 5;
+
+    public static class Revision {
+        public final long id;
+
+        public final long noteId;
+
+        public final int reason;
+
+        public final long createdDate;
+
+        Revision(long id, long noteId, int reason, long createdDate) {
+            this.id = id;
+            this.noteId = noteId;
+            this.reason = reason;
+            this.createdDate = createdDate;
+        }
+    }
+
+    private static class Row {
+        long id;
+
+        long baseId;
+
+        int depth;
+
+        int prefix;
+
+        int suffix;
+
+        String content;
+
+        Row(Cursor c) {
+            id = c.getLong(ID_COLUMN);
+            baseId = c.getLong(BASE_ID_COLUMN);
+            depth = c.getInt(DEPTH_COLUMN);
+            prefix = c.getInt(DIFF_PREFIX_COLUMN);
+            suffix = c.getInt(DIFF_SUFFIX_COLUMN);
+            content = c.getString(CONTENT_COLUMN);
+        }
+    }
+
+    private final ContentResolver mContentResolver;
+
+    // the latest revision recorded through this instance and the number of revisions of its
+    // note, saves the queries and the rebuild on the next record of the same note. Revisions
+    // recorded elsewhere meanwhile are not counted, the compaction counts them all again
+    private long mLastNoteId;
+
+    private long mLastId;
+
+    private int mLastDepth;
+
+    private String mLastContent;
+
+    private int mLastCount;
+
+    public NoteRevisions(ContentResolver resolver) {
+        mContentResolver = resolver;
+    }
+
+    /**
+     * Record {@code content} as the newest revision of the note if it differs from the
+     * previous one
+     *
+     * @return id of the newest revision, 0 if nothing could be recorded
+     */
+    public synchronized long record(long noteId, String content, int reason) {
+        if (noteId <= 0 || content == null || content.length() > MAX_CONTENT_LENGTH) {
+            return 0;
+        }
+
+        long latestId = 0;
+        int latestDepth = 0;
+        String latest = null;
+        int count;
+        if (mLastNoteId == noteId) {
+            latestId = mLastId;
+            latestDepth = mLastDepth;
+            latest = mLastContent;
+            count = mLastCount;
+        } else {
+            Cursor c = mContentResolver.query(Notes.CONTENT_REVISION_URI.buildUpon()
+                    .appendQueryParameter(Notes.PARAM_LIMIT, "1").build(), LIST_PROJECTION,
+                    RevisionColumns.NOTE_ID + "=?", new String[] {
+                        String.valueOf(noteId)
+                    }, RevisionColumns.ID + " DESC");
+            if (c != null) {
+                try {
+                    if (c.moveToFirst()) {
+                        latestId = c.getLong(ID_COLUMN);
+                        latestDepth = c.getInt(DEPTH_COLUMN);
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            if (latestId > 0) {
+                latest = getContent(latestId);
+            }
+            count = latestId > 0 ? countRevisions(noteId) : 0;
+        }
+        if (latest != null && latest.equals(content)) {
+            return latestId;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(RevisionColumns.NOTE_ID, noteId);
+        values.put(RevisionColumns.REASON, reason);
+        values.put(RevisionColumns.CREATED_DATE, System.currentTimeMillis());
+        int depth = 0;
+        if (latest != null && latestDepth + 1 < SNAPSHOT_INTERVAL) {
+            int prefix = commonPrefix(latest, content);
+            int suffix = commonSuffix(latest, content, prefix);
+            String inserted = content.substring(prefix, content.length() - suffix);
+            // a diff which carries most of the text is no better than the text itself
+            if (inserted.length() <= content.length() / 2) {
+                depth = latestDepth + 1;
+                values.put(RevisionColumns.BASE_ID, latestId);
+                values.put(RevisionColumns.DIFF_PREFIX, prefix);
+                values.put(RevisionColumns.DIFF_SUFFIX, suffix);
+                values.put(RevisionColumns.CONTENT, inserted);
+            }
+        }
+        if (depth == 0) {
+            values.put(RevisionColumns.CONTENT, content);
+        }
+        values.put(RevisionColumns.DEPTH, depth);
+
+        Uri uri = mContentResolver.insert(Notes.CONTENT_REVISION_URI, values);
+        long id = uri != null ? ContentUris.parseId(uri) : 0;
+        if (id <= 0) {
+            Log.e(TAG, "Failed to record revision of note " + noteId);
+            mLastNoteId = 0;
+            return 0;
+        }
+        mLastNoteId = noteId;
+        mLastId = id;
+        mLastDepth = depth;
+        mLastContent = content;
+        mLastCount = count + 1;
+
+        if (mLastCount > MAX_REVISIONS + COMPACT_SLACK) {
+            scheduleCompaction(noteId);
+            // what the compaction leaves, it is not counted again before the next one
+            mLastCount = MAX_REVISIONS;
+        }
+        return id;
+    }
+
+    /**
+     * Rebuild the text of a revision, reads at most {@link #SNAPSHOT_INTERVAL} rows
+     *
+     * @return the text, or null if the revision does not exist
+     */
+    public String getContent(long revisionId) {
+        Row head = queryRow(revisionId);
+        if (head == null) {
+            return null;
+        }
+        if (head.baseId == 0) {
+            return head.content;
+        }
+
+        // the chain is usually the rows right before the revision, read them in one go
+        HashMap<Long, Row> rows = new HashMap<Long, Row>();
+        Cursor c = mContentResolver.query(Notes.CONTENT_REVISION_URI.buildUpon()
+                .appendQueryParameter(Notes.PARAM_LIMIT, String.valueOf(head.depth)).build(),
+                PROJECTION, RevisionColumns.NOTE_ID + "=(SELECT " + RevisionColumns.NOTE_ID
+                        + " FROM " + TABLE.REVISION + " WHERE " + RevisionColumns.ID + "=?) AND "
+                        + RevisionColumns.ID + "<?", new String[] {
+                        String.valueOf(revisionId), String.valueOf(revisionId)
+                }, RevisionColumns.ID + " DESC");
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    Row row = new Row(c);
+                    rows.put(row.id, row);
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        ArrayList<Row> diffs = new ArrayList<Row>();
+        Row row = head;
+        while (row != null && row.baseId != 0) {
+            diffs.add(row);
+            if (diffs.size() > SNAPSHOT_INTERVAL * 2) {
+                Log.e(TAG, "Revision chain of " + revisionId + " is too long");
+                return null;
+            }
+            Row base = rows.get(row.baseId);
+            row = base != null ? base : queryRow(row.baseId);
+        }
+        if (row == null) {
+            Log.e(TAG, "Base of revision " + revisionId + " is missing");
+            return null;
+        }
+
+        String text = row.content;
+        for (int i = diffs.size() - 1; i >= 0; i--) {
+            text = apply(text, diffs.get(i));
+        }
+        return text;
+    }
+
+    /**
+     * @return the revisions of the note, newest first
+     */
+    public List<Revision> list(long noteId) {
+        List<Revision> revisions = new ArrayList<Revision>();
+        Cursor c = mContentResolver.query(Notes.CONTENT_REVISION_URI, LIST_PROJECTION,
+                RevisionColumns.NOTE_ID + "=?", new String[] {
+                    String.valueOf(noteId)
+                }, RevisionColumns.ID + " DESC");
+        if (c == null) {
+            return revisions;
+        }
+        try {
+            while (c.moveToNext()) {
+                revisions.add(new Revision(c.getLong(ID_COLUMN), c.getLong(NOTE_ID_COLUMN),
+                        c.getInt(LIST_REASON_COLUMN), c.getLong(LIST_CREATED_DATE_COLUMN)));
+            }
+        } finally {
+            c.close();
+        }
+        return revisions;
+    }
+
+    /**
+     * Drop the revisions beyond {@link #MAX_REVISIONS}. Kept revisions whose chain goes
+     * through a dropped one are turned into full texts first, all in one transaction
+     */
+    public synchronized void compact(long noteId) {
+        List<Revision> revisions = list(noteId);
+        if (revisions.size() <= MAX_REVISIONS) {
+            return;
+        }
+        long oldestKept = revisions.get(MAX_REVISIONS - 1).id;
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        Cursor c = mContentResolver.query(Notes.CONTENT_REVISION_URI, new String[] {
+                RevisionColumns.ID
+        }, RevisionColumns.NOTE_ID + "=? AND " + RevisionColumns.ID + ">=? AND "
+                + RevisionColumns.BASE_ID + "<>0 AND " + RevisionColumns.BASE_ID + "<?",
+                new String[] {
+                        String.valueOf(noteId), String.valueOf(oldestKept),
+                        String.valueOf(oldestKept)
+                }, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                String content = getContent(id);
+                if (content == null) {
+                    // rather keep the broken chain than lose the revision for good
+                    Log.e(TAG, "Cannot rebuild revision " + id + ", skip compaction");
+                    return;
+                }
+                operations.add(ContentProviderOperation.newUpdate(Notes.CONTENT_REVISION_URI)
+                        .withSelection(RevisionColumns.ID + "=?", new String[] {
+                            String.valueOf(id)
+                        })
+                        .withValue(RevisionColumns.BASE_ID, 0)
+                        .withValue(RevisionColumns.DEPTH, 0)
+                        .withValue(RevisionColumns.DIFF_PREFIX, 0)
+                        .withValue(RevisionColumns.DIFF_SUFFIX, 0)
+                        .withValue(RevisionColumns.CONTENT, content)
+                        .build());
+            }
+        } finally {
+            c.close();
+        }
+        operations.add(ContentProviderOperation.newDelete(Notes.CONTENT_REVISION_URI)
+                .withSelection(RevisionColumns.NOTE_ID + "=? AND " + RevisionColumns.ID + "<?",
+                        new String[] {
+                                String.valueOf(noteId), String.valueOf(oldestKept)
+                        })
+                .build());
+
+        try {
+            mContentResolver.applyBatch(Notes.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+        if (mLastNoteId == noteId && mLastId < oldestKept) {
+            mLastNoteId = 0;
+        }
+    }
+
+    private void scheduleCompaction(final long noteId) {
+        sCompactor.execute(new Runnable() {
+            public void run() {
+                compact(noteId);
+            }
+        });
+    }
+
+    private int countRevisions(long noteId) {
+        Cursor c = mContentResolver.query(Notes.CONTENT_REVISION_URI, new String[] {
+                "COUNT(*)"
+        }, RevisionColumns.NOTE_ID + "=?", new String[] {
+                String.valueOf(noteId)
+        }, null);
+        if (c == null) {
+            return 0;
+        }
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private Row queryRow(long revisionId) {
+        Cursor c = mContentResolver.query(Notes.CONTENT_REVISION_URI, PROJECTION,
+                RevisionColumns.ID + "=?", new String[] {
+                    String.valueOf(revisionId)
+                }, null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            return c.moveToFirst() ? new Row(c) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String apply(String base, Row diff) {
+        StringBuilder sb = new StringBuilder(diff.prefix + diff.content.length() + diff.suffix);
+        sb.append(base, 0, diff.prefix);
+        sb.append(diff.content);
+        sb.append(base, base.length() - diff.suffix, base.length());
+        return sb.toString();
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        // keep surrogate pairs together
+        if (i > 0 && i < max && Character.isHighSurrogate(a.charAt(i - 1))) {
+            i--;
+        }
+        return i;
+    }
+
+    private static int commonSuffix(String a, String b, int prefix) {
+        int max = Math.min(a.length(), b.length()) - prefix;
+        int i = 0;
+        while (i < max && a.charAt(a.length() - 1 - i) == b.charAt(b.length() - 1 - i)) {
+            i++;
+        }
+        if (i > 0 && i < max && Character.isLowSurrogate(a.charAt(a.length() - i))) {
+            i--;
+        }
+        return i;
+    }
+}
@@ -46,6 +46,20 @@ public class Notes {
     public static final int TYPE_WIDGET_2X            = 0;
     public static final int TYPE_WIDGET_4X            = 1;
 
+    /**
+     * Pending remote operations kept in the outbox, see {@link OutboxColumns#OPERATION}
+     */
+    public static final int OUTBOX_OP_CREATE = 1;
+    public static final int OUTBOX_OP_UPDATE = 2;
+    public static final int OUTBOX_OP_MOVE   = 3;
+    public static final int OUTBOX_OP_TRASH  = 4;
+
+    /**
+     * Why a revision was recorded, see {@link RevisionColumns#REASON}
+     */
+    public static final int REVISION_REASON_SAVE     = 0;
+    public static final int REVISION_REASON_CONFLICT = 1;
+
     public static class DataConstants {
         public static final String NOTE = TextNote.CONTENT_ITEM_TYPE;
         public static final String CALL_NOTE = CallNote.CONTENT_ITEM_TYPE;
@@ -56,11 +70,101 @@ public class Notes {
      */
     public static final Uri CONTENT_NOTE_URI = Uri.parse("content://" + AUTHORITY + "/note");
 
+    /**
+     * Uri notified when the folders may have changed: one was added, renamed, moved or
+     * deleted, or notes went into or out of one. It is only notified, never queried
+     */
+    public static final Uri CONTENT_FOLDER_URI = Uri.parse("content://" + AUTHORITY + "/folder");
+
     /**
      * Uri to query data
      */
     public static final Uri CONTENT_DATA_URI = Uri.parse("content://" + AUTHORITY + "/data");
 
+    /**
+     * Uri to query and remove pending remote operations
+     */
+    public static final Uri CONTENT_OUTBOX_URI = Uri.parse("content://" + AUTHORITY + "/outbox");
+
+    /**
+     * Uri to query and write the chunks of large contents, see {@link DataColumns#CHUNK_COUNT}
+     */
+    public static final Uri CONTENT_CHUNK_URI = Uri.parse("content://" + AUTHORITY + "/chunk");
+
+    /**
+     * Uri to query and write the revision history of notes
+     */
+    public static final Uri CONTENT_REVISION_URI = Uri.parse("content://" + AUTHORITY + "/revision");
+
+    /**
+     * Query parameter to limit the number of returned rows
+     */
+    public static final String PARAM_LIMIT = "limit";
+
+    /**
+     * Query parameter to skip the given number of rows, only together with {@link #PARAM_LIMIT}
+     */
+    public static final String PARAM_OFFSET = "offset";
+
+    /**
+     * Query parameter asking the provider to copy all the matching notes inside one
+     * transaction, so that the rows are not mixed with writes made while they are read.
+     * The copy is held in memory, keep the projection and the selection small
+     */
+    public static final String PARAM_SNAPSHOT = "snapshot";
+
+    /**
+     * Extras of a notes list cursor telling the number of notes and folders in it
+     */
+    public static final String EXTRA_NOTES_COUNT = "notes_count";
+
+    public static final String EXTRA_FOLDERS_COUNT = "folders_count";
+
+    /**
+     * Provider method moving the notes chosen by the extras into the folder
+     * {@link #EXTRA_TARGET_FOLDER_ID}. The notes are chosen by {@link #EXTRA_SELECTION} with
+     * {@link #EXTRA_SELECTION_ARGS}, folders take their notes along. The result holds the
+     * widgets showing the notes or notes inside the chosen folders, as
+     * {@link #EXTRA_WIDGET_IDS} and {@link #EXTRA_WIDGET_TYPES}, and the number of moved rows
+     * as {@link #EXTRA_COUNT}.
+     * <p>
+     * With {@link #EXTRA_LIMIT} only that many of the chosen rows are changed, those with the
+     * smallest ids above {@link #EXTRA_AFTER_ID}. The largest id of them comes back as
+     * {@link #EXTRA_LAST_ID} to start the next chunk from. A folder still takes its notes
+     * along, their chunks should come first to keep the folder's own chunk small
+     */
+    public static final String METHOD_MOVE_NOTES = "move_notes";
+
+    /**
+     * Provider method deleting the notes chosen by the extras, see {@link #METHOD_MOVE_NOTES}
+     */
+    public static final String METHOD_DELETE_NOTES = "delete_notes";
+
+    /**
+     * Provider method clearing the gtask id and sync id of all notes, when the sync account
+     * changes. The versions of the notes are kept, the number of cleared notes is returned
+     * as {@link #EXTRA_COUNT}
+     */
+    public static final String METHOD_RESET_SYNC_INFO = "reset_sync_info";
+
+    public static final String EXTRA_SELECTION = "selection";
+
+    public static final String EXTRA_SELECTION_ARGS = "selection_args";
+
+    public static final String EXTRA_TARGET_FOLDER_ID = "target_folder_id";
+
+    public static final String EXTRA_WIDGET_IDS = "widget_ids";
+
+    public static final String EXTRA_WIDGET_TYPES = "widget_types";
+
+    public static final String EXTRA_COUNT = "count";
+
+    public static final String EXTRA_LIMIT = "limit";
+
+    public static final String EXTRA_AFTER_ID = "after_id";
+
+    public static final String EXTRA_LAST_ID = "last_id";
+
     public interface NoteColumns {
         /**
          * The unique ID for a row
@@ -165,6 +269,14 @@ public class Notes {
          * <P> Type : INTEGER (long) </P>
          */
         public static final String VERSION = "version";
+
+        /**
+         * Raised by the database whenever the text data row of the note, which also sets
+         * {@link #SNIPPET}, is written. Such writes leave {@link #VERSION} alone, this tells
+         * a reader that the text changed without reading it
+         * <P> Type : INTEGER (long) </P>
+         */
+        public static final String CONTENT_VERSION = "content_version";
     }
 
     public interface DataColumns {
@@ -239,6 +351,124 @@ public class Notes {
          * <P> Type: TEXT </P>
          */
         public static final String DATA5 = "data5";
+
+        /**
+         * Number of chunks the content is split into. 0 means {@link #CONTENT} holds the whole
+         * content, otherwise it holds the first chunk and the others are rows of
+         * {@link Notes#CONTENT_CHUNK_URI}. Writing {@link #CONTENT} without this column resets it to 0
+         * <P> Type: INTEGER </P>
+         */
+        public static final String CHUNK_COUNT = "chunk_count";
+    }
+
+    public interface RevisionColumns {
+        /**
+         * The unique ID for a row, grows with every recorded revision
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ID = "_id";
+
+        /**
+         * The note this revision belongs to
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String NOTE_ID = "note_id";
+
+        /**
+         * The revision the diff applies to, 0 if {@link #CONTENT} is the full text
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String BASE_ID = "base_id";
+
+        /**
+         * Number of diffs to apply on the nearest full text to get this revision
+         * <P> Type: INTEGER </P>
+         */
+        public static final String DEPTH = "depth";
+
+        /**
+         * Length of the start of the base text kept by the diff
+         * <P> Type: INTEGER </P>
+         */
+        public static final String DIFF_PREFIX = "diff_prefix";
+
+        /**
+         * Length of the end of the base text kept by the diff
+         * <P> Type: INTEGER </P>
+         */
+        public static final String DIFF_SUFFIX = "diff_suffix";
+
+        /**
+         * The full text, or the text the diff puts between prefix and suffix
+         * <P> Type: TEXT </P>
+         */
+        public static final String CONTENT = "content";
+
+        /**
+         * {@link Notes#REVISION_REASON_SAVE} or {@link Notes#REVISION_REASON_CONFLICT}
+         * <P> Type: INTEGER </P>
+         */
+        public static final String REASON = "reason";
+
+        /**
+         * Time the revision was recorded
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String CREATED_DATE = "created_date";
+    }
+
+    public interface ChunkColumns {
+        /**
+         * The unique ID for a row
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ID = "_id";
+
+        /**
+         * The data row this chunk belongs to
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String DATA_ID = "data_id";
+
+        /**
+         * Position of the chunk in the content, starts from 1 as chunk 0 is kept in the data row.
+         * Writing an existing index replaces the chunk
+         * <P> Type: INTEGER </P>
+         */
+        public static final String CHUNK_INDEX = "chunk_index";
+
+        /**
+         * Text of the chunk
+         * <P> Type: TEXT </P>
+         */
+        public static final String CONTENT = "content";
+    }
+
+    public interface OutboxColumns {
+        /**
+         * The unique ID for a row, grows with every queued operation
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ID = "_id";
+
+        /**
+         * The note or folder the operation applies to
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String NOTE_ID = "note_id";
+
+        /**
+         * One of {@link Notes#OUTBOX_OP_CREATE}, {@link Notes#OUTBOX_OP_UPDATE},
+         * {@link Notes#OUTBOX_OP_MOVE} or {@link Notes#OUTBOX_OP_TRASH}
+         * <P> Type: INTEGER </P>
+         */
+        public static final String OPERATION = "operation";
+
+        /**
+         * Time the operation was queued
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String CREATED_DATE = "created_date";
     }
 
     public static final class TextNote implements DataColumns {
@@ -22,20 +22,29 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
+import net.micode.notes.data.Notes.ChunkColumns;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.OutboxColumns;
+import net.micode.notes.data.Notes.RevisionColumns;
 
 
 public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String DB_NAME = "note.db";
 
-    private static final int DB_VERSION = 4;
+    private static final int DB_VERSION = 8;
 
     public interface TABLE {
         public static final String NOTE = "note";
 
         public static final String DATA = "data";
+
+        public static final String OUTBOX = "outbox";
+
+        public static final String CHUNK = "content_chunk";
+
+        public static final String REVISION = "revision";
     }
 
     private static final String TAG = "NotesDatabaseHelper";
@@ -60,7 +69,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             NoteColumns.LOCAL_MODIFIED + " INTEGER NOT NULL DEFAULT 0," +
             NoteColumns.ORIGIN_PARENT_ID + " INTEGER NOT NULL DEFAULT 0," +
             NoteColumns.GTASK_ID + " TEXT NOT NULL DEFAULT ''," +
-            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0" +
+            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0," +
+            NoteColumns.CONTENT_VERSION + " INTEGER NOT NULL DEFAULT 0" +
         ")";
 
     private static final String CREATE_DATA_TABLE_SQL =
@@ -75,7 +85,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             DataColumns.DATA2 + " INTEGER," +
             DataColumns.DATA3 + " TEXT NOT NULL DEFAULT ''," +
             DataColumns.DATA4 + " TEXT NOT NULL DEFAULT ''," +
-            DataColumns.DATA5 + " TEXT NOT NULL DEFAULT ''" +
+            DataColumns.DATA5 + " TEXT NOT NULL DEFAULT ''," +
+            DataColumns.CHUNK_COUNT + " INTEGER NOT NULL DEFAULT 0" +
         ")";
 
     private static final String CREATE_DATA_NOTE_ID_INDEX_SQL =
@@ -141,7 +152,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
         " BEGIN" +
         "  UPDATE " + TABLE.NOTE +
-        "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT +
+        "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT + "," +
+        "    " + NoteColumns.CONTENT_VERSION + "=" + NoteColumns.CONTENT_VERSION + "+1" +
         "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
         " END";
 
@@ -154,7 +166,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
         " BEGIN" +
         "  UPDATE " + TABLE.NOTE +
-        "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT +
+        "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT + "," +
+        "    " + NoteColumns.CONTENT_VERSION + "=" + NoteColumns.CONTENT_VERSION + "+1" +
         "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
         " END";
 
@@ -167,7 +180,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
         " BEGIN" +
         "  UPDATE " + TABLE.NOTE +
-        "   SET " + NoteColumns.SNIPPET + "=''" +
+        "   SET " + NoteColumns.SNIPPET + "=''," +
+        "    " + NoteColumns.CONTENT_VERSION + "=" + NoteColumns.CONTENT_VERSION + "+1" +
         "  WHERE " + NoteColumns.ID + "=old." + DataColumns.NOTE_ID + ";" +
         " END";
 
@@ -206,6 +220,138 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "  WHERE " + NoteColumns.PARENT_ID + "=old." + NoteColumns.ID + ";" +
         " END";
 
+    /**
+     * A note keeps at most one row per kind of operation, queueing it again only moves
+     * it to the end of the outbox
+     */
+    private static final String CREATE_OUTBOX_TABLE_SQL =
+        "CREATE TABLE " + TABLE.OUTBOX + "(" +
+            OutboxColumns.ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+            OutboxColumns.NOTE_ID + " INTEGER NOT NULL," +
+            OutboxColumns.OPERATION + " INTEGER NOT NULL," +
+            OutboxColumns.CREATED_DATE + " INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000)," +
+            "UNIQUE(" + OutboxColumns.NOTE_ID + "," + OutboxColumns.OPERATION + ") ON CONFLICT REPLACE" +
+        ")";
+
+    /**
+     * Queue the creation of a note or folder made locally
+     */
+    private static final String OUTBOX_QUEUE_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER outbox_queue_on_insert " +
+        " AFTER INSERT ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM +
+        " AND new." + NoteColumns.LOCAL_MODIFIED + "=1" +
+        " BEGIN" +
+        "  INSERT INTO " + TABLE.OUTBOX + "(" + OutboxColumns.NOTE_ID + "," + OutboxColumns.OPERATION + ")" +
+        "   VALUES(new." + NoteColumns.ID + "," + Notes.OUTBOX_OP_CREATE + ");" +
+        " END";
+
+    /**
+     * Queue an edit or a move made locally. Writes of the sync itself and the version
+     * bump of the provider leave local_modified, modified_date and parent_id alone
+     */
+    private static final String OUTBOX_QUEUE_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER outbox_queue_on_update " +
+        " AFTER UPDATE ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM +
+        " AND new." + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER +
+        " AND new." + NoteColumns.LOCAL_MODIFIED + "=1" +
+        " AND (old." + NoteColumns.LOCAL_MODIFIED + "=0" +
+        "  OR new." + NoteColumns.MODIFIED_DATE + "<>old." + NoteColumns.MODIFIED_DATE +
+        "  OR new." + NoteColumns.PARENT_ID + "<>old." + NoteColumns.PARENT_ID + ")" +
+        " BEGIN" +
+        "  INSERT INTO " + TABLE.OUTBOX + "(" + OutboxColumns.NOTE_ID + "," + OutboxColumns.OPERATION + ")" +
+        "   VALUES(new." + NoteColumns.ID + "," +
+        "    CASE WHEN new." + NoteColumns.PARENT_ID + "<>old." + NoteColumns.PARENT_ID +
+        "     THEN " + Notes.OUTBOX_OP_MOVE + " ELSE " + Notes.OUTBOX_OP_UPDATE + " END);" +
+        " END";
+
+    /**
+     * Queue a move into the trash folder, also for notes moved along with their folder
+     */
+    private static final String OUTBOX_QUEUE_ON_TRASH_TRIGGER =
+        "CREATE TRIGGER outbox_queue_on_trash " +
+        " AFTER UPDATE ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM +
+        " AND new." + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER +
+        " AND old." + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER +
+        " BEGIN" +
+        "  INSERT INTO " + TABLE.OUTBOX + "(" + OutboxColumns.NOTE_ID + "," + OutboxColumns.OPERATION + ")" +
+        "   VALUES(new." + NoteColumns.ID + "," + Notes.OUTBOX_OP_TRASH + ");" +
+        " END";
+
+    /**
+     * Nothing is left to push for a note which has been deleted for good
+     */
+    private static final String OUTBOX_CLEAR_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER outbox_clear_on_delete " +
+        " AFTER DELETE ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.OUTBOX +
+        "   WHERE " + OutboxColumns.NOTE_ID + "=old." + NoteColumns.ID + ";" +
+        " END";
+
+    private static final String CREATE_CHUNK_TABLE_SQL =
+        "CREATE TABLE " + TABLE.CHUNK + "(" +
+            ChunkColumns.ID + " INTEGER PRIMARY KEY," +
+            ChunkColumns.DATA_ID + " INTEGER NOT NULL," +
+            ChunkColumns.CHUNK_INDEX + " INTEGER NOT NULL," +
+            ChunkColumns.CONTENT + " TEXT NOT NULL DEFAULT ''," +
+            "UNIQUE(" + ChunkColumns.DATA_ID + "," + ChunkColumns.CHUNK_INDEX + ") ON CONFLICT REPLACE" +
+        ")";
+
+    /**
+     * Drop the chunks beyond the new chunk count, all of them when the content is no longer
+     * chunked
+     */
+    private static final String CHUNK_TRIM_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER chunk_trim_on_update " +
+        " AFTER UPDATE OF " + DataColumns.CHUNK_COUNT + " ON " + TABLE.DATA +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.CHUNK +
+        "   WHERE " + ChunkColumns.DATA_ID + "=new." + DataColumns.ID +
+        "   AND " + ChunkColumns.CHUNK_INDEX + ">=MAX(new." + DataColumns.CHUNK_COUNT + ",1);" +
+        " END";
+
+    /**
+     * Delete the chunks of data which has been deleted
+     */
+    private static final String CHUNK_DELETE_ON_DATA_DELETE_TRIGGER =
+        "CREATE TRIGGER chunk_delete_on_data_delete " +
+        " AFTER DELETE ON " + TABLE.DATA +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.CHUNK +
+        "   WHERE " + ChunkColumns.DATA_ID + "=old." + DataColumns.ID + ";" +
+        " END";
+
+    private static final String CREATE_REVISION_TABLE_SQL =
+        "CREATE TABLE " + TABLE.REVISION + "(" +
+            RevisionColumns.ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+            RevisionColumns.NOTE_ID + " INTEGER NOT NULL," +
+            RevisionColumns.BASE_ID + " INTEGER NOT NULL DEFAULT 0," +
+            RevisionColumns.DEPTH + " INTEGER NOT NULL DEFAULT 0," +
+            RevisionColumns.DIFF_PREFIX + " INTEGER NOT NULL DEFAULT 0," +
+            RevisionColumns.DIFF_SUFFIX + " INTEGER NOT NULL DEFAULT 0," +
+            RevisionColumns.CONTENT + " TEXT NOT NULL DEFAULT ''," +
+            RevisionColumns.REASON + " INTEGER NOT NULL DEFAULT 0," +
+            RevisionColumns.CREATED_DATE + " INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000)" +
+        ")";
+
+    private static final String CREATE_REVISION_NOTE_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS revision_note_id_index ON " +
+        TABLE.REVISION + "(" + RevisionColumns.NOTE_ID + "," + RevisionColumns.ID + ");";
+
+    /**
+     * The history goes away with the note
+     */
+    private static final String REVISION_DELETE_ON_NOTE_DELETE_TRIGGER =
+        "CREATE TRIGGER revision_delete_on_note_delete " +
+        " AFTER DELETE ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.REVISION +
+        "   WHERE " + RevisionColumns.NOTE_ID + "=old." + NoteColumns.ID + ";" +
+        " END";
+
     public NotesDatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
     }
@@ -270,6 +416,46 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.insert(TABLE.NOTE, null, values);
     }
 
+    public void createOutboxTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_OUTBOX_TABLE_SQL);
+        reCreateOutboxTriggers(db);
+        Log.d(TAG, "outbox table has been created");
+    }
+
+    private void reCreateOutboxTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS outbox_queue_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS outbox_queue_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS outbox_queue_on_trash");
+        db.execSQL("DROP TRIGGER IF EXISTS outbox_clear_on_delete");
+
+        db.execSQL(OUTBOX_QUEUE_ON_INSERT_TRIGGER);
+        db.execSQL(OUTBOX_QUEUE_ON_UPDATE_TRIGGER);
+        db.execSQL(OUTBOX_QUEUE_ON_TRASH_TRIGGER);
+        db.execSQL(OUTBOX_CLEAR_ON_DELETE_TRIGGER);
+    }
+
+    public void createChunkTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_CHUNK_TABLE_SQL);
+        reCreateChunkTriggers(db);
+        Log.d(TAG, "chunk table has been created");
+    }
+
+    private void reCreateChunkTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS chunk_trim_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS chunk_delete_on_data_delete");
+
+        db.execSQL(CHUNK_TRIM_ON_UPDATE_TRIGGER);
+        db.execSQL(CHUNK_DELETE_ON_DATA_DELETE_TRIGGER);
+    }
+
+    public void createRevisionTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_REVISION_TABLE_SQL);
+        db.execSQL(CREATE_REVISION_NOTE_ID_INDEX_SQL);
+        db.execSQL("DROP TRIGGER IF EXISTS revision_delete_on_note_delete");
+        db.execSQL(REVISION_DELETE_ON_NOTE_DELETE_TRIGGER);
+        Log.d(TAG, "revision table has been created");
+    }
+
     public void createDataTable(SQLiteDatabase db) {
         db.execSQL(CREATE_DATA_TABLE_SQL);
         reCreateDataTableTriggers(db);
@@ -298,6 +484,9 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         createNoteTable(db);
         createDataTable(db);
+        createOutboxTable(db);
+        createChunkTable(db);
+        createRevisionTable(db);
     }
 
     @Override
@@ -322,6 +511,26 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             oldVersion++;
         }
 
+        if (oldVersion == 4) {
+            upgradeToV5(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 5) {
+            upgradeToV6(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 6) {
+            createRevisionTable(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 7) {
+            upgradeToV8(db);
+            oldVersion++;
+        }
+
         if (reCreateTriggers) {
             reCreateNoteTableTriggers(db);
             reCreateDataTableTriggers(db);
@@ -359,4 +568,26 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.VERSION
                 + " INTEGER NOT NULL DEFAULT 0");
     }
+
+    private void upgradeToV5(SQLiteDatabase db) {
+        createOutboxTable(db);
+        // queue what is already waiting to be synced
+        db.execSQL("INSERT INTO " + TABLE.OUTBOX + "(" + OutboxColumns.NOTE_ID + ","
+                + OutboxColumns.OPERATION + ") SELECT " + NoteColumns.ID + ","
+                + Notes.OUTBOX_OP_UPDATE + " FROM " + TABLE.NOTE + " WHERE "
+                + NoteColumns.LOCAL_MODIFIED + "=1 AND " + NoteColumns.TYPE + "<>"
+                + Notes.TYPE_SYSTEM);
+    }
+
+    private void upgradeToV6(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE.DATA + " ADD COLUMN " + DataColumns.CHUNK_COUNT
+                + " INTEGER NOT NULL DEFAULT 0");
+        createChunkTable(db);
+    }
+
+    private void upgradeToV8(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.CONTENT_VERSION
+                + " INTEGER NOT NULL DEFAULT 0");
+        reCreateDataTableTriggers(db);
+    }
 }
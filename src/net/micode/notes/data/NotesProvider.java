@@ -18,28 +18,42 @@ package net.micode.notes.data;
 
 
 import android.app.SearchManager;
+import android.appwidget.AppWidgetManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.R;
+import net.micode.notes.data.Notes.ChunkColumns;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
 
 public class NotesProvider extends ContentProvider {
     private static final UriMatcher mMatcher;
 
     private NotesDatabaseHelper mHelper;
 
+    private SearchSuggestIndex mSuggestIndex;
+
     private static final String TAG = "NotesProvider";
 
     private static final int URI_NOTE            = 1;
@@ -50,6 +64,19 @@ public class NotesProvider extends ContentProvider {
     private static final int URI_SEARCH          = 5;
     private static final int URI_SEARCH_SUGGEST  = 6;
 
+    private static final int URI_OUTBOX          = 7;
+
+    private static final int URI_CHUNK           = 8;
+
+    private static final int URI_REVISION        = 9;
+
+    /**
+     * Uris changed by the batch running on this thread, they are notified once the batch is
+     * committed
+     */
+    private final ThreadLocal<LinkedHashSet<Uri>> mBatchNotifications =
+            new ThreadLocal<LinkedHashSet<Uri>>();
+
     static {
         mMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         mMatcher.addURI(Notes.AUTHORITY, "note", URI_NOTE);
@@ -57,6 +84,9 @@ public class NotesProvider extends ContentProvider {
         mMatcher.addURI(Notes.AUTHORITY, "data", URI_DATA);
         mMatcher.addURI(Notes.AUTHORITY, "data/#", URI_DATA_ITEM);
         mMatcher.addURI(Notes.AUTHORITY, "search", URI_SEARCH);
+        mMatcher.addURI(Notes.AUTHORITY, "outbox", URI_OUTBOX);
+        mMatcher.addURI(Notes.AUTHORITY, "chunk", URI_CHUNK);
+        mMatcher.addURI(Notes.AUTHORITY, "revision", URI_REVISION);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY, URI_SEARCH_SUGGEST);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", URI_SEARCH_SUGGEST);
     }
@@ -75,13 +105,32 @@ public class NotesProvider extends ContentProvider {
 
     private static String NOTES_SNIPPET_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
         + " FROM " + TABLE.NOTE
-        + " WHERE " + NoteColumns.SNIPPET + " LIKE ?"
+        + " WHERE (" + NoteColumns.SNIPPET + " LIKE ?"
+        + " OR " + NoteColumns.ID + " IN (" + ContentChunks.selectNoteIdsLike(false) + "))"
         + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
-        + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
+        + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+        + " ORDER BY " + NoteColumns.MODIFIED_DATE + " DESC"
+        + " LIMIT ?";
+
+    /**
+     * Number of search results when the caller does not ask for a limit
+     */
+    private static final int SEARCH_LIMIT = 50;
+
+    /**
+     * Most suggestions returned for one query of the search box
+     */
+    private static final int SEARCH_SUGGEST_LIMIT = 10;
+
+    /**
+     * Notes whose data changed with one call that are still notified one by one
+     */
+    private static final int MAX_NOTIFIED_NOTES = 20;
 
     @Override
     public boolean onCreate() {
         mHelper = NotesDatabaseHelper.getInstance(getContext());
+        mSuggestIndex = new SearchSuggestIndex(mHelper);
         return true;
     }
 
@@ -93,8 +142,12 @@ public class NotesProvider extends ContentProvider {
         String id = null;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
-                c = db.query(TABLE.NOTE, projection, selection, selectionArgs, null, null,
-                        sortOrder);
+                if (Boolean.parseBoolean(uri.getQueryParameter(Notes.PARAM_SNAPSHOT))) {
+                    c = querySnapshot(db, projection, selection, selectionArgs, sortOrder);
+                } else {
+                    c = db.query(TABLE.NOTE, projection, selection, selectionArgs, null, null,
+                            sortOrder, getLimit(uri));
+                }
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
@@ -110,6 +163,18 @@ public class NotesProvider extends ContentProvider {
                 c = db.query(TABLE.DATA, projection, DataColumns.ID + "=" + id
                         + parseSelection(selection), selectionArgs, null, null, sortOrder);
                 break;
+            case URI_OUTBOX:
+                c = db.query(TABLE.OUTBOX, projection, selection, selectionArgs, null, null,
+                        sortOrder, uri.getQueryParameter(Notes.PARAM_LIMIT));
+                break;
+            case URI_CHUNK:
+                c = db.query(TABLE.CHUNK, projection, selection, selectionArgs, null, null,
+                        sortOrder);
+                break;
+            case URI_REVISION:
+                c = db.query(TABLE.REVISION, projection, selection, selectionArgs, null, null,
+                        sortOrder, uri.getQueryParameter(Notes.PARAM_LIMIT));
+                break;
             case URI_SEARCH:
             case URI_SEARCH_SUGGEST:
                 if (sortOrder != null || projection != null) {
@@ -130,10 +195,31 @@ public class NotesProvider extends ContentProvider {
                     return null;
                 }
 
+                int limit = SEARCH_LIMIT;
+                try {
+                    // the search framework passes its limit the same way
+                    String limitParam = uri.getQueryParameter(Notes.PARAM_LIMIT);
+                    if (!TextUtils.isEmpty(limitParam)) {
+                        limit = Integer.parseInt(limitParam);
+                    }
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Bad search limit: " + e.toString());
+                }
+
+                if (mMatcher.match(uri) == URI_SEARCH_SUGGEST) {
+                    // answered from the prefix index, runs on every key stroke
+                    limit = Math.min(limit, SEARCH_SUGGEST_LIMIT);
+                    c = mSuggestIndex.query(searchString, limit);
+                    if (c != null) {
+                        break;
+                    }
+                    // the index is being built, search the notes themselves meanwhile
+                }
                 try {
                     searchString = String.format("%%%s%%", searchString);
-                    c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY,
-                            new String[] { searchString });
+                    c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY, new String[] {
+                            searchString, searchString, String.valueOf(limit)
+                    });
                 } catch (IllegalStateException ex) {
                     Log.e(TAG, "got exception: " + ex.toString());
                 }
@@ -147,6 +233,39 @@ public class NotesProvider extends ContentProvider {
         return c;
     }
 
+    /**
+     * Only a plain query of notes can be cancelled, e.g. a search that was superseded while
+     * the user typed. Called on API 16 and later only
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder, CancellationSignal cancellationSignal) {
+        if (cancellationSignal == null || mMatcher.match(uri) != URI_NOTE
+                || Boolean.parseBoolean(uri.getQueryParameter(Notes.PARAM_SNAPSHOT))) {
+            return query(uri, projection, selection, selectionArgs, sortOrder);
+        }
+        Cursor c = mHelper.getReadableDatabase().query(false, TABLE.NOTE, projection,
+                selection, selectionArgs, null, null, sortOrder, getLimit(uri),
+                cancellationSignal);
+        if (c != null) {
+            c.setNotificationUri(getContext().getContentResolver(), uri);
+        }
+        return c;
+    }
+
+    /**
+     * @return the limit clause asked for by {@link Notes#PARAM_LIMIT} and
+     *         {@link Notes#PARAM_OFFSET}, null for all rows
+     */
+    private static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(Notes.PARAM_LIMIT);
+        String offset = uri.getQueryParameter(Notes.PARAM_OFFSET);
+        if (TextUtils.isEmpty(limit) || TextUtils.isEmpty(offset)) {
+            return limit;
+        }
+        return offset + "," + limit;
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         SQLiteDatabase db = mHelper.getWritableDatabase();
@@ -161,21 +280,45 @@ public class NotesProvider extends ContentProvider {
                 } else {
                     Log.d(TAG, "Wrong data format without note id:" + values.toString());
                 }
-                insertedId = dataId = db.insert(TABLE.DATA, null, values);
+                List<String> chunks = splitContent(values);
+                db.beginTransaction();
+                try {
+                    insertedId = dataId = db.insert(TABLE.DATA, null, values);
+                    if (dataId > 0) {
+                        writeChunks(db, dataId, chunks);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
+            case URI_OUTBOX:
+                // nobody observes the outbox, skip the notification
+                return ContentUris.withAppendedId(uri, db.insert(TABLE.OUTBOX, null, values));
+            case URI_CHUNK:
+                // chunks are written along with their data row, which notifies the change
+                return ContentUris.withAppendedId(uri, db.insert(TABLE.CHUNK, null, values));
+            case URI_REVISION:
+                // the history is read on demand, nobody observes it
+                return ContentUris.withAppendedId(uri, db.insert(TABLE.REVISION, null, values));
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         // Notify the note uri
         if (noteId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null);
+            notifyChange(
+                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
+        }
+
+        // A new folder, or a new note counted by its folder
+        if (mMatcher.match(uri) == URI_NOTE && noteId > 0) {
+            notifyChange(Notes.CONTENT_FOLDER_URI);
         }
 
         // Notify the data uri
         if (dataId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId), null);
+            notifyChange(
+                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId));
         }
 
         return ContentUris.withAppendedId(uri, insertedId);
@@ -186,11 +329,13 @@ public class NotesProvider extends ContentProvider {
         int count = 0;
         String id = null;
         SQLiteDatabase db = mHelper.getWritableDatabase();
-        boolean deleteData = false;
+        ArrayList<Long> dataNoteIds = null;
+        boolean changeFolders = false;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
                 selection = "(" + selection + ") AND " + NoteColumns.ID + ">0 ";
                 count = db.delete(TABLE.NOTE, selection, selectionArgs);
+                changeFolders = true;
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
@@ -204,25 +349,36 @@ public class NotesProvider extends ContentProvider {
                 }
                 count = db.delete(TABLE.NOTE,
                         NoteColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
+                changeFolders = true;
                 break;
             case URI_DATA:
+                dataNoteIds = queryDataNoteIds(db, selection, selectionArgs);
                 count = db.delete(TABLE.DATA, selection, selectionArgs);
-                deleteData = true;
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                count = db.delete(TABLE.DATA,
-                        DataColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
-                deleteData = true;
+                selection = DataColumns.ID + "=" + id + parseSelection(selection);
+                dataNoteIds = queryDataNoteIds(db, selection, selectionArgs);
+                count = db.delete(TABLE.DATA, selection, selectionArgs);
                 break;
+            case URI_OUTBOX:
+                // nobody observes the outbox, skip the notification
+                return db.delete(TABLE.OUTBOX, selection, selectionArgs);
+            case URI_CHUNK:
+                return db.delete(TABLE.CHUNK, selection, selectionArgs);
+            case URI_REVISION:
+                return db.delete(TABLE.REVISION, selection, selectionArgs);
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         if (count > 0) {
-            if (deleteData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+            if (dataNoteIds != null) {
+                notifyNotes(dataNoteIds);
+            }
+            notifyChange(uri);
+            if (changeFolders) {
+                notifyChange(Notes.CONTENT_FOLDER_URI);
             }
-            getContext().getContentResolver().notifyChange(uri, null);
         }
         return count;
     }
@@ -232,41 +388,415 @@ public class NotesProvider extends ContentProvider {
         int count = 0;
         String id = null;
         SQLiteDatabase db = mHelper.getWritableDatabase();
-        boolean updateData = false;
+        ArrayList<Long> dataNoteIds = null;
+        boolean changeFolders = false;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
                 increaseNoteVersion(-1, selection, selectionArgs);
                 count = db.update(TABLE.NOTE, values, selection, selectionArgs);
+                changeFolders = changesFolders(values);
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
-                increaseNoteVersion(Long.valueOf(id), selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                // the selection may check the version the writer has read, so the version
+                // is raised only after the row has been updated
+                db.beginTransaction();
+                try {
+                    count = db.update(TABLE.NOTE, values, NoteColumns.ID + "=" + id
+                            + parseSelection(selection), selectionArgs);
+                    if (count > 0) {
+                        increaseNoteVersion(Long.valueOf(id), null, null);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                changeFolders = changesFolders(values);
                 break;
             case URI_DATA:
-                count = db.update(TABLE.DATA, values, selection, selectionArgs);
-                updateData = true;
+                dataNoteIds = queryDataNoteIds(db, selection, selectionArgs);
+                count = updateData(db, values, selection, selectionArgs);
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                count = db.update(TABLE.DATA, values, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
-                updateData = true;
+                selection = DataColumns.ID + "=" + id + parseSelection(selection);
+                dataNoteIds = queryDataNoteIds(db, selection, selectionArgs);
+                count = updateData(db, values, selection, selectionArgs);
                 break;
+            case URI_REVISION:
+                return db.update(TABLE.REVISION, values, selection, selectionArgs);
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
         if (count > 0) {
-            if (updateData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+            if (dataNoteIds != null) {
+                Long movedTo = values.getAsLong(DataColumns.NOTE_ID);
+                if (movedTo != null && !dataNoteIds.isEmpty()) {
+                    // the rows moved to another note
+                    dataNoteIds.add(movedTo);
+                }
+                notifyNotes(dataNoteIds);
+            }
+            notifyChange(uri);
+            if (changeFolders) {
+                notifyChange(Notes.CONTENT_FOLDER_URI);
             }
-            getContext().getContentResolver().notifyChange(uri, null);
         }
         return count;
     }
 
+    /**
+     * Whether writing {@code values} to notes may change a folder, its name or its count.
+     * Saves of a note's text and settings do not
+     */
+    private static boolean changesFolders(ContentValues values) {
+        return values.containsKey(NoteColumns.PARENT_ID) || values.containsKey(NoteColumns.TYPE)
+                || values.containsKey(NoteColumns.SNIPPET)
+                || values.containsKey(NoteColumns.NOTES_COUNT);
+    }
+
+    /**
+     * Apply the whole batch in one transaction, e.g. a new note together with its data rows
+     * using back references. Either all operations are applied or none, each changed uri is
+     * notified once after the commit.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        LinkedHashSet<Uri> notifications = new LinkedHashSet<Uri>();
+        ContentProviderResult[] results;
+        mBatchNotifications.set(notifications);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchNotifications.set(null);
+        }
+        for (Uri uri : notifications) {
+            notifyChange(uri);
+        }
+        return results;
+    }
+
+    /**
+     * Move or delete many notes with one call, see {@link Notes#METHOD_MOVE_NOTES} and
+     * {@link Notes#METHOD_DELETE_NOTES}, or clear their sync info, see
+     * {@link Notes#METHOD_RESET_SYNC_INFO}
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (Notes.METHOD_RESET_SYNC_INFO.equals(method)) {
+            return resetSyncInfo();
+        }
+        boolean move = Notes.METHOD_MOVE_NOTES.equals(method);
+        if (!move && !Notes.METHOD_DELETE_NOTES.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        if (extras == null || TextUtils.isEmpty(extras.getString(Notes.EXTRA_SELECTION))) {
+            throw new IllegalArgumentException("No notes given to " + method);
+        }
+
+        String selection = extras.getString(Notes.EXTRA_SELECTION);
+        String[] selectionArgs = extras.getStringArray(Notes.EXTRA_SELECTION_ARGS);
+        // system folders are never moved or deleted this way
+        selection = "(" + selection + ") AND " + NoteColumns.ID + ">0";
+
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        Bundle result = new Bundle();
+        int count;
+        db.beginTransaction();
+        try {
+            int limit = extras.getInt(Notes.EXTRA_LIMIT, 0);
+            if (limit > 0) {
+                // only the next chunk, the transaction stays short
+                long lastId = extras.getLong(Notes.EXTRA_AFTER_ID, 0);
+                ArrayList<Long> ids = new ArrayList<Long>(limit);
+                Cursor c = db.query(TABLE.NOTE, new String[] {
+                        NoteColumns.ID
+                }, selection + " AND " + NoteColumns.ID + ">" + lastId, selectionArgs, null,
+                        null, NoteColumns.ID, String.valueOf(limit));
+                try {
+                    while (c.moveToNext()) {
+                        lastId = c.getLong(0);
+                        ids.add(lastId);
+                    }
+                } finally {
+                    c.close();
+                }
+                result.putLong(Notes.EXTRA_LAST_ID, lastId);
+                selection = NoteColumns.ID + " IN (" + TextUtils.join(",", ids) + ")";
+                selectionArgs = null;
+            }
+            queryWidgets(db, selection, selectionArgs, result);
+            if (move) {
+                long folderId = extras.getLong(Notes.EXTRA_TARGET_FOLDER_ID);
+                StringBuilder sql = new StringBuilder("UPDATE " + TABLE.NOTE + " SET ");
+                sql.append(NoteColumns.PARENT_ID).append('=').append(folderId).append(',');
+                sql.append(NoteColumns.LOCAL_MODIFIED).append("=1,");
+                sql.append(NoteColumns.VERSION).append('=').append(NoteColumns.VERSION)
+                        .append("+1");
+                sql.append(" WHERE ").append(selection);
+                db.execSQL(sql.toString(), selectionArgs != null ? selectionArgs
+                        : new String[0]);
+            } else {
+                db.delete(TABLE.NOTE, selection, selectionArgs);
+            }
+            count = changes(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        result.putInt(Notes.EXTRA_COUNT, count);
+        if (count > 0) {
+            notifyChange(Notes.CONTENT_NOTE_URI);
+            notifyChange(Notes.CONTENT_FOLDER_URI);
+        }
+        return result;
+    }
+
+    /**
+     * Clear the sync columns with one statement, see {@link Notes#METHOD_RESET_SYNC_INFO}.
+     * Only the sync columns change, so the versions are not bumped and the notes are not
+     * queued for the next sync; rows without sync info are left alone
+     */
+    private Bundle resetSyncInfo() {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        int count;
+        db.beginTransaction();
+        try {
+            db.execSQL("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.GTASK_ID + "='',"
+                    + NoteColumns.SYNC_ID + "=0 WHERE " + NoteColumns.GTASK_ID + "<>'' OR "
+                    + NoteColumns.SYNC_ID + "<>0");
+            count = changes(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Bundle result = new Bundle();
+        result.putInt(Notes.EXTRA_COUNT, count);
+        if (count > 0) {
+            notifyChange(Notes.CONTENT_NOTE_URI);
+        }
+        return result;
+    }
+
+    /**
+     * Widgets showing the chosen notes, or notes inside the chosen folders
+     */
+    private void queryWidgets(SQLiteDatabase db, String selection, String[] selectionArgs,
+            Bundle result) {
+        String[] args = null;
+        if (selectionArgs != null) {
+            args = new String[selectionArgs.length * 2];
+            System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+            System.arraycopy(selectionArgs, 0, args, selectionArgs.length,
+                    selectionArgs.length);
+        }
+        Cursor c = db.query(TABLE.NOTE, new String[] {
+                NoteColumns.WIDGET_ID, NoteColumns.WIDGET_TYPE
+        }, "((" + selection + ") OR " + NoteColumns.PARENT_ID + " IN (SELECT "
+                + NoteColumns.ID + " FROM " + TABLE.NOTE + " WHERE " + selection + ")) AND "
+                + NoteColumns.WIDGET_ID + "<>" + AppWidgetManager.INVALID_APPWIDGET_ID
+                + " AND " + NoteColumns.WIDGET_TYPE + "<>" + Notes.TYPE_WIDGET_INVALIDE,
+                args, null, null, null);
+        int[] widgetIds;
+        int[] widgetTypes;
+        try {
+            widgetIds = new int[c.getCount()];
+            widgetTypes = new int[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                widgetIds[i] = c.getInt(0);
+                widgetTypes[i] = c.getInt(1);
+            }
+        } finally {
+            c.close();
+        }
+        result.putIntArray(Notes.EXTRA_WIDGET_IDS, widgetIds);
+        result.putIntArray(Notes.EXTRA_WIDGET_TYPES, widgetTypes);
+    }
+
+    private int changes(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("SELECT changes()", null);
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        LinkedHashSet<Uri> notifications = mBatchNotifications.get();
+        if (notifications != null) {
+            notifications.add(uri);
+        } else {
+            invalidateSuggestions(uri);
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * @return the notes owning the data rows of {@code selection}, or an empty list when
+     *         they are too many to tell one by one
+     */
+    private ArrayList<Long> queryDataNoteIds(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        Cursor c = db.query(true, TABLE.DATA, new String[] {
+            DataColumns.NOTE_ID
+        }, selection, selectionArgs, null, null, null, String.valueOf(MAX_NOTIFIED_NOTES + 1));
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        if (ids.size() > MAX_NOTIFIED_NOTES) {
+            ids.clear();
+        }
+        return ids;
+    }
+
+    /**
+     * Notify the notes whose data changed one by one, so that only they are indexed again
+     * for the suggestions, or all notes when {@code noteIds} is empty
+     */
+    private void notifyNotes(ArrayList<Long> noteIds) {
+        if (noteIds.isEmpty()) {
+            notifyChange(Notes.CONTENT_NOTE_URI);
+            return;
+        }
+        for (long noteId : noteIds) {
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
+        }
+    }
+
+    /**
+     * Keep the suggestion index in step with the committed change behind {@code uri}
+     */
+    private void invalidateSuggestions(Uri uri) {
+        if (Notes.CONTENT_FOLDER_URI.equals(uri)) {
+            // always notified along with the notes that changed
+            return;
+        }
+        if (mMatcher.match(uri) == URI_NOTE_ITEM) {
+            mSuggestIndex.invalidate(ContentUris.parseId(uri));
+        } else {
+            mSuggestIndex.invalidateAll();
+        }
+    }
+
+    /**
+     * A writer which sends the whole content does not know about chunks, e.g. the sync. A
+     * large content is split here then and the row keeps the first chunk
+     *
+     * @return the chunks to write along with the row, null if the writer took care of them
+     */
+    private List<String> splitContent(ContentValues values) {
+        if (!values.containsKey(DataColumns.CONTENT)
+                || values.containsKey(DataColumns.CHUNK_COUNT)) {
+            return null;
+        }
+        List<String> chunks = ContentChunks.split(values.getAsString(DataColumns.CONTENT));
+        values.put(DataColumns.CONTENT, chunks.get(0));
+        values.put(DataColumns.CHUNK_COUNT, chunks.size() > 1 ? chunks.size() : 0);
+        return chunks.size() > 1 ? chunks : null;
+    }
+
+    private void writeChunks(SQLiteDatabase db, long dataId, List<String> chunks) {
+        if (chunks == null) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        for (int i = 1; i < chunks.size(); i++) {
+            values.put(ChunkColumns.DATA_ID, dataId);
+            values.put(ChunkColumns.CHUNK_INDEX, i);
+            values.put(ChunkColumns.CONTENT, chunks.get(i));
+            db.insert(TABLE.CHUNK, null, values);
+        }
+    }
+
+    private int updateData(SQLiteDatabase db, ContentValues values, String selection,
+            String[] selectionArgs) {
+        List<String> chunks = splitContent(values);
+        if (chunks == null) {
+            return db.update(TABLE.DATA, values, selection, selectionArgs);
+        }
+
+        db.beginTransaction();
+        try {
+            ArrayList<Long> ids = new ArrayList<Long>();
+            Cursor c = db.query(TABLE.DATA, new String[] {
+                DataColumns.ID
+            }, selection, selectionArgs, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    ids.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+            int count = db.update(TABLE.DATA, values, selection, selectionArgs);
+            for (long dataId : ids) {
+                writeChunks(db, dataId, chunks);
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Copy the rows inside one transaction which keeps the writers out, so that a large
+     * result does not change between the windows it is read in. The snapshot covers this
+     * query only, the next query of the caller may see newer rows
+     */
+    private Cursor querySnapshot(SQLiteDatabase db, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        Cursor c = null;
+        db.beginTransactionNonExclusive();
+        try {
+            c = db.query(TABLE.NOTE, projection, selection, selectionArgs, null, null,
+                    sortOrder);
+            MatrixCursor snapshot = new MatrixCursor(c.getColumnNames(), c.getCount());
+            Object[] row = new Object[c.getColumnCount()];
+            while (c.moveToNext()) {
+                for (int i = 0; i < row.length; i++) {
+                    switch (c.getType(i)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            row[i] = null;
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[i] = c.getLong(i);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[i] = c.getDouble(i);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row[i] = c.getBlob(i);
+                            break;
+                        default:
+                            row[i] = c.getString(i);
+                            break;
+                    }
+                }
+                snapshot.addRow(row);
+            }
+            db.setTransactionSuccessful();
+            return snapshot;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            db.endTransaction();
+        }
+    }
+
     private String parseSelection(String selection) {
         return (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
     }
@@ -0,0 +1,501 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.app.SearchManager;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import net.micode.notes.R;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.tool.TaskExecutor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Prefix index over the words of the visible notes, answering the search suggestions. Every
+ * word of a note query has to start some word of a note. Runs of CJK characters have no word
+ * breaks, every position in them starts a word so that any part of the run is found. Only
+ * the start of a note is indexed, so long notes do not blow up the index; the terms not found
+ * there are looked for in the whole text of the long notes with SQL.
+ * <p>
+ * The index is built in the background on the first query. While it is built, or refreshed
+ * after a change of unknown notes, a query returns null and the caller searches the notes
+ * themselves. A refresh compares the versions of all notes and reads only the changed ones;
+ * a note known to have changed is read again alone on the next query.
+ */
+class SearchSuggestIndex {
+    // CJK words are indexed up to this length from every position
+    private static final int MAX_CJK_WORD = 8;
+
+    private static final int MAX_LINE_LENGTH = 48;
+
+    // characters indexed from the start of a note
+    private static final int MAX_INDEXED_LENGTH = 400;
+
+    // one more character tells a longer note
+    private static final String INDEXED_TEXT = "SUBSTR(" + NoteColumns.SNIPPET + ",1,"
+            + (MAX_INDEXED_LENGTH + 1) + ")";
+
+    private static final String[] KEY_PROJECTION = new String[] {
+            NoteColumns.ID, NoteColumns.VERSION, NoteColumns.CONTENT_VERSION,
+            NoteColumns.MODIFIED_DATE
+    };
+
+    private static final String[] INDEX_PROJECTION = new String[] {
+            NoteColumns.ID, NoteColumns.VERSION, NoteColumns.CONTENT_VERSION,
+            NoteColumns.MODIFIED_DATE, INDEXED_TEXT
+    };
+
+    // a term of a query within the whole text of a note, terms hold no wildcards
+    private static final String TERM_SELECTION = "(" + NoteColumns.SNIPPET + " LIKE ? OR "
+            + NoteColumns.ID + " IN (" + ContentChunks.selectNoteIdsLike(false) + "))";
+
+    // ids are inlined, keep the statements short
+    private static final int READ_BATCH = 500;
+
+    private static final String[] SUGGEST_COLUMNS = new String[] {
+            NoteColumns.ID,
+            SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA,
+            SearchManager.SUGGEST_COLUMN_TEXT_1,
+            SearchManager.SUGGEST_COLUMN_TEXT_2,
+            SearchManager.SUGGEST_COLUMN_ICON_1,
+            SearchManager.SUGGEST_COLUMN_INTENT_ACTION,
+            SearchManager.SUGGEST_COLUMN_INTENT_DATA
+    };
+
+    private static final String VISIBLE_NOTES = NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+            + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER;
+
+    private static class Entry {
+        long id;
+        long version;
+        long contentVersion;
+        long modifiedDate;
+        boolean truncated;
+        String[] words;
+        String title;
+        String detail;
+    }
+
+    private final NotesDatabaseHelper mHelper;
+
+    private final TreeMap<String, HashSet<Long>> mWords = new TreeMap<String, HashSet<Long>>();
+
+    private final HashMap<Long, Entry> mNotes = new HashMap<Long, Entry>();
+
+    private final HashSet<Long> mDirtyIds = new HashSet<Long>();
+
+    // notes longer than their indexed start
+    private final HashSet<Long> mTruncatedIds = new HashSet<Long>();
+
+    private boolean mBuilt;
+
+    // notes changed without telling which ones
+    private boolean mStale;
+
+    // counts the changes of unknown notes, one during a refresh makes it stale again
+    private int mInvalidations;
+
+    private boolean mRefreshing;
+
+    SearchSuggestIndex(NotesDatabaseHelper helper) {
+        mHelper = helper;
+    }
+
+    /**
+     * The note has changed, it is read again on the next query
+     */
+    synchronized void invalidate(long noteId) {
+        // a refresh may have read the note before the change
+        if (mBuilt || mRefreshing) {
+            mDirtyIds.add(noteId);
+        }
+    }
+
+    /**
+     * Some notes have changed
+     */
+    synchronized void invalidateAll() {
+        mStale = true;
+        mInvalidations++;
+    }
+
+    /**
+     * @return suggestion rows of the most recently modified notes matching {@code query}, or
+     *         null while the index is built in the background
+     */
+    Cursor query(String query, int limit) {
+        MatrixCursor cursor = new MatrixCursor(SUGGEST_COLUMNS);
+        ArrayList<String> terms = tokenize(query, false);
+        if (terms.isEmpty() || limit <= 0) {
+            return cursor;
+        }
+        synchronized (this) {
+            if (!mBuilt || mStale) {
+                startRefresh();
+                return null;
+            }
+            refreshDirty();
+            return query(cursor, terms, limit);
+        }
+    }
+
+    private Cursor query(MatrixCursor cursor, ArrayList<String> terms, int limit) {
+        HashSet<Long> matches = match(terms);
+        if (!mTruncatedIds.isEmpty()) {
+            matches.addAll(matchTruncated(terms, matches));
+        }
+
+        ArrayList<Long> ids = new ArrayList<Long>(matches);
+        Collections.sort(ids, new Comparator<Long>() {
+            public int compare(Long lhs, Long rhs) {
+                long l = mNotes.get(lhs).modifiedDate;
+                long r = mNotes.get(rhs).modifiedDate;
+                return l > r ? -1 : (l < r ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < ids.size() && i < limit; i++) {
+            Entry entry = mNotes.get(ids.get(i));
+            cursor.addRow(new Object[] {
+                    ids.get(i), ids.get(i), entry.title, entry.detail, R.drawable.search_result,
+                    Intent.ACTION_VIEW, Notes.TextNote.CONTENT_TYPE
+            });
+        }
+        return cursor;
+    }
+
+    /**
+     * @return the notes with a word starting with each of {@code terms} in their indexed start
+     */
+    private HashSet<Long> match(ArrayList<String> terms) {
+        HashSet<Long> matches = null;
+        for (String term : terms) {
+            HashSet<Long> ids = new HashSet<Long>();
+            SortedMap<String, HashSet<Long>> words = mWords.subMap(term,
+                    term + Character.MAX_VALUE);
+            for (HashSet<Long> noteIds : words.values()) {
+                if (matches == null) {
+                    ids.addAll(noteIds);
+                } else {
+                    for (Long id : noteIds) {
+                        if (matches.contains(id)) {
+                            ids.add(id);
+                        }
+                    }
+                }
+            }
+            matches = ids;
+            if (matches.isEmpty()) {
+                break;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @return the long notes not matched by the index which hold all {@code terms} past
+     *         their indexed start
+     */
+    private HashSet<Long> matchTruncated(ArrayList<String> terms, HashSet<Long> matches) {
+        HashSet<Long> found = new HashSet<Long>();
+        ArrayList<Long> candidates = new ArrayList<Long>();
+        for (Long id : mTruncatedIds) {
+            if (!matches.contains(id)) {
+                candidates.add(id);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return found;
+        }
+
+        StringBuilder selection = new StringBuilder();
+        String[] args = new String[terms.size() * 2];
+        for (int i = 0; i < terms.size(); i++) {
+            selection.append(" AND ").append(TERM_SELECTION);
+            String pattern = "%" + terms.get(i) + "%";
+            args[i * 2] = pattern;
+            args[i * 2 + 1] = pattern;
+        }
+        SQLiteDatabase db = mHelper.getReadableDatabase();
+        for (int start = 0; start < candidates.size(); start += READ_BATCH) {
+            Cursor c = db.query(TABLE.NOTE, new String[] {
+                NoteColumns.ID
+            }, NoteColumns.ID + " IN (" + TextUtils.join(",", candidates.subList(start,
+                    Math.min(start + READ_BATCH, candidates.size()))) + ")" + selection, args,
+                    null, null, null);
+            if (c == null) {
+                continue;
+            }
+            try {
+                while (c.moveToNext()) {
+                    found.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Read the notes known to have changed again, they are few
+     */
+    private void refreshDirty() {
+        if (mDirtyIds.isEmpty()) {
+            return;
+        }
+        for (Long id : mDirtyIds) {
+            remove(id);
+        }
+        String ids = TextUtils.join(",", mDirtyIds);
+        mDirtyIds.clear();
+        for (Entry entry : read(mHelper.getReadableDatabase(), NoteColumns.ID + " IN (" + ids
+                + ") AND " + VISIBLE_NOTES)) {
+            put(entry);
+        }
+    }
+
+    private void startRefresh() {
+        if (mRefreshing) {
+            return;
+        }
+        mRefreshing = true;
+        TaskExecutor.submit(TaskExecutor.Lane.READ, "refresh search suggestions",
+                new Runnable() {
+                    public void run() {
+                        refreshAll();
+                    }
+                });
+    }
+
+    /**
+     * Compare the versions of all visible notes with the index, read the changed ones. A
+     * note's version follows the writes of its row, the content version those of its text. The database is read without holding the index, queries meanwhile are
+     * answered by the caller.
+     */
+    private void refreshAll() {
+        int invalidations;
+        synchronized (this) {
+            invalidations = mInvalidations;
+        }
+        try {
+            SQLiteDatabase db = mHelper.getReadableDatabase();
+            ArrayList<Entry> keys = read(db, VISIBLE_NOTES, false);
+
+            ArrayList<Long> changed = new ArrayList<Long>();
+            synchronized (this) {
+                HashSet<Long> seen = new HashSet<Long>(keys.size() * 2);
+                for (Entry key : keys) {
+                    seen.add(key.id);
+                    Entry entry = mNotes.get(key.id);
+                    if (entry == null || entry.version != key.version
+                            || entry.contentVersion != key.contentVersion
+                            || entry.modifiedDate != key.modifiedDate) {
+                        changed.add(key.id);
+                    }
+                }
+                ArrayList<Long> gone = new ArrayList<Long>();
+                for (Long id : mNotes.keySet()) {
+                    if (!seen.contains(id)) {
+                        gone.add(id);
+                    }
+                }
+                for (Long id : gone) {
+                    remove(id);
+                }
+            }
+
+            ArrayList<Entry> entries = new ArrayList<Entry>(changed.size());
+            for (int start = 0; start < changed.size(); start += READ_BATCH) {
+                entries.addAll(read(db, NoteColumns.ID + " IN (" + TextUtils.join(",",
+                        changed.subList(start, Math.min(start + READ_BATCH, changed.size())))
+                        + ") AND " + VISIBLE_NOTES));
+            }
+            synchronized (this) {
+                for (Entry entry : entries) {
+                    put(entry);
+                }
+                mBuilt = true;
+                mStale = invalidations != mInvalidations;
+            }
+        } finally {
+            // a failure is logged by the executor, the next query tries again
+            synchronized (this) {
+                mRefreshing = false;
+            }
+        }
+    }
+
+    private static ArrayList<Entry> read(SQLiteDatabase db, String selection) {
+        return read(db, selection, true);
+    }
+
+    /**
+     * @param withWords whether to read the text and split it into words, or only the keys
+     *            the index is compared by
+     */
+    private static ArrayList<Entry> read(SQLiteDatabase db, String selection,
+            boolean withWords) {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        Cursor c = db.query(TABLE.NOTE, withWords ? INDEX_PROJECTION : KEY_PROJECTION,
+                selection, null, null, null, null);
+        if (c == null) {
+            return entries;
+        }
+        try {
+            while (c.moveToNext()) {
+                Entry entry = new Entry();
+                entry.id = c.getLong(0);
+                entry.version = c.getLong(1);
+                entry.contentVersion = c.getLong(2);
+                entry.modifiedDate = c.getLong(3);
+                if (withWords) {
+                    String text = c.getString(4);
+                    text = text != null ? text : "";
+                    entry.truncated = text.length() > MAX_INDEXED_LENGTH;
+                    if (entry.truncated) {
+                        text = text.substring(0, MAX_INDEXED_LENGTH);
+                    }
+                    ArrayList<String> words = tokenize(text, true);
+                    entry.words = words.toArray(new String[words.size()]);
+                    String[] lines = firstLines(text);
+                    entry.title = lines[0];
+                    entry.detail = lines[1];
+                }
+                entries.add(entry);
+            }
+        } finally {
+            c.close();
+        }
+        return entries;
+    }
+
+    private void put(Entry entry) {
+        remove(entry.id);
+        mNotes.put(entry.id, entry);
+        if (entry.truncated) {
+            mTruncatedIds.add(entry.id);
+        }
+        for (String word : entry.words) {
+            HashSet<Long> ids = mWords.get(word);
+            if (ids == null) {
+                ids = new HashSet<Long>();
+                mWords.put(word, ids);
+            }
+            ids.add(entry.id);
+        }
+    }
+
+    private void remove(Long id) {
+        Entry entry = mNotes.remove(id);
+        if (entry == null) {
+            return;
+        }
+        mTruncatedIds.remove(id);
+        for (String word : entry.words) {
+            HashSet<Long> ids = mWords.get(word);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    mWords.remove(word);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the first two non empty lines, cut to a length fitting a suggestion row
+     */
+    private static String[] firstLines(String snippet) {
+        String[] lines = new String[] {
+                "", null
+        };
+        int found = 0;
+        for (String line : snippet.split("\n")) {
+            // checklist marks are not part of the text
+            line = line.replace("\u221A", "").replace("\u25A1", "").trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            lines[found++] = line.length() > MAX_LINE_LENGTH
+                    ? line.substring(0, MAX_LINE_LENGTH) + "…" : line;
+            if (found == lines.length) {
+                break;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Split {@code text} into lower case words
+     *
+     * @param allCjkPositions whether every position of a CJK run starts a word, as needed
+     *            for the indexed text; a query takes the run as one word
+     */
+    private static ArrayList<String> tokenize(String text, boolean allCjkPositions) {
+        HashSet<String> words = new HashSet<String>();
+        String lower = text.toLowerCase(Locale.getDefault());
+        int i = 0;
+        while (i < lower.length()) {
+            char c = lower.charAt(i);
+            if (!Character.isLetterOrDigit(c)) {
+                i++;
+                continue;
+            }
+            boolean cjk = isCjk(c);
+            int end = i + 1;
+            while (end < lower.length() && Character.isLetterOrDigit(lower.charAt(end))
+                    && isCjk(lower.charAt(end)) == cjk) {
+                end++;
+            }
+            if (cjk && allCjkPositions) {
+                for (int start = i; start < end; start++) {
+                    words.add(lower.substring(start, Math.min(end, start + MAX_CJK_WORD)));
+                }
+            } else if (cjk) {
+                // longer runs are not indexed, look for their start
+                words.add(lower.substring(i, Math.min(end, i + MAX_CJK_WORD)));
+            } else {
+                words.add(lower.substring(i, end));
+            }
+            i = end;
+        }
+        return new ArrayList<String>(words);
+    }
+
+    private static boolean isCjk(char c) {
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(c);
+        return block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS
+                || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A
+                || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS
+                || block == Character.UnicodeBlock.HIRAGANA
+                || block == Character.UnicodeBlock.KATAKANA
+                || block == Character.UnicodeBlock.HANGUL_SYLLABLES;
+    }
+}
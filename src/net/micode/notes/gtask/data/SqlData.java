@@ -24,6 +24,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.util.Log;
 
+import net.micode.notes.data.ContentChunks;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
@@ -42,7 +43,7 @@ public class SqlData {
 
     public static final String[] PROJECTION_DATA = new String[] {
             DataColumns.ID, DataColumns.MIME_TYPE, DataColumns.CONTENT, DataColumns.DATA1,
-            DataColumns.DATA3
+            DataColumns.DATA3, DataColumns.CHUNK_COUNT
     };
 
     public static final int DATA_ID_COLUMN = 0;
@@ -55,6 +56,8 @@ public class SqlData {
 
     public static final int DATA_CONTENT_DATA_3_COLUMN = 4;
 
+    public static final int DATA_CHUNK_COUNT_COLUMN = 5;
+
     private ContentResolver mContentResolver;
 
     private boolean mIsCreate;
@@ -92,7 +95,9 @@ public class SqlData {
     private void loadFromCursor(Cursor c) {
         mDataId = c.getLong(DATA_ID_COLUMN);
         mDataMimeType = c.getString(DATA_MIME_TYPE_COLUMN);
-        mDataContent = c.getString(DATA_CONTENT_COLUMN);
+        // the remote side always gets the whole content
+        mDataContent = ContentChunks.readContent(mContentResolver, mDataId,
+                c.getString(DATA_CONTENT_COLUMN), c.getInt(DATA_CHUNK_COUNT_COLUMN));
         mDataContentData1 = c.getLong(DATA_CONTENT_DATA_1_COLUMN);
         mDataContentData3 = c.getString(DATA_CONTENT_DATA_3_COLUMN);
     }
@@ -144,7 +149,11 @@ public class SqlData {
         return js;
     }
 
-    public void commit(long noteId, boolean validateVersion, long version) {
+    /**
+     * @return false if the version checked update was dropped
+     */
+    public boolean commit(long noteId, boolean validateVersion, long version) {
+        boolean applied = true;
 
         if (mIsCreate) {
             if (mDataId == INVALID_ID && mDiffDataValues.containsKey(DataColumns.ID)) {
@@ -175,12 +184,14 @@ public class SqlData {
                 }
                 if (result == 0) {
                     Log.w(TAG, "there is no update. maybe user updates note when syncing");
+                    applied = !validateVersion;
                 }
             }
         }
 
         mDiffDataValues.clear();
         mIsCreate = false;
+        return applied;
     }
 
     public long getId() {
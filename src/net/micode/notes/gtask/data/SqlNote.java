@@ -18,6 +18,7 @@ package net.micode.notes.gtask.data;
 
 import android.appwidget.AppWidgetManager;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -441,7 +442,12 @@ public class SqlNote {
         return mType == Notes.TYPE_NOTE;
     }
 
-    public void commit(boolean validateVersion) {
+    /**
+     * @return false if a version checked write was dropped because the note has been
+     *         changed by someone else since it was read
+     */
+    public boolean commit(boolean validateVersion) {
+        boolean applied = true;
         if (mIsCreate) {
             if (mId == INVALID_ID && mDiffNoteValues.containsKey(NoteColumns.ID)) {
                 mDiffNoteValues.remove(NoteColumns.ID);
@@ -469,7 +475,6 @@ public class SqlNote {
                 throw new IllegalStateException("Try to update note with invalid id");
             }
             if (mDiffNoteValues.size() > 0) {
-                mVersion ++;
                 int result = 0;
                 if (!validateVersion) {
                     result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
@@ -477,5 +482,34 @@ public class SqlNote {
                         String.valueOf(mId)
                     });
                 } else {
-                    result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
-                            + NoteColumns.ID + "=?) AND ("
+                    // only the version read is accepted, the provider raises it afterwards
+                    result = mContentResolver.update(ContentUris.withAppendedId(
+                            Notes.CONTENT_NOTE_URI, mId), mDiffNoteValues,
+                            NoteColumns.VERSION + "=?", new String[] {
+                                String.valueOf(mVersion)
+                            });
+                }
+                if (result == 0) {
+                    Log.w(TAG, "there is no update. maybe user updates note when syncing");
+                    applied = !validateVersion;
+                } else {
+                    mVersion++;
+                }
+            }
+            if (mType == Notes.TYPE_NOTE) {
+                for (SqlData sqlData : mDataList) {
+                    if (!sqlData.commit(mId, validateVersion, mVersion)) {
+                        applied = false;
+                    }
+                }
+            }
+        }
+        // refresh local info
+        loadFromCursor(mId);
+        if (mType == Notes.TYPE_NOTE)
+            loadDataContent();
+        mDiffNoteValues.clear();
+        mIsCreate = false;
+        return applied;
+    }
+}
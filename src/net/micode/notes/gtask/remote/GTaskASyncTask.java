@@ -25,6 +25,7 @@ import android.content.Intent;
 import android.os.AsyncTask;
 
 import net.micode.notes.R;
+import net.micode.notes.tool.TaskExecutor;
 import net.micode.notes.ui.NotesListActivity;
 import net.micode.notes.ui.NotesPreferenceActivity;
 
@@ -113,12 +114,12 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
                     .getString(R.string.error_sync_cancelled));
         }
         if (mOnCompleteListener != null) {
-            new Thread(new Runnable() {
+            TaskExecutor.submit(TaskExecutor.Lane.BACKGROUND, "sync complete", new Runnable() {
 
                 public void run() {
                     mOnCompleteListener.onComplete();
                 }
-            }).start();
+            });
         }
     }
 }
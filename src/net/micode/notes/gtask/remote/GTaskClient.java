@@ -20,6 +20,7 @@ import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.AccountManagerFuture;
 import android.app.Activity;
+import android.content.Context;
 import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
@@ -33,11 +34,14 @@ import net.micode.notes.tool.GTaskStringUtils;
 import net.micode.notes.ui.NotesPreferenceActivity;
 
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.DefaultHttpClient;
@@ -51,6 +55,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -82,7 +87,7 @@ public class GTaskClient {
 
     private boolean mLoggedin;
 
-    private long mLastLoginTime;
+    private Context mContext;
 
     private int mActionId;
 
@@ -90,16 +95,65 @@ public class GTaskClient {
 
     private JSONArray mUpdateArray;
 
+    private String mStandInUrl;
+
+    private int mRequestCount;
+
+    private long mBytesSent;
+
+    private long mBytesReceived;
+
+    // times the commits of queued updates, wherever they are flushed from
+    private GTaskSyncReport mReport;
+
+    /**
+     * Counts the bytes read from the network, before they are decompressed
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
     private GTaskClient() {
         mHttpClient = null;
         mGetUrl = GTASK_GET_URL;
         mPostUrl = GTASK_POST_URL;
         mClientVersion = -1;
         mLoggedin = false;
-        mLastLoginTime = 0;
+        mContext = null;
         mActionId = 1;
         mAccount = null;
         mUpdateArray = null;
+        mStandInUrl = null;
+        resetTrafficStats();
     }
 
     public static synchronized GTaskClient getInstance() {
@@ -110,18 +164,39 @@ public class GTaskClient {
         return mInstance;
     }
 
-    public boolean login(Activity activity) {
-        // we suppose that the cookie would expire after 5 minutes
-        // then we need to re-login
-        final long interval = 1000 * 60 * 5;
-        if (mLastLoginTime + interval < System.currentTimeMillis()) {
-            mLoggedin = false;
+    /**
+     * Route all requests to a local stand-in server instead of google's servers, pass null to
+     * switch back. The account lookup is skipped while it is set. Only the sync benchmark of
+     * the test project uses it.
+     */
+    void useStandInEndpoint(String baseUrl) {
+        mStandInUrl = baseUrl;
+        mLoggedin = false;
+        mUpdateArray = null;
+        mGetUrl = baseUrl != null ? baseUrl + "ig" : GTASK_GET_URL;
+        mPostUrl = baseUrl != null ? baseUrl + "r/ig" : GTASK_POST_URL;
+    }
+
+    /**
+     * @param activity lets the account manager ask the user for a new auth token, may be null
+     *            for a background sync, which then only gets a token that needs no user
+     *            interaction and fails otherwise
+     */
+    public boolean login(Context context, Activity activity) {
+        if (mStandInUrl != null) {
+            if (!mLoggedin) {
+                mLoggedin = loginGtask("stand-in");
+            }
+            return mLoggedin;
         }
 
+        // kept so that a request rejected by the server can login again
+        mContext = context.getApplicationContext();
+
         // need to re-login after account switch
         if (mLoggedin
                 && !TextUtils.equals(getSyncAccount().name, NotesPreferenceActivity
-                        .getSyncAccountName(activity))) {
+                        .getSyncAccountName(mContext))) {
             mLoggedin = false;
         }
 
@@ -130,7 +205,21 @@ public class GTaskClient {
             return true;
         }
 
-        mLastLoginTime = System.currentTimeMillis();
+        // the stored session is not checked here, the first request will tell
+        // whether it is still accepted
+        if (restoreSession(mContext)) {
+            Log.d(TAG, "restored gtask session");
+            return true;
+        }
+
+        if (!loginAccount(activity)) {
+            return false;
+        }
+        saveSession();
+        return true;
+    }
+
+    private boolean loginAccount(Activity activity) {
         String authToken = loginGoogleAccount(activity, false);
         if (authToken == null) {
             Log.e(TAG, "login google account failed");
@@ -165,9 +254,57 @@ public class GTaskClient {
         return true;
     }
 
+    private boolean restoreSession(Context context) {
+        String accountName = NotesPreferenceActivity.getSyncAccountName(context);
+        GTaskSessionStore.Session session = GTaskSessionStore.restore(context, accountName);
+        if (session == null || session.clientVersion == -1 || session.getUrl == null
+                || session.postUrl == null) {
+            return false;
+        }
+
+        createHttpClient(session.cookieStore);
+        mAccount = new Account(session.accountName, "com.google");
+        mGetUrl = session.getUrl;
+        mPostUrl = session.postUrl;
+        mClientVersion = session.clientVersion;
+        mLoggedin = true;
+        return true;
+    }
+
+    private void saveSession() {
+        if (mStandInUrl != null || mContext == null || mHttpClient == null) {
+            return;
+        }
+        GTaskSessionStore.save(mContext, mAccount.name, mGetUrl, mPostUrl, mClientVersion,
+                mHttpClient.getCookieStore().getCookies());
+    }
+
+    /**
+     * Called when the server rejected the current session, drop it and login from scratch.
+     * No activity is kept for this, so the new token is requested without any ui.
+     */
+    private boolean reLogin() {
+        Log.w(TAG, "gtask session is rejected, login again");
+        mLoggedin = false;
+        if (mStandInUrl == null) {
+            if (mContext == null) {
+                return false;
+            }
+            GTaskSessionStore.clear(mContext);
+        }
+        return login(mContext, null);
+    }
+
+    private boolean isAuthFailure(HttpResponse response) {
+        int status = response.getStatusLine().getStatusCode();
+        // an expired session is redirected to the login page
+        return status == HttpStatus.SC_UNAUTHORIZED || status == HttpStatus.SC_FORBIDDEN
+                || (status >= 300 && status < 400);
+    }
+
     private String loginGoogleAccount(Activity activity, boolean invalidateToken) {
         String authToken;
-        AccountManager accountManager = AccountManager.get(activity);
+        AccountManager accountManager = AccountManager.get(mContext);
         Account[] accounts = accountManager.getAccountsByType("com.google");
 
         if (accounts.length == 0) {
@@ -175,7 +312,7 @@ public class GTaskClient {
             return null;
         }
 
-        String accountName = NotesPreferenceActivity.getSyncAccountName(activity);
+        String accountName = NotesPreferenceActivity.getSyncAccountName(mContext);
         Account account = null;
         for (Account a : accounts) {
             if (a.name.equals(accountName)) {
@@ -190,15 +327,17 @@ public class GTaskClient {
             return null;
         }
 
-        // get the token now
-        AccountManagerFuture<Bundle> accountManagerFuture = accountManager.getAuthToken(account,
-                "goanna_mobile", null, activity, null, null);
+        // get the token now, without an activity the user is only notified when the
+        // account needs attention and no token is returned
+        AccountManagerFuture<Bundle> accountManagerFuture = activity != null
+                ? accountManager.getAuthToken(account, "goanna_mobile", null, activity, null, null)
+                : accountManager.getAuthToken(account, "goanna_mobile", null, true, null, null);
         try {
             Bundle authTokenBundle = accountManagerFuture.getResult();
             authToken = authTokenBundle.getString(AccountManager.KEY_AUTHTOKEN);
             if (invalidateToken) {
                 accountManager.invalidateAuthToken("com.google", authToken);
-                loginGoogleAccount(activity, false);
+                authToken = loginGoogleAccount(activity, false);
             }
         } catch (Exception e) {
             Log.e(TAG, "get auth token failed");
@@ -226,23 +365,26 @@ public class GTaskClient {
         return true;
     }
 
-    private boolean loginGtask(String authToken) {
+    private void createHttpClient(BasicCookieStore cookieStore) {
         int timeoutConnection = 10000;
         int timeoutSocket = 15000;
         HttpParams httpParameters = new BasicHttpParams();
         HttpConnectionParams.setConnectionTimeout(httpParameters, timeoutConnection);
         HttpConnectionParams.setSoTimeout(httpParameters, timeoutSocket);
         mHttpClient = new DefaultHttpClient(httpParameters);
-        BasicCookieStore localBasicCookieStore = new BasicCookieStore();
-        mHttpClient.setCookieStore(localBasicCookieStore);
+        mHttpClient.setCookieStore(cookieStore);
         HttpProtocolParams.setUseExpectContinue(mHttpClient.getParams(), false);
+    }
+
+    private boolean loginGtask(String authToken) {
+        createHttpClient(new BasicCookieStore());
 
         // login gtask
         try {
             String loginUrl = mGetUrl + "?auth=" + authToken;
             HttpGet httpGet = new HttpGet(loginUrl);
             HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
+            response = execute(httpGet);
 
             // get the cookie now
             List<Cookie> cookies = mHttpClient.getCookieStore().getCookies();
@@ -292,6 +434,17 @@ public class GTaskClient {
         return httpPost;
     }
 
+    private HttpResponse execute(HttpUriRequest request) throws IOException {
+        mRequestCount++;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null && entity.getContentLength() > 0) {
+                mBytesSent += entity.getContentLength();
+            }
+        }
+        return mHttpClient.execute(request);
+    }
+
     private String getResponseContent(HttpEntity entity) throws IOException {
         String contentEncoding = null;
         if (entity.getContentEncoding() != null) {
@@ -299,12 +452,13 @@ public class GTaskClient {
             Log.d(TAG, "encoding: " + contentEncoding);
         }
 
-        InputStream input = entity.getContent();
+        CountingInputStream raw = new CountingInputStream(entity.getContent());
+        InputStream input = raw;
         if (contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip")) {
-            input = new GZIPInputStream(entity.getContent());
+            input = new GZIPInputStream(raw);
         } else if (contentEncoding != null && contentEncoding.equalsIgnoreCase("deflate")) {
             Inflater inflater = new Inflater(true);
-            input = new InflaterInputStream(entity.getContent(), inflater);
+            input = new InflaterInputStream(raw, inflater);
         }
 
         try {
@@ -321,6 +475,8 @@ public class GTaskClient {
             }
         } finally {
             input.close();
+            // the bytes as they came over the wire, still compressed
+            mBytesReceived += raw.count;
         }
     }
 
@@ -330,6 +486,30 @@ public class GTaskClient {
             throw new ActionFailureException("not logged in");
         }
 
+        JSONObject jsResponse = doPostRequest(js);
+        if (jsResponse == null) {
+            if (!reLogin()) {
+                throw new NetworkFailureException("postRequest: login again failed");
+            }
+            try {
+                // the new session may come with a new client version
+                js.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+            } catch (JSONException e) {
+                Log.e(TAG, e.toString());
+                throw new ActionFailureException("postRequest: handing jsonobject failed");
+            }
+            jsResponse = doPostRequest(js);
+            if (jsResponse == null) {
+                throw new ActionFailureException("postRequest: session rejected after login");
+            }
+        }
+        return jsResponse;
+    }
+
+    /**
+     * @return the response, or null if the server rejected the session
+     */
+    private JSONObject doPostRequest(JSONObject js) throws NetworkFailureException {
         HttpPost httpPost = createHttpPost();
         try {
             LinkedList<BasicNameValuePair> list = new LinkedList<BasicNameValuePair>();
@@ -338,7 +518,13 @@ public class GTaskClient {
             httpPost.setEntity(entity);
 
             // execute the post
-            HttpResponse response = mHttpClient.execute(httpPost);
+            HttpResponse response = execute(httpPost);
+            if (isAuthFailure(response)) {
+                if (response.getEntity() != null) {
+                    response.getEntity().consumeContent();
+                }
+                return null;
+            }
             String jsString = getResponseContent(response.getEntity());
             return new JSONObject(jsString);
 
@@ -415,6 +601,10 @@ public class GTaskClient {
 
     public void commitUpdate() throws NetworkFailureException {
         if (mUpdateArray != null) {
+            GTaskSyncReport report = mReport;
+            if (report != null) {
+                report.beginPhase(GTaskSyncReport.PHASE_COMMIT_UPDATE);
+            }
             try {
                 JSONObject jsPost = new JSONObject();
 
@@ -430,6 +620,10 @@ public class GTaskClient {
                 Log.e(TAG, e.toString());
                 e.printStackTrace();
                 throw new ActionFailureException("commit update: handing jsonobject failed");
+            } finally {
+                if (report != null) {
+                    report.endPhase();
+                }
             }
         }
     }
@@ -516,10 +710,35 @@ public class GTaskClient {
             throw new ActionFailureException("not logged in");
         }
 
+        JSONArray jsTaskLists = doGetTaskLists();
+        if (jsTaskLists == null) {
+            if (!reLogin()) {
+                throw new NetworkFailureException("gettasklists: login again failed");
+            }
+            jsTaskLists = doGetTaskLists();
+            if (jsTaskLists == null) {
+                throw new ActionFailureException("gettasklists: session rejected after login");
+            }
+        }
+        // the server may have refreshed the cookies
+        saveSession();
+        return jsTaskLists;
+    }
+
+    /**
+     * @return the task lists, or null if the server rejected the session
+     */
+    private JSONArray doGetTaskLists() throws NetworkFailureException {
         try {
             HttpGet httpGet = new HttpGet(mGetUrl);
             HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
+            response = execute(httpGet);
+            if (isAuthFailure(response)) {
+                if (response.getEntity() != null) {
+                    response.getEntity().consumeContent();
+                }
+                return null;
+            }
 
             // get the task list
             String resString = getResponseContent(response.getEntity());
@@ -527,10 +746,11 @@ public class GTaskClient {
             String jsEnd = ")}</script>";
             int begin = resString.indexOf(jsBegin);
             int end = resString.lastIndexOf(jsEnd);
-            String jsString = null;
-            if (begin != -1 && end != -1 && begin < end) {
-                jsString = resString.substring(begin + jsBegin.length(), end);
+            if (begin == -1 || end == -1 || begin >= end) {
+                // redirected to the login page
+                return null;
             }
+            String jsString = resString.substring(begin + jsBegin.length(), end);
             JSONObject js = new JSONObject(jsString);
             return js.getJSONObject("t").getJSONArray(GTaskStringUtils.GTASK_JSON_LISTS);
         } catch (ClientProtocolException e) {
@@ -583,4 +803,29 @@ public class GTaskClient {
     public void resetUpdateArray() {
         mUpdateArray = null;
     }
+
+    public int getRequestCount() {
+        return mRequestCount;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    /**
+     * Time the commits of queued updates in {@code report}, null to stop
+     */
+    public void setReport(GTaskSyncReport report) {
+        mReport = report;
+    }
+
+    public void resetTrafficStats() {
+        mRequestCount = 0;
+        mBytesSent = 0;
+        mBytesReceived = 0;
+    }
 }
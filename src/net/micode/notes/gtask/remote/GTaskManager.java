@@ -22,12 +22,15 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.net.Uri;
 import android.util.Log;
 
 import net.micode.notes.R;
+import net.micode.notes.data.NoteRevisions;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.OutboxColumns;
 import net.micode.notes.gtask.data.MetaData;
 import net.micode.notes.gtask.data.Node;
 import net.micode.notes.gtask.data.SqlNote;
@@ -62,6 +65,34 @@ public class GTaskManager {
 
     public static final int STATE_SYNC_CANCELLED = 4;
 
+    private static final int MAX_LOST_RACE_ROUNDS = 2;
+
+    /**
+     * Every query reads its notes at one point in time, see {@link Notes#PARAM_SNAPSHOT}.
+     * Each snapshot covers only its own query, the queries of one phase and the data rows
+     * read later may see later edits. A note edited after it was read has a new version and
+     * its write-back is dropped, see {@link #commitOrRecordLostRace}
+     */
+    private static final Uri SNAPSHOT_NOTE_URI = Notes.CONTENT_NOTE_URI.buildUpon()
+            .appendQueryParameter(Notes.PARAM_SNAPSHOT, "true").build();
+
+    /**
+     * What tells whether a note without local changes has changed remotely, also enough to
+     * refresh the sync ids. A local change that was not queued, e.g. one that kept the modified
+     * date, is still caught by the local modified flag
+     */
+    private static final String[] PROJECTION_RECONCILE = new String[] {
+            NoteColumns.ID, NoteColumns.GTASK_ID, NoteColumns.SYNC_ID, NoteColumns.LOCAL_MODIFIED
+    };
+
+    private static final int RECONCILE_ID_COLUMN = 0;
+
+    private static final int RECONCILE_GTASK_ID_COLUMN = 1;
+
+    private static final int RECONCILE_SYNC_ID_COLUMN = 2;
+
+    private static final int RECONCILE_LOCAL_MODIFIED_COLUMN = 3;
+
     private static GTaskManager mInstance = null;
 
     private Activity mActivity;
@@ -88,6 +119,16 @@ public class GTaskManager {
 
     private HashMap<Long, String> mNidToGid;
 
+    private GTaskSyncReport mReport;
+
+    private GTaskOutbox mOutbox;
+
+    private HashMap<Long, Node> mLostRaceNodes;
+
+    private long mOutboxEnd;
+
+    private NoteRevisions mRevisions;
+
     private GTaskManager() {
         mSyncing = false;
         mCancelled = false;
@@ -98,6 +139,7 @@ public class GTaskManager {
         mLocalDeleteIdMap = new HashSet<Long>();
         mGidToNid = new HashMap<String, Long>();
         mNidToGid = new HashMap<Long, String>();
+        mLostRaceNodes = new HashMap<Long, Node>();
     }
 
     public static synchronized GTaskManager getInstance() {
@@ -119,7 +161,12 @@ public class GTaskManager {
             return STATE_SYNC_IN_PROGRESS;
         }
         mContext = context;
+        mReport = new GTaskSyncReport();
         mContentResolver = mContext.getContentResolver();
+        mOutbox = new GTaskOutbox(mContentResolver);
+        mRevisions = new NoteRevisions(mContentResolver);
+        // operations queued while this sync runs are left for the next one
+        mOutboxEnd = mOutbox.getLastId();
         mSyncing = true;
         mCancelled = false;
         mGTaskListHashMap.clear();
@@ -128,46 +175,70 @@ public class GTaskManager {
         mLocalDeleteIdMap.clear();
         mGidToNid.clear();
         mNidToGid.clear();
+        mLostRaceNodes.clear();
+        int state = STATE_INTERNAL_ERROR;
 
         try {
             GTaskClient client = GTaskClient.getInstance();
             client.resetUpdateArray();
+            client.resetTrafficStats();
+            client.setReport(mReport);
 
             // login google task
             if (!mCancelled) {
-                if (!client.login(mActivity)) {
+                mReport.beginPhase(GTaskSyncReport.PHASE_LOGIN);
+                if (!client.login(mContext, mActivity)) {
                     throw new NetworkFailureException("login google task failed");
                 }
+                mReport.endPhase();
             }
 
             // get the task list from google
-            asyncTask.publishProgess(mContext.getString(R.string.sync_progress_init_list));
+            publishProgress(asyncTask, R.string.sync_progress_init_list);
+            mReport.beginPhase(GTaskSyncReport.PHASE_INIT_LIST);
             initGTaskList();
+            mReport.endPhase();
 
             // do content sync work
-            asyncTask.publishProgess(mContext.getString(R.string.sync_progress_syncing));
+            publishProgress(asyncTask, R.string.sync_progress_syncing);
+            mReport.beginPhase(GTaskSyncReport.PHASE_SYNC_CONTENT);
             syncContent();
+            mReport.endPhase();
+
+            state = mCancelled ? STATE_SYNC_CANCELLED : STATE_SUCCESS;
         } catch (NetworkFailureException e) {
             Log.e(TAG, e.toString());
-            return STATE_NETWORK_ERROR;
+            state = STATE_NETWORK_ERROR;
         } catch (ActionFailureException e) {
             Log.e(TAG, e.toString());
-            return STATE_INTERNAL_ERROR;
+            state = STATE_INTERNAL_ERROR;
         } catch (Exception e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
-            return STATE_INTERNAL_ERROR;
+            state = STATE_INTERNAL_ERROR;
         } finally {
+            GTaskClient.getInstance().setReport(null);
+            mReport.finish(state, GTaskClient.getInstance());
+            GTaskSyncReport.save(mContext, mReport);
+            Log.d(TAG, "sync report: " + mReport.toString());
             mGTaskListHashMap.clear();
             mGTaskHashMap.clear();
             mMetaHashMap.clear();
             mLocalDeleteIdMap.clear();
             mGidToNid.clear();
             mNidToGid.clear();
+            mLostRaceNodes.clear();
             mSyncing = false;
         }
 
-        return mCancelled ? STATE_SYNC_CANCELLED : STATE_SUCCESS;
+        return state;
+    }
+
+    private void publishProgress(GTaskASyncTask asyncTask, int resId) {
+        // the benchmark drives sync without a task, so there is nobody to notify
+        if (asyncTask != null) {
+            asyncTask.publishProgess(mContext.getString(resId));
+        }
     }
 
     private void initGTaskList() throws NetworkFailureException {
@@ -250,7 +321,6 @@ public class GTaskManager {
     }
 
     private void syncContent() throws NetworkFailureException {
-        int syncType;
         Cursor c = null;
         String gid;
         Node node;
@@ -263,7 +333,7 @@ public class GTaskManager {
 
         // for local deleted note
         try {
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+            c = mContentResolver.query(SNAPSHOT_NOTE_URI, SqlNote.PROJECTION_NOTE,
                     "(type<>? AND parent_id=?)", new String[] {
                             String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, null);
@@ -289,44 +359,85 @@ public class GTaskManager {
         }
 
         // sync folder first
+        mReport.beginPhase(GTaskSyncReport.PHASE_SYNC_FOLDER);
         syncFolder();
+        mReport.endPhase();
+
+        // push the queued local changes first, a batch at a time. Every batch is
+        // committed and taken off the outbox before the next one is read
+        HashSet<Long> visited = new HashSet<Long>();
+        long outboxPosition = 0;
+        while (!mCancelled) {
+            GTaskOutbox.Batch batch = mOutbox.nextBatch(outboxPosition, mOutboxEnd,
+                    GTaskOutbox.DEFAULT_BATCH_SIZE);
+            if (batch.isEmpty()) {
+                break;
+            }
+            outboxPosition = batch.lastId;
+            try {
+                c = mContentResolver.query(SNAPSHOT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+                        "(type<>? AND _id IN (" + batch.getNoteIdsAsSelection() + "))",
+                        new String[] {
+                            String.valueOf(Notes.TYPE_SYSTEM)
+                        }, null);
+                if (c != null) {
+                    while (c.moveToNext()) {
+                        if (visited.add(c.getLong(SqlNote.ID_COLUMN))) {
+                            syncQueuedNote(batch, c);
+                        }
+                    }
+                } else {
+                    Log.w(TAG, "failed to query queued notes in database");
+                }
+            } finally {
+                if (c != null) {
+                    c.close();
+                    c = null;
+                }
+            }
 
-        // for note existing in database
+            if (!mCancelled) {
+                GTaskClient.getInstance().commitUpdate();
+                mOutbox.acknowledge(batch);
+            }
+        }
+
+        // the other notes should have no local changes, only those changed or deleted
+        // remotely or still flagged as locally modified are read in full and synced
+        HashSet<Long> changed = new HashSet<Long>();
         try {
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+            c = mContentResolver.query(SNAPSHOT_NOTE_URI, PROJECTION_RECONCILE,
                     "(type=? AND parent_id<>?)", new String[] {
                             String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
-                    }, NoteColumns.TYPE + " DESC");
+                    }, null);
             if (c != null) {
                 while (c.moveToNext()) {
-                    gid = c.getString(SqlNote.GTASK_ID_COLUMN);
+                    long id = c.getLong(RECONCILE_ID_COLUMN);
+                    if (visited.contains(id)) {
+                        continue;
+                    }
+                    gid = c.getString(RECONCILE_GTASK_ID_COLUMN);
                     node = mGTaskHashMap.get(gid);
-                    if (node != null) {
+                    if (node != null && c.getInt(RECONCILE_LOCAL_MODIFIED_COLUMN) == 0
+                            && node.getLastModified() == c.getLong(RECONCILE_SYNC_ID_COLUMN)) {
                         mGTaskHashMap.remove(gid);
-                        mGidToNid.put(gid, c.getLong(SqlNote.ID_COLUMN));
-                        mNidToGid.put(c.getLong(SqlNote.ID_COLUMN), gid);
-                        syncType = node.getSyncAction(c);
+                        mGidToNid.put(gid, id);
+                        mNidToGid.put(id, gid);
+                        mReport.incSkipped();
                     } else {
-                        if (c.getString(SqlNote.GTASK_ID_COLUMN).trim().length() == 0) {
-                            // local add
-                            syncType = Node.SYNC_ACTION_ADD_REMOTE;
-                        } else {
-                            // remote delete
-                            syncType = Node.SYNC_ACTION_DEL_LOCAL;
-                        }
+                        changed.add(id);
                     }
-                    doContentSync(syncType, node, c);
                 }
             } else {
                 Log.w(TAG, "failed to query existing note in database");
             }
-
         } finally {
             if (c != null) {
                 c.close();
                 c = null;
             }
         }
+        syncExistingNotes(changed);
 
         // go through remaining items
         Iterator<Map.Entry<String, Node>> iter = mGTaskHashMap.entrySet().iterator();
@@ -336,6 +447,9 @@ public class GTaskManager {
             doContentSync(Node.SYNC_ACTION_ADD_LOCAL, node, null);
         }
 
+        // redo the notes whose write-back was dropped because they were edited meanwhile
+        retryLostRaces();
+
         // mCancelled can be set by another thread, so we neet to check one by
         // one
         // clear local delete table
@@ -348,9 +462,106 @@ public class GTaskManager {
         // refresh local sync id
         if (!mCancelled) {
             GTaskClient.getInstance().commitUpdate();
+            mReport.beginPhase(GTaskSyncReport.PHASE_REFRESH_SYNC_ID);
             refreshLocalSyncId();
+            mReport.endPhase();
+
+            // everything queued before this sync started is on the server now
+            mOutbox.acknowledgeUpTo(mOutboxEnd);
+        }
+
+    }
+
+    private void syncExistingNote(Cursor c) throws NetworkFailureException {
+        int syncType;
+        String gid = c.getString(SqlNote.GTASK_ID_COLUMN);
+        Node node = mGTaskHashMap.get(gid);
+        if (node != null) {
+            mGTaskHashMap.remove(gid);
+            mGidToNid.put(gid, c.getLong(SqlNote.ID_COLUMN));
+            mNidToGid.put(c.getLong(SqlNote.ID_COLUMN), gid);
+            syncType = node.getSyncAction(c);
+        } else {
+            if (gid.trim().length() == 0) {
+                // local add
+                syncType = Node.SYNC_ACTION_ADD_REMOTE;
+            } else {
+                // remote delete
+                syncType = Node.SYNC_ACTION_DEL_LOCAL;
+            }
+        }
+        doContentSync(syncType, node, c);
+    }
+
+    /**
+     * Push a note taken from the outbox. Folders were pushed by {@link #syncFolder()}, which
+     * walks all of them for the parent mapping anyway, and notes in the trash were deleted
+     * remotely before
+     */
+    private void syncQueuedNote(GTaskOutbox.Batch batch, Cursor c)
+            throws NetworkFailureException {
+        if (c.getInt(SqlNote.TYPE_COLUMN) != Notes.TYPE_NOTE
+                || c.getLong(SqlNote.PARENT_ID_COLUMN) == Notes.ID_TRASH_FOLER) {
+            return;
+        }
+        long id = c.getLong(SqlNote.ID_COLUMN);
+        String gid = c.getString(SqlNote.GTASK_ID_COLUMN);
+        Node node = mGTaskHashMap.get(gid);
+        if (node == null || !batch.isMoveOnly(id)) {
+            // created, edited or back from the trash, the whole note has to be pushed
+            syncExistingNote(c);
+            return;
+        }
+
+        mGTaskHashMap.remove(gid);
+        mGidToNid.put(gid, id);
+        mNidToGid.put(id, gid);
+        int syncType = node.getSyncAction(c);
+        if (syncType == Node.SYNC_ACTION_UPDATE_REMOTE) {
+            // the task on the server only has to change its list
+            countSyncAction(syncType);
+            updateRemoteNode(node, c, false);
+        } else {
+            doContentSync(syncType, node, c);
         }
+    }
+
+    /**
+     * Sync the notes {@code ids} reading them in batches
+     */
+    private void syncExistingNotes(HashSet<Long> ids) throws NetworkFailureException {
+        Iterator<Long> iter = ids.iterator();
+        while (iter.hasNext() && !mCancelled) {
+            StringBuilder selection = new StringBuilder();
+            for (int i = 0; i < GTaskOutbox.DEFAULT_BATCH_SIZE && iter.hasNext(); i++) {
+                if (selection.length() > 0) {
+                    selection.append(',');
+                }
+                selection.append(iter.next());
+            }
 
+            Cursor c = null;
+            try {
+                c = mContentResolver.query(SNAPSHOT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+                        "(type=? AND parent_id<>? AND _id IN (" + selection.toString() + "))",
+                        new String[] {
+                                String.valueOf(Notes.TYPE_NOTE),
+                                String.valueOf(Notes.ID_TRASH_FOLER)
+                        }, null);
+                if (c != null) {
+                    while (c.moveToNext()) {
+                        syncExistingNote(c);
+                    }
+                } else {
+                    Log.w(TAG, "failed to query existing note in database");
+                }
+            } finally {
+                if (c != null) {
+                    c.close();
+                    c = null;
+                }
+            }
+        }
     }
 
     private void syncFolder() throws NetworkFailureException {
@@ -394,7 +605,7 @@ public class GTaskManager {
 
         // for call-note folder
         try {
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE, "(_id=?)",
+            c = mContentResolver.query(SNAPSHOT_NOTE_URI, SqlNote.PROJECTION_NOTE, "(_id=?)",
                     new String[] {
                         String.valueOf(Notes.ID_CALL_RECORD_FOLDER)
                     }, null);
@@ -428,7 +639,7 @@ public class GTaskManager {
 
         // for local existing folders
         try {
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+            c = mContentResolver.query(SNAPSHOT_NOTE_URI, SqlNote.PROJECTION_NOTE,
                     "(type=? AND parent_id<>?)", new String[] {
                             String.valueOf(Notes.TYPE_FOLDER), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, NoteColumns.TYPE + " DESC");
@@ -474,15 +685,27 @@ public class GTaskManager {
             }
         }
 
-        if (!mCancelled)
+        if (!mCancelled) {
             GTaskClient.getInstance().commitUpdate();
+        }
     }
 
     private void doContentSync(int syncType, Node node, Cursor c) throws NetworkFailureException {
+        doContentSync(syncType, node, c, true);
+    }
+
+    /**
+     * @param count false when a note is synced again, it is in the report already
+     */
+    private void doContentSync(int syncType, Node node, Cursor c, boolean count)
+            throws NetworkFailureException {
         if (mCancelled) {
             return;
         }
 
+        if (count) {
+            countSyncAction(syncType);
+        }
         MetaData meta;
         switch (syncType) {
             case Node.SYNC_ACTION_ADD_LOCAL:
@@ -513,7 +736,12 @@ public class GTaskManager {
                 break;
             case Node.SYNC_ACTION_UPDATE_CONFLICT:
                 // merging both modifications maybe a good idea
-                // right now just use local update simply
+                // right now just use local update simply, the remote text is kept in the
+                // revision history so that it can still be restored
+                if (node instanceof Task) {
+                    mRevisions.record(c.getLong(SqlNote.ID_COLUMN), ((Task) node).getName(),
+                            Notes.REVISION_REASON_CONFLICT);
+                }
                 updateRemoteNode(node, c);
                 break;
             case Node.SYNC_ACTION_NONE:
@@ -524,6 +752,32 @@ public class GTaskManager {
         }
     }
 
+    private void countSyncAction(int syncType) {
+        switch (syncType) {
+            case Node.SYNC_ACTION_ADD_LOCAL:
+            case Node.SYNC_ACTION_UPDATE_LOCAL:
+                mReport.incPulled();
+                break;
+            case Node.SYNC_ACTION_UPDATE_CONFLICT:
+                mReport.incConflicts();
+                mReport.incPushed();
+                break;
+            case Node.SYNC_ACTION_ADD_REMOTE:
+            case Node.SYNC_ACTION_UPDATE_REMOTE:
+                mReport.incPushed();
+                break;
+            case Node.SYNC_ACTION_DEL_LOCAL:
+            case Node.SYNC_ACTION_DEL_REMOTE:
+                mReport.incDeleted();
+                break;
+            case Node.SYNC_ACTION_NONE:
+                mReport.incSkipped();
+                break;
+            default:
+                break;
+        }
+    }
+
     private void addLocalNode(Node node) throws NetworkFailureException {
         if (mCancelled) {
             return;
@@ -615,7 +869,7 @@ public class GTaskManager {
             throw new ActionFailureException("cannot update local node");
         }
         sqlNote.setParentId(parentId.longValue());
-        sqlNote.commit(true);
+        commitOrRecordLostRace(sqlNote, node);
 
         // update meta info
         updateRemoteMeta(node.getGid(), sqlNote);
@@ -687,7 +941,7 @@ public class GTaskManager {
         sqlNote.setGtaskId(n.getGid());
         sqlNote.commit(false);
         sqlNote.resetLocalModified();
-        sqlNote.commit(true);
+        commitOrRecordLostRace(sqlNote, n);
 
         // gid-id mapping
         mGidToNid.put(n.getGid(), sqlNote.getId());
@@ -695,6 +949,14 @@ public class GTaskManager {
     }
 
     private void updateRemoteNode(Node node, Cursor c) throws NetworkFailureException {
+        updateRemoteNode(node, c, true);
+    }
+
+    /**
+     * @param withContent false if the note was only moved, then the task is just moved
+     */
+    private void updateRemoteNode(Node node, Cursor c, boolean withContent)
+            throws NetworkFailureException {
         if (mCancelled) {
             return;
         }
@@ -702,8 +964,10 @@ public class GTaskManager {
         SqlNote sqlNote = new SqlNote(mContext, c);
 
         // update remotely
-        node.setContentByLocalJSON(sqlNote.getContent());
-        GTaskClient.getInstance().addUpdateNode(node);
+        if (withContent) {
+            node.setContentByLocalJSON(sqlNote.getContent());
+            GTaskClient.getInstance().addUpdateNode(node);
+        }
 
         // update meta
         updateRemoteMeta(node.getGid(), sqlNote);
@@ -729,7 +993,67 @@ public class GTaskManager {
 
         // clear local modified flag
         sqlNote.resetLocalModified();
-        sqlNote.commit(true);
+        commitOrRecordLostRace(sqlNote, node);
+    }
+
+    /**
+     * The note may be edited while we are syncing it, in that case the version checked
+     * write is dropped and the note is remembered for {@link #retryLostRaces()}
+     */
+    private void commitOrRecordLostRace(SqlNote sqlNote, Node node) {
+        if (!sqlNote.commit(true)) {
+            mLostRaceNodes.put(sqlNote.getId(), node);
+            mReport.incLostRaces();
+        }
+    }
+
+    /**
+     * Sync again only the notes which lost the race against a local edit, reading them
+     * fresh. What still loses after a few rounds is queued in the outbox for the next sync
+     */
+    private void retryLostRaces() throws NetworkFailureException {
+        for (int round = 0; round < MAX_LOST_RACE_ROUNDS && !mLostRaceNodes.isEmpty(); round++) {
+            HashMap<Long, Node> pending = new HashMap<Long, Node>(mLostRaceNodes);
+            mLostRaceNodes.clear();
+
+            StringBuilder ids = new StringBuilder();
+            for (Long id : pending.keySet()) {
+                if (ids.length() > 0) {
+                    ids.append(',');
+                }
+                ids.append(id);
+            }
+
+            Cursor c = null;
+            try {
+                c = mContentResolver.query(SNAPSHOT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+                        "(parent_id<>? AND _id IN (" + ids.toString() + "))", new String[] {
+                            String.valueOf(Notes.ID_TRASH_FOLER)
+                        }, null);
+                if (c == null) {
+                    Log.w(TAG, "failed to query notes which lost the race");
+                    break;
+                }
+                while (c.moveToNext() && !mCancelled) {
+                    Node node = pending.get(c.getLong(SqlNote.ID_COLUMN));
+                    doContentSync(node.getSyncAction(c), node, c, false);
+                }
+            } finally {
+                if (c != null) {
+                    c.close();
+                    c = null;
+                }
+            }
+        }
+
+        for (Long id : mLostRaceNodes.keySet()) {
+            Log.w(TAG, "note " + id + " keeps changing, leave it for the next sync");
+            ContentValues values = new ContentValues();
+            values.put(OutboxColumns.NOTE_ID, id);
+            values.put(OutboxColumns.OPERATION, Notes.OUTBOX_OP_UPDATE);
+            mContentResolver.insert(Notes.CONTENT_OUTBOX_URI, values);
+        }
+        mLostRaceNodes.clear();
     }
 
     private void updateRemoteMeta(String gid, SqlNote sqlNote) throws NetworkFailureException {
@@ -761,20 +1085,20 @@ public class GTaskManager {
 
         Cursor c = null;
         try {
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+            c = mContentResolver.query(SNAPSHOT_NOTE_URI, PROJECTION_RECONCILE,
                     "(type<>? AND parent_id<>?)", new String[] {
                             String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
-                    }, NoteColumns.TYPE + " DESC");
+                    }, null);
             if (c != null) {
                 while (c.moveToNext()) {
-                    String gid = c.getString(SqlNote.GTASK_ID_COLUMN);
+                    String gid = c.getString(RECONCILE_GTASK_ID_COLUMN);
                     Node node = mGTaskHashMap.get(gid);
                     if (node != null) {
                         mGTaskHashMap.remove(gid);
                         ContentValues values = new ContentValues();
                         values.put(NoteColumns.SYNC_ID, node.getLastModified());
                         mContentResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
-                                c.getLong(SqlNote.ID_COLUMN)), values, null, null);
+                                c.getLong(RECONCILE_ID_COLUMN)), values, null, null);
                     } else {
                         Log.e(TAG, "something is missed");
                         throw new ActionFailureException(
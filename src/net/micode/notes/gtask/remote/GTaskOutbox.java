@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.OutboxColumns;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Reads the pending remote operations queued by the database triggers. The operations of
+ * the same note are gathered, so the sync can tell e.g. a plain move from an edit.
+ */
+public class GTaskOutbox {
+    private static final String TAG = GTaskOutbox.class.getSimpleName();
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    private static final String[] PROJECTION = new String[] {
+            OutboxColumns.ID, OutboxColumns.NOTE_ID, OutboxColumns.OPERATION
+    };
+
+    private static final int ID_COLUMN = 0;
+
+    private static final int NOTE_ID_COLUMN = 1;
+
+    private static final int OPERATION_COLUMN = 2;
+
+    public static class Batch {
+        /**
+         * The operations queued for every note, a bit {@code 1 << operation} each, in the
+         * order the notes were first queued
+         */
+        public final LinkedHashMap<Long, Integer> operations = new LinkedHashMap<Long, Integer>();
+
+        /**
+         * The largest outbox row id read into this batch
+         */
+        public long lastId;
+
+        public boolean isEmpty() {
+            return operations.isEmpty();
+        }
+
+        /**
+         * @return whether the note was only moved, its content still is the one on the server
+         */
+        public boolean isMoveOnly(long noteId) {
+            Integer operation = operations.get(noteId);
+            return operation != null && operation == 1 << Notes.OUTBOX_OP_MOVE;
+        }
+
+        public String getNoteIdsAsSelection() {
+            StringBuilder sb = new StringBuilder();
+            for (Long id : operations.keySet()) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(id);
+            }
+            return sb.toString();
+        }
+    }
+
+    private final ContentResolver mContentResolver;
+
+    public GTaskOutbox(ContentResolver resolver) {
+        mContentResolver = resolver;
+    }
+
+    public static boolean hasPending(ContentResolver resolver) {
+        Cursor c = resolver.query(Notes.CONTENT_OUTBOX_URI.buildUpon()
+                .appendQueryParameter(Notes.PARAM_LIMIT, "1").build(), new String[] {
+                OutboxColumns.ID
+        }, null, null, null);
+        if (c == null) {
+            return false;
+        }
+        try {
+            return c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return the largest row id queued so far, 0 if the outbox is empty
+     */
+    public long getLastId() {
+        Cursor c = mContentResolver.query(Notes.CONTENT_OUTBOX_URI.buildUpon()
+                .appendQueryParameter(Notes.PARAM_LIMIT, "1").build(), new String[] {
+                OutboxColumns.ID
+        }, null, null, OutboxColumns.ID + " DESC");
+        if (c == null) {
+            return 0;
+        }
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Read the operations queued after {@code afterId} up to {@code untilId}, at most
+     * {@code limit} rows at a time
+     */
+    public Batch nextBatch(long afterId, long untilId, int limit) {
+        Batch batch = new Batch();
+        batch.lastId = afterId;
+        Cursor c = mContentResolver.query(Notes.CONTENT_OUTBOX_URI.buildUpon()
+                .appendQueryParameter(Notes.PARAM_LIMIT, String.valueOf(limit)).build(),
+                PROJECTION, OutboxColumns.ID + ">? AND " + OutboxColumns.ID + "<=?",
+                new String[] {
+                        String.valueOf(afterId), String.valueOf(untilId)
+                }, OutboxColumns.ID + " ASC");
+        if (c == null) {
+            Log.w(TAG, "failed to query outbox");
+            return batch;
+        }
+        try {
+            while (c.moveToNext()) {
+                long noteId = c.getLong(NOTE_ID_COLUMN);
+                Integer previous = batch.operations.get(noteId);
+                batch.operations.put(noteId, (previous != null ? previous : 0)
+                        | 1 << c.getInt(OPERATION_COLUMN));
+                batch.lastId = c.getLong(ID_COLUMN);
+            }
+        } finally {
+            c.close();
+        }
+        return batch;
+    }
+
+    /**
+     * Remove the operations of the batch, operations queued again meanwhile are kept
+     */
+    public void acknowledge(Batch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        mContentResolver.delete(Notes.CONTENT_OUTBOX_URI, OutboxColumns.ID + "<=? AND "
+                + OutboxColumns.NOTE_ID + " IN (" + batch.getNoteIdsAsSelection() + ")",
+                new String[] {
+                    String.valueOf(batch.lastId)
+                });
+    }
+
+    /**
+     * Remove every operation queued up to {@code untilId}
+     */
+    public void acknowledgeUpTo(long untilId) {
+        mContentResolver.delete(Notes.CONTENT_OUTBOX_URI, OutboxColumns.ID + "<=?",
+                new String[] {
+                    String.valueOf(untilId)
+                });
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+/**
+ * Drains the outbox once the network comes back, if there is anything to push
+ */
+public class GTaskOutboxReceiver extends BroadcastReceiver {
+    private static final String TAG = GTaskOutboxReceiver.class.getSimpleName();
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())) {
+            return;
+        }
+
+        ConnectivityManager cm = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) {
+            return;
+        }
+
+        if (TextUtils.isEmpty(NotesPreferenceActivity.getSyncAccountName(context))
+                || GTaskSyncService.isSyncing()) {
+            return;
+        }
+
+        if (GTaskOutbox.hasPending(context.getContentResolver())) {
+            Log.d(TAG, "network is back, push pending changes");
+            GTaskSyncService.startBackgroundSync(context);
+        }
+    }
+}
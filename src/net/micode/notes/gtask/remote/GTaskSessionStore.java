@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.Base64;
+import android.util.Log;
+
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keeps the gtask web session (auth cookies, client version and endpoint) in the app
+ * private preferences, so a new process can reuse it instead of logging in again. The
+ * auth token itself is never stored, only the cookies the server handed out for it. The
+ * cookies are encrypted with a key kept in a directory that backups leave out, so a backup
+ * of the preferences carries no usable session.
+ */
+public class GTaskSessionStore {
+    private static final String TAG = GTaskSessionStore.class.getSimpleName();
+
+    private static final String PREFERENCE_NAME = "gtask_session";
+
+    private static final String KEY_FILE_NAME = "gtask_session.key";
+
+    private static final String CIPHER = "AES/CBC/PKCS5Padding";
+
+    private static final int KEY_LENGTH = 16;
+
+    private static final int IV_LENGTH = 16;
+
+    private static final String KEY_ACCOUNT = "account";
+
+    private static final String KEY_GET_URL = "get_url";
+
+    private static final String KEY_POST_URL = "post_url";
+
+    private static final String KEY_CLIENT_VERSION = "client_version";
+
+    private static final String KEY_COOKIES = "cookies";
+
+    private static final String COOKIE_NAME = "name";
+
+    private static final String COOKIE_VALUE = "value";
+
+    private static final String COOKIE_DOMAIN = "domain";
+
+    private static final String COOKIE_PATH = "path";
+
+    private static final String COOKIE_EXPIRY = "expiry";
+
+    private static final String COOKIE_SECURE = "secure";
+
+    private static final String COOKIE_VERSION = "version";
+
+    public static class Session {
+        public final String accountName;
+
+        public final String getUrl;
+
+        public final String postUrl;
+
+        public final long clientVersion;
+
+        public final BasicCookieStore cookieStore;
+
+        Session(String accountName, String getUrl, String postUrl, long clientVersion,
+                BasicCookieStore cookieStore) {
+            this.accountName = accountName;
+            this.getUrl = getUrl;
+            this.postUrl = postUrl;
+            this.clientVersion = clientVersion;
+            this.cookieStore = cookieStore;
+        }
+    }
+
+    public static synchronized void save(Context context, String accountName, String getUrl,
+            String postUrl, long clientVersion, List<Cookie> cookies) {
+        JSONArray jsCookies = new JSONArray();
+        try {
+            for (Cookie cookie : cookies) {
+                JSONObject js = new JSONObject();
+                js.put(COOKIE_NAME, cookie.getName());
+                js.put(COOKIE_VALUE, cookie.getValue());
+                js.put(COOKIE_DOMAIN, cookie.getDomain());
+                js.put(COOKIE_PATH, cookie.getPath());
+                if (cookie.getExpiryDate() != null) {
+                    js.put(COOKIE_EXPIRY, cookie.getExpiryDate().getTime());
+                }
+                js.put(COOKIE_SECURE, cookie.isSecure());
+                js.put(COOKIE_VERSION, cookie.getVersion());
+                jsCookies.put(js);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            return;
+        }
+
+        if (jsCookies.length() == 0) {
+            clear(context);
+            return;
+        }
+
+        String encrypted = encrypt(context, jsCookies.toString());
+        if (encrypted == null) {
+            clear(context);
+            return;
+        }
+
+        SharedPreferences.Editor editor = getPreferences(context).edit();
+        editor.putString(KEY_ACCOUNT, accountName);
+        editor.putString(KEY_GET_URL, getUrl);
+        editor.putString(KEY_POST_URL, postUrl);
+        editor.putLong(KEY_CLIENT_VERSION, clientVersion);
+        editor.putString(KEY_COOKIES, encrypted);
+        editor.commit();
+    }
+
+    /**
+     * @return the stored session of the given account, or null if there is none, it cannot
+     *         be decrypted (e.g. restored from a backup) or all of its cookies have expired
+     */
+    public static synchronized Session restore(Context context, String accountName) {
+        SharedPreferences settings = getPreferences(context);
+        if (TextUtils.isEmpty(accountName)
+                || !accountName.equals(settings.getString(KEY_ACCOUNT, null))) {
+            return null;
+        }
+
+        String cookies = decrypt(context, settings.getString(KEY_COOKIES, null));
+        if (cookies == null) {
+            Log.w(TAG, "drop session that cannot be decrypted");
+            clear(context);
+            return null;
+        }
+
+        BasicCookieStore cookieStore = new BasicCookieStore();
+        try {
+            JSONArray jsCookies = new JSONArray(cookies);
+            for (int i = 0; i < jsCookies.length(); i++) {
+                JSONObject js = jsCookies.getJSONObject(i);
+                BasicClientCookie cookie = new BasicClientCookie(js.getString(COOKIE_NAME),
+                        js.getString(COOKIE_VALUE));
+                cookie.setDomain(js.optString(COOKIE_DOMAIN, null));
+                cookie.setPath(js.optString(COOKIE_PATH, null));
+                if (js.has(COOKIE_EXPIRY)) {
+                    cookie.setExpiryDate(new Date(js.getLong(COOKIE_EXPIRY)));
+                }
+                cookie.setSecure(js.getBoolean(COOKIE_SECURE));
+                cookie.setVersion(js.getInt(COOKIE_VERSION));
+                cookieStore.addCookie(cookie);
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "drop unreadable session: " + e.toString());
+            clear(context);
+            return null;
+        }
+
+        cookieStore.clearExpired(new Date());
+        if (cookieStore.getCookies().isEmpty()) {
+            return null;
+        }
+        return new Session(accountName, settings.getString(KEY_GET_URL, null),
+                settings.getString(KEY_POST_URL, null), settings.getLong(KEY_CLIENT_VERSION, -1),
+                cookieStore);
+    }
+
+    public static synchronized void clear(Context context) {
+        SharedPreferences.Editor editor = getPreferences(context).edit();
+        editor.clear();
+        editor.commit();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the key file, in a directory neither adb backup nor auto backup copies
+     */
+    private static File getKeyFile(Context context) {
+        File dir = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                ? context.getNoBackupFilesDir() : context.getCacheDir();
+        return new File(dir, KEY_FILE_NAME);
+    }
+
+    private static byte[] readKey(Context context, boolean create) {
+        File file = getKeyFile(context);
+        byte[] key = new byte[KEY_LENGTH];
+        if (file.length() == KEY_LENGTH) {
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                int read = 0;
+                while (read < KEY_LENGTH) {
+                    int n = in.read(key, read, KEY_LENGTH - read);
+                    if (n < 0) {
+                        break;
+                    }
+                    read += n;
+                }
+                if (read == KEY_LENGTH) {
+                    return key;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "read session key failed: " + e.toString());
+            } finally {
+                close(in);
+            }
+        }
+        if (!create) {
+            return null;
+        }
+
+        new SecureRandom().nextBytes(key);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(key);
+            return key;
+        } catch (IOException e) {
+            Log.e(TAG, "write session key failed: " + e.toString());
+            return null;
+        } finally {
+            close(out);
+        }
+    }
+
+    private static String encrypt(Context context, String text) {
+        byte[] key = readKey(context, true);
+        if (key == null) {
+            return null;
+        }
+        try {
+            byte[] iv = new byte[IV_LENGTH];
+            new SecureRandom().nextBytes(iv);
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"),
+                    new IvParameterSpec(iv));
+            byte[] encrypted = cipher.doFinal(text.getBytes("UTF-8"));
+            byte[] data = new byte[IV_LENGTH + encrypted.length];
+            System.arraycopy(iv, 0, data, 0, IV_LENGTH);
+            System.arraycopy(encrypted, 0, data, IV_LENGTH, encrypted.length);
+            return Base64.encodeToString(data, Base64.NO_WRAP);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "encrypt session failed: " + e.toString());
+        } catch (IOException e) {
+            Log.e(TAG, "encrypt session failed: " + e.toString());
+        }
+        return null;
+    }
+
+    private static String decrypt(Context context, String text) {
+        byte[] key = text != null ? readKey(context, false) : null;
+        if (key == null) {
+            return null;
+        }
+        try {
+            byte[] data = Base64.decode(text, Base64.NO_WRAP);
+            if (data.length <= IV_LENGTH) {
+                return null;
+            }
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"),
+                    new IvParameterSpec(data, 0, IV_LENGTH));
+            return new String(cipher.doFinal(data, IV_LENGTH, data.length - IV_LENGTH), "UTF-8");
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "decrypt session failed: " + e.toString());
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "decrypt session failed: " + e.toString());
+        } catch (IOException e) {
+            Log.w(TAG, "decrypt session failed: " + e.toString());
+        }
+        return null;
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.w(TAG, e.toString());
+            }
+        }
+    }
+}
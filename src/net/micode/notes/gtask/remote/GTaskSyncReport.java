@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.text.format.DateFormat;
+import android.text.format.Formatter;
+import android.util.Log;
+
+import net.micode.notes.R;
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timings and counters of one sync run. Phases may nest (syncFolder runs inside
+ * syncContent), the time of a nested phase is not counted again for its parent.
+ */
+public class GTaskSyncReport {
+    private static final String TAG = GTaskSyncReport.class.getSimpleName();
+
+    public static final String PHASE_LOGIN = "login";
+
+    public static final String PHASE_INIT_LIST = "initGTaskList";
+
+    public static final String PHASE_SYNC_FOLDER = "syncFolder";
+
+    public static final String PHASE_SYNC_CONTENT = "syncContent";
+
+    public static final String PHASE_COMMIT_UPDATE = "commitUpdate";
+
+    public static final String PHASE_REFRESH_SYNC_ID = "refreshLocalSyncId";
+
+    private static final String PREFERENCE_SYNC_REPORTS = "pref_sync_reports";
+
+    private static final int MAX_REPORTS = 5;
+
+    private static final String KEY_TIME = "time";
+
+    private static final String KEY_STATE = "state";
+
+    private static final String KEY_DURATION = "duration";
+
+    private static final String KEY_PHASES = "phases";
+
+    private static final String KEY_REQUESTS = "requests";
+
+    private static final String KEY_BYTES_SENT = "bytes_sent";
+
+    private static final String KEY_BYTES_RECEIVED = "bytes_received";
+
+    private static final String KEY_PUSHED = "pushed";
+
+    private static final String KEY_PULLED = "pulled";
+
+    private static final String KEY_DELETED = "deleted";
+
+    private static final String KEY_SKIPPED = "skipped";
+
+    private static final String KEY_CONFLICTS = "conflicts";
+
+    private static final String KEY_LOST_RACES = "lost_races";
+
+    private long mTime;
+
+    private long mStartClock;
+
+    private long mDuration;
+
+    private int mState;
+
+    private final LinkedHashMap<String, Long> mPhaseTimes;
+
+    private final ArrayList<String> mPhaseStack;
+
+    private long mPhaseClock;
+
+    private int mRequests;
+
+    private long mBytesSent;
+
+    private long mBytesReceived;
+
+    private int mPushed;
+
+    private int mPulled;
+
+    private int mDeleted;
+
+    private int mSkipped;
+
+    private int mConflicts;
+
+    private int mLostRaces;
+
+    public GTaskSyncReport() {
+        mTime = System.currentTimeMillis();
+        mStartClock = SystemClock.elapsedRealtime();
+        mPhaseClock = mStartClock;
+        mPhaseTimes = new LinkedHashMap<String, Long>();
+        mPhaseStack = new ArrayList<String>();
+    }
+
+    public void beginPhase(String phase) {
+        chargeCurrentPhase();
+        mPhaseStack.add(phase);
+    }
+
+    public void endPhase() {
+        chargeCurrentPhase();
+        if (!mPhaseStack.isEmpty()) {
+            mPhaseStack.remove(mPhaseStack.size() - 1);
+        }
+    }
+
+    private void chargeCurrentPhase() {
+        long now = SystemClock.elapsedRealtime();
+        if (!mPhaseStack.isEmpty()) {
+            String phase = mPhaseStack.get(mPhaseStack.size() - 1);
+            Long spent = mPhaseTimes.get(phase);
+            mPhaseTimes.put(phase, (spent != null ? spent : 0) + now - mPhaseClock);
+        }
+        mPhaseClock = now;
+    }
+
+    public void incPushed() {
+        mPushed++;
+    }
+
+    public void incPulled() {
+        mPulled++;
+    }
+
+    public void incDeleted() {
+        mDeleted++;
+    }
+
+    public void incSkipped() {
+        mSkipped++;
+    }
+
+    public void incConflicts() {
+        mConflicts++;
+    }
+
+    public void incLostRaces() {
+        mLostRaces++;
+    }
+
+    /**
+     * Close the phases left open by an exception and take the traffic numbers of the client
+     */
+    public void finish(int state, GTaskClient client) {
+        while (!mPhaseStack.isEmpty()) {
+            endPhase();
+        }
+        mState = state;
+        mDuration = SystemClock.elapsedRealtime() - mStartClock;
+        mRequests = client.getRequestCount();
+        mBytesSent = client.getBytesSent();
+        mBytesReceived = client.getBytesReceived();
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public long getDuration() {
+        return mDuration;
+    }
+
+    public long getPhaseTime(String phase) {
+        Long time = mPhaseTimes.get(phase);
+        return time != null ? time : 0;
+    }
+
+    public int getRequests() {
+        return mRequests;
+    }
+
+    public String getSummary(Context context) {
+        StringBuilder phases = new StringBuilder();
+        for (Map.Entry<String, Long> entry : mPhaseTimes.entrySet()) {
+            if (phases.length() > 0) {
+                phases.append(", ");
+            }
+            phases.append(entry.getKey()).append(' ').append(entry.getValue()).append("ms");
+        }
+        return context.getString(R.string.preferences_sync_report,
+                DateFormat.format(context.getString(R.string.preferences_last_sync_time_format),
+                        mTime), mState, mDuration, mRequests,
+                Formatter.formatShortFileSize(context, mBytesSent),
+                Formatter.formatShortFileSize(context, mBytesReceived), mPushed, mPulled,
+                mDeleted, mSkipped, mConflicts, mLostRaces, phases.toString());
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return toJSON().toString();
+        } catch (JSONException e) {
+            return super.toString();
+        }
+    }
+
+    private JSONObject toJSON() throws JSONException {
+        JSONObject js = new JSONObject();
+        js.put(KEY_TIME, mTime);
+        js.put(KEY_STATE, mState);
+        js.put(KEY_DURATION, mDuration);
+        JSONObject phases = new JSONObject();
+        for (Map.Entry<String, Long> entry : mPhaseTimes.entrySet()) {
+            phases.put(entry.getKey(), entry.getValue());
+        }
+        js.put(KEY_PHASES, phases);
+        js.put(KEY_REQUESTS, mRequests);
+        js.put(KEY_BYTES_SENT, mBytesSent);
+        js.put(KEY_BYTES_RECEIVED, mBytesReceived);
+        js.put(KEY_PUSHED, mPushed);
+        js.put(KEY_PULLED, mPulled);
+        js.put(KEY_DELETED, mDeleted);
+        js.put(KEY_SKIPPED, mSkipped);
+        js.put(KEY_CONFLICTS, mConflicts);
+        js.put(KEY_LOST_RACES, mLostRaces);
+        return js;
+    }
+
+    private static GTaskSyncReport fromJSON(JSONObject js) throws JSONException {
+        GTaskSyncReport report = new GTaskSyncReport();
+        report.mTime = js.getLong(KEY_TIME);
+        report.mState = js.getInt(KEY_STATE);
+        report.mDuration = js.getLong(KEY_DURATION);
+        JSONObject phases = js.getJSONObject(KEY_PHASES);
+        Iterator<?> keys = phases.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            report.mPhaseTimes.put(key, phases.getLong(key));
+        }
+        report.mRequests = js.getInt(KEY_REQUESTS);
+        report.mBytesSent = js.getLong(KEY_BYTES_SENT);
+        report.mBytesReceived = js.getLong(KEY_BYTES_RECEIVED);
+        report.mPushed = js.getInt(KEY_PUSHED);
+        report.mPulled = js.getInt(KEY_PULLED);
+        report.mDeleted = js.getInt(KEY_DELETED);
+        report.mSkipped = js.getInt(KEY_SKIPPED);
+        report.mConflicts = js.getInt(KEY_CONFLICTS);
+        report.mLostRaces = js.optInt(KEY_LOST_RACES);
+        return report;
+    }
+
+    /**
+     * Store the report in front of the previous ones, only the last {@link #MAX_REPORTS} are kept
+     */
+    public static synchronized void save(Context context, GTaskSyncReport report) {
+        List<GTaskSyncReport> reports = getRecentReports(context);
+        reports.add(0, report);
+        JSONArray array = new JSONArray();
+        try {
+            for (int i = 0; i < reports.size() && i < MAX_REPORTS; i++) {
+                array.put(reports.get(i).toJSON());
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            return;
+        }
+
+        SharedPreferences settings = context.getSharedPreferences(
+                NotesPreferenceActivity.PREFERENCE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putString(PREFERENCE_SYNC_REPORTS, array.toString());
+        editor.commit();
+    }
+
+    /**
+     * @return the stored reports, newest first
+     */
+    public static synchronized List<GTaskSyncReport> getRecentReports(Context context) {
+        List<GTaskSyncReport> reports = new ArrayList<GTaskSyncReport>();
+        SharedPreferences settings = context.getSharedPreferences(
+                NotesPreferenceActivity.PREFERENCE_NAME, Context.MODE_PRIVATE);
+        String stored = settings.getString(PREFERENCE_SYNC_REPORTS, null);
+        if (stored == null) {
+            return reports;
+        }
+        try {
+            JSONArray array = new JSONArray(stored);
+            for (int i = 0; i < array.length(); i++) {
+                reports.add(fromJSON(array.getJSONObject(i)));
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "drop unreadable sync reports: " + e.toString());
+            reports.clear();
+        }
+        return reports;
+    }
+
+    public static synchronized void clear(Context context) {
+        SharedPreferences settings = context.getSharedPreferences(
+                NotesPreferenceActivity.PREFERENCE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.remove(PREFERENCE_SYNC_REPORTS);
+        editor.commit();
+    }
+}
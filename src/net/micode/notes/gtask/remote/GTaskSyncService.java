@@ -23,6 +23,8 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.os.IBinder;
 
+import net.micode.notes.tool.TaskExecutor;
+
 public class GTaskSyncService extends Service {
     public final static String ACTION_STRING_NAME = "sync_action_type";
 
@@ -53,7 +55,8 @@ public class GTaskSyncService extends Service {
                 }
             });
             sendBroadcast("");
-            mSyncTask.execute();
+            mSyncTask.executeOnExecutor(TaskExecutor.getExecutor(TaskExecutor.Lane.BACKGROUND,
+                    "sync"));
         }
     }
 
@@ -115,6 +118,17 @@ public class GTaskSyncService extends Service {
         activity.startService(intent);
     }
 
+    /**
+     * Start a sync without any ui, it fails and leaves the outbox queued when the account
+     * needs the user to sign in again
+     */
+    public static void startBackgroundSync(Context context) {
+        GTaskManager.getInstance().setActivityContext(null);
+        Intent intent = new Intent(context, GTaskSyncService.class);
+        intent.putExtra(GTaskSyncService.ACTION_STRING_NAME, GTaskSyncService.ACTION_START_SYNC);
+        context.startService(intent);
+    }
+
     public static void cancelSync(Context context) {
         // 启动取消同步服务
         Intent intent = new Intent(context, GTaskSyncService.class);
@@ -18,6 +18,7 @@ package net.micode.notes.model;
 
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
@@ -25,6 +26,7 @@ import android.net.Uri;
 import android.os.RemoteException;
 import android.util.Log;
 
+import net.micode.notes.data.ContentChunks;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
 import net.micode.notes.data.Notes.DataColumns;
@@ -32,12 +34,15 @@ import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.Notes.TextNote;
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class Note {
     // 存储笔记的差异值（即修改后的数据）
     private ContentValues mNoteDiffValues;
     // 内部类，用于处理笔记的具体内容（如文本或通话数据）
     private NoteData mNoteData;
+    // 最近一次保存写入的文本内容，与待写入的修改在同一步中取出
+    private String mSavedText;
     // 日志标签
     private static final String TAG = "Note";
 
@@ -86,6 +91,90 @@ public class Note {
         return noteId;
     }
 
+    /**
+     * 在一个事务中插入新笔记及其全部数据行（文本、通话数据），只需一次 applyBatch。
+     * 成功后文本和通话数据 ID 会被记录下来，之后的修改通过 {@link #syncNote} 更新。
+     * @param context 应用上下文
+     * @param folderId 文件夹ID
+     * @return 新创建的笔记ID，失败时返回0
+     */
+    public long insertNote(Context context, long folderId) {
+        ContentValues noteValues = new ContentValues();
+        ContentValues diffValues;
+        ContentValues textValues;
+        ContentValues callValues;
+        long createdTime = System.currentTimeMillis();
+        noteValues.put(NoteColumns.CREATED_DATE, createdTime);
+        noteValues.put(NoteColumns.MODIFIED_DATE, createdTime);
+        noteValues.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        noteValues.put(NoteColumns.LOCAL_MODIFIED, 1);
+        noteValues.put(NoteColumns.PARENT_ID, folderId);
+        synchronized (this) {
+            // 已设置的属性（例如通话笔记的文件夹）直接随插入写入
+            diffValues = takeValues(mNoteDiffValues);
+            textValues = takeValues(mNoteData.mTextDataValues);
+            callValues = takeValues(mNoteData.mCallDataValues);
+            mSavedText = textValues.getAsString(DataColumns.CONTENT);
+        }
+        noteValues.putAll(diffValues);
+
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<>();
+        operationList.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                .withValues(noteValues).build());
+        int textIndex = -1;
+        List<String> textChunks = null;
+        if (textValues.size() > 0) {
+            textIndex = operationList.size();
+            ContentValues textRow = new ContentValues(textValues);
+            textRow.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
+            ArrayList<ContentProviderOperation> chunkOperations = new ArrayList<>();
+            // 很长的内容分块写入，数据行只保存第一块
+            textChunks = ContentChunks.prepareWrite(textRow, null, 0, textIndex,
+                    chunkOperations);
+            operationList.add(ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                    .withValues(textRow).withValueBackReference(DataColumns.NOTE_ID, 0)
+                    .build());
+            operationList.addAll(chunkOperations);
+        }
+        int callIndex = -1;
+        if (callValues.size() > 0) {
+            callIndex = operationList.size();
+            callValues.put(DataColumns.MIME_TYPE, CallNote.CONTENT_ITEM_TYPE);
+            operationList.add(ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                    .withValues(callValues).withValueBackReference(DataColumns.NOTE_ID, 0)
+                    .build());
+        }
+
+        try {
+            ContentProviderResult[] results = context.getContentResolver().applyBatch(
+                    Notes.AUTHORITY, operationList);
+            long noteId = ContentUris.parseId(results[0].uri);
+            if (noteId <= 0) {
+                throw new IllegalStateException("Wrong note id:" + noteId);
+            }
+            if (textIndex > 0) {
+                setTextDataId(ContentUris.parseId(results[textIndex].uri));
+                mNoteData.mTextChunks = textChunks;
+            }
+            if (callIndex > 0) {
+                setCallDataId(ContentUris.parseId(results[callIndex].uri));
+            }
+            return noteId;
+        } catch (RemoteException | OperationApplicationException | NumberFormatException e) {
+            Log.e(TAG, "Insert new note fail: " + e.toString());
+        }
+
+        // 事务已回滚，修改放回去等待下一次保存
+        synchronized (this) {
+            restoreValues(mNoteDiffValues, diffValues);
+            restoreValues(mNoteData.mTextDataValues, textValues);
+            callValues.remove(DataColumns.MIME_TYPE);
+            restoreValues(mNoteData.mCallDataValues, callValues);
+            mSavedText = null;
+        }
+        return 0;
+    }
+
     // 构造函数，初始化mNoteDiffValues和mNoteData
     public Note() {
         mNoteDiffValues = new ContentValues();
@@ -97,7 +186,7 @@ public class Note {
      * @param key 键
      * @param value 值
      */
-    public void setNoteValue(String key, String value) {
+    public synchronized void setNoteValue(String key, String value) {
         mNoteDiffValues.put(key, value);
         // 标记为本地修改
         mNoteDiffValues.put(NoteColumns.LOCAL_MODIFIED, 1);
@@ -110,7 +199,7 @@ public class Note {
      * @param key 键
      * @param value 值
      */
-    public void setTextData(String key, String value) {
+    public synchronized void setTextData(String key, String value) {
         mNoteData.setTextData(key, value);
     }
 
@@ -118,10 +207,18 @@ public class Note {
      * 设置文本数据ID。
      * @param id 文本数据ID
      */
-    public void setTextDataId(long id) {
+    public synchronized void setTextDataId(long id) {
         mNoteData.setTextDataId(id);
     }
 
+    /**
+     * 设置数据库中文本内容当前的分块，保存时只写入变化的块。
+     * @param chunks 加载时读到的分块
+     */
+    public synchronized void setTextChunks(List<String> chunks) {
+        mNoteData.mTextChunks = chunks;
+    }
+
     /**
      * 获取文本数据ID。
      * @return 文本数据ID
@@ -130,20 +227,36 @@ public class Note {
         return mNoteData.mTextDataId;
     }
 
+    /**
+     * 获取数据库中文本内容当前的分块。
+     * @return 分块，未加载时为 null
+     */
+    public List<String> getTextChunks() {
+        return mNoteData.mTextChunks;
+    }
+
     /**
      * 设置通话数据ID。
      * @param id 通话数据ID
      */
-    public void setCallDataId(long id) {
+    public synchronized void setCallDataId(long id) {
         mNoteData.setCallDataId(id);
     }
 
+    /**
+     * 获取通话数据ID。
+     * @return 通话数据ID
+     */
+    public long getCallDataId() {
+        return mNoteData.mCallDataId;
+    }
+
     /**
      * 设置通话数据。
      * @param key 键
      * @param value 值
      */
-    public void setCallData(String key, String value) {
+    public synchronized void setCallData(String key, String value) {
         mNoteData.setCallData(key, value);
     }
 
@@ -151,12 +264,14 @@ public class Note {
      * 检查是否有本地修改。
      * @return 是否有本地修改
      */
-    public boolean isLocalModified() {
+    public synchronized boolean isLocalModified() {
         return mNoteDiffValues.size() > 0 || mNoteData.isLocalModified();
     }
 
     /**
      * 将本地修改同步到数据库。
+     * 待写入的修改在锁内取出，写数据库时不持有锁，写入期间的新修改留给下一次同步。
+     * 同一篇笔记同一时间只能有一个同步在进行。
      * @param context 应用上下文
      * @param noteId 笔记ID
      * @return 是否成功同步
@@ -167,40 +282,82 @@ public class Note {
             throw new IllegalArgumentException("Wrong note id:" + noteId);
         }
 
-        // 如果没有本地修改，则直接返回成功
-        if (!isLocalModified()) {
-            return true;
+        ContentValues noteValues;
+        ContentValues textValues;
+        ContentValues callValues;
+        synchronized (this) {
+            // 如果没有本地修改，则直接返回成功
+            if (!isLocalModified()) {
+                mSavedText = null;
+                return true;
+            }
+            noteValues = takeValues(mNoteDiffValues);
+            textValues = takeValues(mNoteData.mTextDataValues);
+            callValues = takeValues(mNoteData.mCallDataValues);
+            mSavedText = textValues.getAsString(DataColumns.CONTENT);
         }
 
         // 理论上，一旦数据发生变化，应更新LOCAL_MODIFIED和MODIFIED_DATE字段
         // 为了数据安全，即使更新失败也继续执行后续操作
-        if (context.getContentResolver().update(
-                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), mNoteDiffValues, null,
+        if (noteValues.size() > 0 && context.getContentResolver().update(
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), noteValues, null,
                 null) == 0) {
             Log.e(TAG, "Update note error, should not happen");
             // 不返回，继续执行
         }
-        mNoteDiffValues.clear();
 
         // 如果NoteData中有本地修改，则尝试将其推送到内容提供者
-        if (mNoteData.isLocalModified()
-                && (mNoteData.pushIntoContentResolver(context, noteId) == null)) {
+        if ((textValues.size() > 0 || callValues.size() > 0)
+                && (mNoteData.pushIntoContentResolver(context, noteId, textValues,
+                        callValues) == null)) {
+            // 写入失败的数据放回去，写入期间的新修改优先
+            synchronized (this) {
+                restoreValues(mNoteData.mTextDataValues, textValues);
+                restoreValues(mNoteData.mCallDataValues, callValues);
+                mSavedText = null;
+            }
             return false;
         }
 
         return true;
     }
 
+    /**
+     * 获取最近一次 {@link #insertNote} 或 {@link #syncNote} 写入的文本内容。
+     * @return 文本内容，没有写入文本或写入失败时为 null
+     */
+    public synchronized String getSavedText() {
+        return mSavedText;
+    }
+
+    private static ContentValues takeValues(ContentValues values) {
+        ContentValues taken = new ContentValues(values);
+        values.clear();
+        return taken;
+    }
+
+    private static void restoreValues(ContentValues current, ContentValues failed) {
+        if (failed.size() == 0) {
+            return;
+        }
+        ContentValues newer = new ContentValues(current);
+        current.clear();
+        current.putAll(failed);
+        current.putAll(newer);
+    }
+
     /**
      * 内部类，用于处理笔记的具体内容（如文本或通话数据）。
      */
     private class NoteData {
         // 文本数据ID
-        private long mTextDataId;
+        private volatile long mTextDataId;
         // 文本数据值
         private ContentValues mTextDataValues;
+        // 数据库中文本内容当前的分块，未知时为 null
+        private volatile List<String> mTextChunks;
         // 通话数据ID
-        private long mCallDataId;
+        private volatile long mCallDataId;
         // 通话数据值
         private ContentValues mCallDataValues;
         // 日志标签
@@ -270,79 +427,102 @@ public class Note {
          * 将数据推送到内容提供者。
          * @param context 应用上下文
          * @param noteId 笔记ID
+         * @param textValues 从 mTextDataValues 中取出的待写入文本数据
+         * @param callValues 从 mCallDataValues 中取出的待写入通话数据
          * @return 返回更新后的URI或null
          */
-        Uri pushIntoContentResolver(Context context, long noteId) {
+        Uri pushIntoContentResolver(Context context, long noteId, ContentValues textValues,
+                ContentValues callValues) {
             // 检查笔记ID是否有效
             if (noteId <= 0) {
                 throw new IllegalArgumentException("Wrong note id:" + noteId);
             }
 
+            // 文本和通话数据的插入、更新以及文本分块在同一个批量操作中完成
             ArrayList<ContentProviderOperation> operationList = new ArrayList<>();
             ContentProviderOperation.Builder builder = null;
 
             // 处理文本数据
-            if(mTextDataValues.size() > 0) {
-                mTextDataValues.put(DataColumns.NOTE_ID, noteId);
+            int textIndex = -1;
+            List<String> textChunks = null;
+            if(textValues.size() > 0) {
+                ContentValues textRow = new ContentValues(textValues);
+                textRow.put(DataColumns.NOTE_ID, noteId);
+                ArrayList<ContentProviderOperation> chunkOperations = new ArrayList<>();
                 if (mTextDataId == 0) {
                     // 如果文本数据ID为0，则插入新数据
-                    mTextDataValues.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
-                    Uri uri = context.getContentResolver().insert(Notes.CONTENT_DATA_URI, mTextDataValues);
-                    try {
-                        setTextDataId(Long.valueOf(uri.getPathSegments().get(1)));
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "Insert new text data fail with noteId" + noteId); // 错误日志
-                        mTextDataValues.clear();
-                        return null;
-                    }
+                    textIndex = operationList.size();
+                    textRow.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
+                    textChunks = ContentChunks.prepareWrite(textRow, null, 0, textIndex,
+                            chunkOperations);
+                    builder = ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI);
                 } else {
-                    // 否则更新现有数据
-                    builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mTextDataId));
-                    builder.withValues(mTextDataValues);
+                    // 否则更新现有数据，只写入变化的块
+                    textChunks = ContentChunks.prepareWrite(textRow, mTextChunks, mTextDataId,
+                            0, chunkOperations);
+                    // 只有后面的块变化时数据行不必重写，行里只剩笔记ID
+                    builder = textRow.size() > 1 ? ContentProviderOperation.newUpdate(
+                            ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, mTextDataId))
+                            : null;
+                }
+                if (builder != null) {
+                    builder.withValues(textRow);
                     operationList.add(builder.build());
                 }
-                mTextDataValues.clear(); // 清空文本数据值
+                operationList.addAll(chunkOperations);
             }
 
             // 处理通话数据
-            if(mCallDataValues.size() > 0) {
-                mCallDataValues.put(DataColumns.NOTE_ID, noteId);
+            int callIndex = -1;
+            if(callValues.size() > 0) {
+                ContentValues callRow = new ContentValues(callValues);
+                callRow.put(DataColumns.NOTE_ID, noteId);
                 if (mCallDataId == 0) {
                     // 如果通话数据ID为0，则插入新数据
-                    mCallDataValues.put(DataColumns.MIME_TYPE, CallNote.CONTENT_ITEM_TYPE);
-                    Uri uri = context.getContentResolver().insert(Notes.CONTENT_DATA_URI, mCallDataValues);
-                    try {
-                        setCallDataId(Long.valueOf(uri.getPathSegments().get(1)));
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "Insert new call data fail with noteId" + noteId); // 错误日志
-                        mCallDataValues.clear();
-                        return null;
-                    }
+                    callIndex = operationList.size();
+                    callRow.put(DataColumns.MIME_TYPE, CallNote.CONTENT_ITEM_TYPE);
+                    builder = ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI);
                 } else {
                     // 否则更新现有数据
                     builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
                             Notes.CONTENT_DATA_URI, mCallDataId));
-                    builder.withValues(mCallDataValues);
-                    operationList.add(builder.build());
                 }
-                mCallDataValues.clear(); // 清空通话数据值
+                builder.withValues(callRow);
+                operationList.add(builder.build());
             }
 
-            // 如果有需要执行的操作
-            if (operationList.size() > 0) {
-                try {
-                    // 执行批量操作
-                    ContentProviderResult[] results = context.getContentResolver().applyBatch(
-                            Notes.AUTHORITY, operationList);
-                    return (results == null || results.length == 0 || results[0] == null) ? null
-                            : ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId);
-                } catch (RemoteException | OperationApplicationException e) {
-                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage())); // 错误日志
+            if (operationList.isEmpty()) {
+                // 内容没有变化
+                if (textChunks != null) {
+                    mTextChunks = textChunks;
+                }
+                return ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId);
+            }
+
+            try {
+                // 执行批量操作
+                ContentProviderResult[] results = context.getContentResolver().applyBatch(
+                        Notes.AUTHORITY, operationList);
+                if (results == null || results.length == 0 || results[0] == null) {
                     return null;
                 }
+                if (textIndex >= 0) {
+                    setTextDataId(ContentUris.parseId(results[textIndex].uri));
+                }
+                if (callIndex >= 0) {
+                    setCallDataId(ContentUris.parseId(results[callIndex].uri));
+                }
+                if (textChunks != null) {
+                    mTextChunks = textChunks;
+                }
+                return ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage())); // 错误日志
+                return null;
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Insert new data fail with noteId" + noteId); // 错误日志
+                return null;
             }
-            return null;
         }
     }
 }
\ No newline at end of file
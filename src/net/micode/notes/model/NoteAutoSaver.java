@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.micode.notes.tool.TaskExecutor;
+
+import java.util.concurrent.Executor;
+
+/**
+ * 编辑时自动保存 {@link WorkingNote}。
+ * 连续的编辑会被合并，停止输入 {@link #DEBOUNCE_DELAY} 后才保存，持续输入时最迟
+ * {@link #MAX_DELAY} 也会保存一次。写数据库在后台线程完成，同一篇笔记同一时间最多只有一个
+ * 保存在进行，保存期间的新编辑会在它结束后再保存一次。
+ *
+ * 除 {@link #getStats()} 外所有方法都应在主线程调用。
+ */
+public class NoteAutoSaver {
+    private static final String TAG = "NoteAutoSaver";
+
+    public static final long DEBOUNCE_DELAY = 1500;
+
+    public static final long MAX_DELAY = 10000;
+
+    private static final Executor sExecutor = TaskExecutor.newSerialExecutor(
+            TaskExecutor.Lane.WRITE, "auto save note");
+
+    private static final Stats sStats = new Stats();
+
+    /**
+     * 保存前在主线程调用，用于把编辑器中的内容写入 {@link WorkingNote}
+     */
+    public interface ChangeCollector {
+        void collectChanges();
+    }
+
+    private final WorkingNote mNote;
+
+    private final ChangeCollector mCollector;
+
+    private final Handler mHandler;
+
+    // 第一个尚未保存的编辑的时间，0 表示没有待保存的编辑
+    private long mFirstPendingEdit;
+
+    private boolean mSaving;
+
+    private boolean mDirtyWhileSaving;
+
+    private boolean mReleased;
+
+    private final Runnable mDebounced = new Runnable() {
+        public void run() {
+            saveNow();
+        }
+    };
+
+    public NoteAutoSaver(WorkingNote note, ChangeCollector collector) {
+        mNote = note;
+        mCollector = collector;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * 通知发生了一次编辑，保存会被推迟到输入停止以后
+     */
+    public void onEdit() {
+        if (mReleased) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (mFirstPendingEdit == 0) {
+            mFirstPendingEdit = now;
+        }
+        mHandler.removeCallbacks(mDebounced);
+        long delay = Math.min(DEBOUNCE_DELAY, mFirstPendingEdit + MAX_DELAY - now);
+        mHandler.postDelayed(mDebounced, Math.max(delay, 0));
+    }
+
+    /**
+     * 立即在后台保存当前内容，不等待写入完成
+     *
+     * @return 是否有值得保存的修改
+     */
+    public boolean saveNow() {
+        mHandler.removeCallbacks(mDebounced);
+        if (mCollector != null) {
+            mCollector.collectChanges();
+        }
+        if (!mNote.hasUnsavedChanges()) {
+            mFirstPendingEdit = 0;
+            return false;
+        }
+        if (mSaving) {
+            // 当前保存结束后再写一次
+            mDirtyWhileSaving = true;
+            return true;
+        }
+        submit();
+        return true;
+    }
+
+    /**
+     * 保存剩余的修改并停止自动保存
+     */
+    public void release() {
+        if (mReleased) {
+            return;
+        }
+        saveNow();
+        mReleased = true;
+    }
+
+    private void submit() {
+        final long editTime = mFirstPendingEdit != 0 ? mFirstPendingEdit
+                : SystemClock.uptimeMillis();
+        final long submitTime = SystemClock.uptimeMillis();
+        mFirstPendingEdit = 0;
+        mSaving = true;
+        sExecutor.execute(new Runnable() {
+            public void run() {
+                long start = SystemClock.uptimeMillis();
+                int result = WorkingNote.PERSIST_FAILED;
+                try {
+                    result = mNote.persist();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Auto save note " + mNote.getNoteId() + " failed", e);
+                }
+                long end = SystemClock.uptimeMillis();
+                sStats.record(result, end - start, start - submitTime, end - editTime);
+                final boolean notify = result == WorkingNote.PERSIST_SAVED;
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        onSaveFinished(notify);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onSaveFinished(boolean saved) {
+        mSaving = false;
+        if (saved) {
+            mNote.notifyWidgetChanged();
+        }
+        if (mDirtyWhileSaving) {
+            mDirtyWhileSaving = false;
+            saveNow();
+        }
+    }
+
+    public static Stats getStats() {
+        return sStats;
+    }
+
+    /**
+     * 自动保存的耗时统计（毫秒）：write 为写数据库的时间，queue 为提交后等待执行的时间，
+     * edit 为从第一次编辑到写入完成的时间。没有需要保存的修改时只计数，不算作失败
+     */
+    public static class Stats {
+        private int mSaveCount;
+
+        private int mSkipCount;
+
+        private int mFailureCount;
+
+        private long mTotalWriteTime;
+
+        private long mMaxWriteTime;
+
+        private long mLastWriteTime;
+
+        private long mMaxQueueTime;
+
+        private long mTotalEditToDiskTime;
+
+        private long mMaxEditToDiskTime;
+
+        synchronized void record(int result, long write, long queue, long editToDisk) {
+            if (result == WorkingNote.PERSIST_NOTHING_TO_SAVE) {
+                mSkipCount++;
+                return;
+            }
+            if (result != WorkingNote.PERSIST_SAVED) {
+                mFailureCount++;
+                return;
+            }
+            mSaveCount++;
+            mLastWriteTime = write;
+            mTotalWriteTime += write;
+            mMaxWriteTime = Math.max(mMaxWriteTime, write);
+            mMaxQueueTime = Math.max(mMaxQueueTime, queue);
+            mTotalEditToDiskTime += editToDisk;
+            mMaxEditToDiskTime = Math.max(mMaxEditToDiskTime, editToDisk);
+        }
+
+        public synchronized int getSaveCount() {
+            return mSaveCount;
+        }
+
+        public synchronized int getSkipCount() {
+            return mSkipCount;
+        }
+
+        public synchronized int getFailureCount() {
+            return mFailureCount;
+        }
+
+        public synchronized long getLastWriteTime() {
+            return mLastWriteTime;
+        }
+
+        public synchronized long getAverageWriteTime() {
+            return mSaveCount > 0 ? mTotalWriteTime / mSaveCount : 0;
+        }
+
+        public synchronized long getMaxWriteTime() {
+            return mMaxWriteTime;
+        }
+
+        public synchronized long getMaxQueueTime() {
+            return mMaxQueueTime;
+        }
+
+        public synchronized long getAverageEditToDiskTime() {
+            return mSaveCount > 0 ? mTotalEditToDiskTime / mSaveCount : 0;
+        }
+
+        public synchronized long getMaxEditToDiskTime() {
+            return mMaxEditToDiskTime;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "saves=" + mSaveCount + " skipped=" + mSkipCount + " failures=" + mFailureCount
+                    + " write(avg/max)=" + getAverageWriteTime() + "/" + mMaxWriteTime
+                    + "ms queue(max)=" + mMaxQueueTime + "ms editToDisk(avg/max)="
+                    + getAverageEditToDiskTime() + "/" + mMaxEditToDiskTime + "ms";
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.tool.TaskExecutor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在后台线程加载笔记，并缓存最近打开的笔记快照，结果通过回调交给编辑界面。
+ * 列表中按住一条笔记时就开始预取，编辑界面打开时数据通常已经在内存中。
+ * 数据库没有变化时直接使用快照，有变化时先比较笔记的 version 再决定是否重新加载。
+ */
+public class NoteLoader {
+    private static final String TAG = "NoteLoader";
+
+    private static final int CACHE_SIZE = 16;
+
+    private static final String[] VERSION_PROJECTION = new String[] {
+            NoteColumns.VERSION, NoteColumns.MODIFIED_DATE
+    };
+
+    private static NoteLoader sInstance;
+
+    /**
+     * 笔记加载时的内容，不会被修改
+     */
+    static class Snapshot {
+        final long noteId;
+        final int type;
+        final long version;
+        final long modifiedDate;
+        final long folderId;
+        final long alertDate;
+        final int bgColorId;
+        final int widgetId;
+        final int widgetType;
+        final String content;
+        final int mode;
+        final long textDataId;
+        final long callDataId;
+        final List<String> textChunks;
+
+        // 确认快照仍然有效时数据库的变化序号
+        volatile int changeSeq;
+
+        Snapshot(long noteId, int type, long version, long modifiedDate, long folderId,
+                long alertDate, int bgColorId, int widgetId, int widgetType, String content,
+                int mode, long textDataId, long callDataId, List<String> textChunks) {
+            this.noteId = noteId;
+            this.type = type;
+            this.version = version;
+            this.modifiedDate = modifiedDate;
+            this.folderId = folderId;
+            this.alertDate = alertDate;
+            this.bgColorId = bgColorId;
+            this.widgetId = widgetId;
+            this.widgetType = widgetType;
+            this.content = content;
+            this.mode = mode;
+            this.textDataId = textDataId;
+            this.callDataId = callDataId;
+            this.textChunks = textChunks;
+        }
+
+        /**
+         * 是否是不在回收站中的普通笔记
+         */
+        boolean isVisible() {
+            return type == Notes.TYPE_NOTE && folderId != Notes.ID_TRASH_FOLER;
+        }
+    }
+
+    public interface Callback {
+        /**
+         * 在主线程调用
+         *
+         * @param note 笔记，笔记不存在或已在回收站中时为 null
+         */
+        void onNoteLoaded(long noteId, WorkingNote note);
+    }
+
+    private static class Request {
+        final Context context;
+        final Callback callback;
+        // 已经因为数据库变化重新加载过一次
+        final boolean reloaded;
+
+        Request(Context context, Callback callback, boolean reloaded) {
+            this.context = context;
+            this.callback = callback;
+            this.reloaded = reloaded;
+        }
+    }
+
+    private final Context mContext;
+
+    private final LruCache<Long, Snapshot> mCache;
+
+    // 正在后台加载的笔记
+    private final HashSet<Long> mPending;
+
+    // 等待加载结果的调用者，用 mPending 的锁保护
+    private final HashMap<Long, ArrayList<Request>> mRequests;
+
+    private final Handler mMainHandler;
+
+    // 每次笔记或数据变化时加一
+    private final AtomicInteger mChangeSeq;
+
+    private NoteLoader(Context context) {
+        mContext = context.getApplicationContext();
+        mCache = new LruCache<Long, Snapshot>(CACHE_SIZE);
+        mPending = new HashSet<Long>();
+        mRequests = new HashMap<Long, ArrayList<Request>>();
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mChangeSeq = new AtomicInteger();
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mChangeSeq.incrementAndGet();
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(Notes.CONTENT_NOTE_URI, true,
+                observer);
+        mContext.getContentResolver().registerContentObserver(Notes.CONTENT_DATA_URI, true,
+                observer);
+    }
+
+    public static synchronized NoteLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NoteLoader(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * 在后台加载笔记，不等待结果
+     */
+    public void prefetch(long noteId) {
+        if (noteId <= 0) {
+            return;
+        }
+        synchronized (mPending) {
+            Snapshot cached = mCache.get(noteId);
+            if (cached != null && cached.changeSeq == mChangeSeq.get()) {
+                return;
+            }
+            startLoad(noteId);
+        }
+    }
+
+    /**
+     * 取得笔记后在主线程回调 {@code callback}，不会阻塞当前线程。缓存的快照仍然有效时
+     * 立即回调，否则等待正在进行的预取或在后台加载
+     */
+    public void load(Context context, long noteId, Callback callback) {
+        if (noteId <= 0) {
+            callback.onNoteLoaded(noteId, null);
+            return;
+        }
+        Snapshot cached;
+        synchronized (mPending) {
+            cached = mCache.get(noteId);
+            if (mPending.contains(noteId) || cached == null
+                    || cached.changeSeq != mChangeSeq.get()) {
+                addRequest(noteId, new Request(context, callback, false));
+                startLoad(noteId);
+                return;
+            }
+        }
+        deliver(noteId, cached, new Request(context, callback, true));
+    }
+
+    /**
+     * 不再需要 {@code callback} 的结果，例如界面已经关闭
+     */
+    public void cancel(long noteId, Callback callback) {
+        synchronized (mPending) {
+            ArrayList<Request> requests = mRequests.get(noteId);
+            if (requests == null) {
+                return;
+            }
+            for (int i = requests.size() - 1; i >= 0; i--) {
+                if (requests.get(i).callback == callback) {
+                    requests.remove(i);
+                }
+            }
+            if (requests.isEmpty()) {
+                mRequests.remove(noteId);
+            }
+        }
+    }
+
+    // 调用时持有 mPending 的锁
+    private void addRequest(long noteId, Request request) {
+        ArrayList<Request> requests = mRequests.get(noteId);
+        if (requests == null) {
+            requests = new ArrayList<Request>();
+            mRequests.put(noteId, requests);
+        }
+        requests.add(request);
+    }
+
+    // 调用时持有 mPending 的锁
+    private void startLoad(final long noteId) {
+        if (mPending.contains(noteId)) {
+            return;
+        }
+        mPending.add(noteId);
+        TaskExecutor.submit(TaskExecutor.Lane.READ, "load note", new Runnable() {
+            public void run() {
+                Snapshot snapshot = null;
+                ArrayList<Request> requests;
+                try {
+                    snapshot = loadSnapshot(noteId);
+                } finally {
+                    synchronized (mPending) {
+                        mPending.remove(noteId);
+                        requests = mRequests.remove(noteId);
+                    }
+                }
+                if (requests == null) {
+                    return;
+                }
+                for (Request request : requests) {
+                    deliver(noteId, snapshot, request);
+                }
+            }
+        });
+    }
+
+    private void deliver(final long noteId, final Snapshot snapshot, final Request request) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mMainHandler.post(new Runnable() {
+                public void run() {
+                    deliver(noteId, snapshot, request);
+                }
+            });
+            return;
+        }
+        if (snapshot != null && snapshot.changeSeq != mChangeSeq.get() && !request.reloaded) {
+            // 加载期间数据库有变化，重新确认一次再交给调用者
+            synchronized (mPending) {
+                addRequest(noteId, new Request(request.context, request.callback, true));
+                startLoad(noteId);
+            }
+            return;
+        }
+        request.callback.onNoteLoaded(noteId, snapshot != null && snapshot.isVisible()
+                ? new WorkingNote(request.context, snapshot) : null);
+    }
+
+    /**
+     * 笔记保存后丢弃它的快照
+     */
+    public void invalidate(long noteId) {
+        mCache.remove(noteId);
+    }
+
+    private Snapshot loadSnapshot(long noteId) {
+        int seq = mChangeSeq.get();
+        Snapshot cached = mCache.get(noteId);
+        if (cached != null) {
+            if (cached.changeSeq == seq || isUnchanged(cached)) {
+                cached.changeSeq = seq;
+                return cached;
+            }
+            mCache.remove(noteId);
+        }
+
+        Snapshot snapshot;
+        try {
+            snapshot = WorkingNote.load(mContext, noteId).toSnapshot(seq);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Load note " + noteId + " failed: " + e.toString());
+            return null;
+        }
+        if (snapshot == null) {
+            return null;
+        }
+        mCache.put(noteId, snapshot);
+        return snapshot;
+    }
+
+    private boolean isUnchanged(Snapshot snapshot) {
+        Cursor c = mContext.getContentResolver().query(
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, snapshot.noteId),
+                VERSION_PROJECTION, null, null, null);
+        if (c == null) {
+            return false;
+        }
+        try {
+            return c.moveToFirst() && c.getLong(0) == snapshot.version
+                    && c.getLong(1) == snapshot.modifiedDate;
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -23,6 +23,8 @@ import android.database.Cursor;
 import android.text.TextUtils;
 import android.util.Log;
 
+import net.micode.notes.data.ContentChunks;
+import net.micode.notes.data.NoteRevisions;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
 import net.micode.notes.data.Notes.DataColumns;
@@ -31,6 +33,9 @@ import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.Notes.TextNote;
 import net.micode.notes.tool.ResourceParser.NoteBgResources;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * WorkingNote 类用于封装笔记的创建、加载、保存以及属性修改等功能。
  * 它提供了一个操作笔记的接口，同时支持监听笔记设置的变更。
@@ -38,10 +43,10 @@ import net.micode.notes.tool.ResourceParser.NoteBgResources;
 public class WorkingNote {
     // 当前正在操作的笔记对象
     private Note mNote;
-    // 笔记的唯一标识符
-    private long mNoteId;
+    // 笔记的唯一标识符，自动保存时在后台线程中赋值
+    private volatile long mNoteId;
     // 笔记的内容
-    private String mContent;
+    private volatile String mContent;
     // 笔记的模式（例如普通笔记模式或清单模式）
     private int mMode;
 
@@ -69,12 +74,27 @@ public class WorkingNote {
     // 日志标签，用于调试
     private static final String TAG = "WorkingNote";
 
+    // persist() 的结果：已保存、没有需要保存的修改、保存失败
+    static final int PERSIST_SAVED = 0;
+
+    static final int PERSIST_NOTHING_TO_SAVE = 1;
+
+    static final int PERSIST_FAILED = 2;
+
     // 标记笔记是否已被删除
-    private boolean mIsDeleted;
+    private volatile boolean mIsDeleted;
 
     // 笔记设置变更监听器
     private NoteSettingChangedListener mNoteSettingStatusListener;
 
+    // 笔记内容的历史版本
+    private NoteRevisions mRevisions;
+
+    // 加载时笔记的类型和版本号，笔记不存在时类型为 -1
+    private int mType = -1;
+
+    private long mVersion;
+
     /**
      * 数据库查询时使用的字段投影，用于获取笔记数据。
      */
@@ -85,7 +105,8 @@ public class WorkingNote {
             DataColumns.DATA1,           // 数据字段 1
             DataColumns.DATA2,           // 数据字段 2
             DataColumns.DATA3,           // 数据字段 3
-            DataColumns.DATA4            // 数据字段 4
+            DataColumns.DATA4,           // 数据字段 4
+            DataColumns.CHUNK_COUNT      // 内容分块数
     };
 
     /**
@@ -97,7 +118,9 @@ public class WorkingNote {
             NoteColumns.BG_COLOR_ID,     // 背景颜色 ID
             NoteColumns.WIDGET_ID,       // 小部件 ID
             NoteColumns.WIDGET_TYPE,     // 小部件类型
-            NoteColumns.MODIFIED_DATE    // 最后修改时间
+            NoteColumns.MODIFIED_DATE,   // 最后修改时间
+            NoteColumns.TYPE,            // 类型
+            NoteColumns.VERSION          // 版本号
     };
 
     /**
@@ -107,6 +130,7 @@ public class WorkingNote {
     private static final int DATA_CONTENT_COLUMN = 1;
     private static final int DATA_MIME_TYPE_COLUMN = 2;
     private static final int DATA_MODE_COLUMN = 3;
+    private static final int DATA_CHUNK_COUNT_COLUMN = 7;
 
     private static final int NOTE_PARENT_ID_COLUMN = 0;
     private static final int NOTE_ALERTED_DATE_COLUMN = 1;
@@ -114,6 +138,8 @@ public class WorkingNote {
     private static final int NOTE_WIDGET_ID_COLUMN = 3;
     private static final int NOTE_WIDGET_TYPE_COLUMN = 4;
     private static final int NOTE_MODIFIED_DATE_COLUMN = 5;
+    private static final int NOTE_TYPE_COLUMN = 6;
+    private static final int NOTE_VERSION_COLUMN = 7;
 
     /**
      * 构造一个新的笔记实例。
@@ -127,6 +153,7 @@ public class WorkingNote {
         mModifiedDate = System.currentTimeMillis();
         mFolderId = folderId;
         mNote = new Note();
+        mRevisions = new NoteRevisions(context.getContentResolver());
         mNoteId = 0;
         mIsDeleted = false;
         mMode = 0;
@@ -146,9 +173,55 @@ public class WorkingNote {
         mFolderId = folderId;
         mIsDeleted = false;
         mNote = new Note();
+        mRevisions = new NoteRevisions(context.getContentResolver());
         loadNote(); // 加载笔记数据
     }
 
+    /**
+     * 由 {@link NoteLoader} 缓存的快照构造笔记实例，不访问数据库。
+     *
+     * @param context 应用上下文
+     * @param snapshot 笔记快照
+     */
+    WorkingNote(Context context, NoteLoader.Snapshot snapshot) {
+        mContext = context;
+        mNoteId = snapshot.noteId;
+        mFolderId = snapshot.folderId;
+        mIsDeleted = false;
+        mNote = new Note();
+        mRevisions = new NoteRevisions(context.getContentResolver());
+        mType = snapshot.type;
+        mVersion = snapshot.version;
+        mBgColorId = snapshot.bgColorId;
+        mWidgetId = snapshot.widgetId;
+        mWidgetType = snapshot.widgetType;
+        mAlertDate = snapshot.alertDate;
+        mModifiedDate = snapshot.modifiedDate;
+        mContent = snapshot.content;
+        mMode = snapshot.mode;
+        mNote.setTextDataId(snapshot.textDataId);
+        mNote.setTextChunks(snapshot.textChunks);
+        mNote.setCallDataId(snapshot.callDataId);
+    }
+
+    /**
+     * 生成加载时内容的快照，笔记不存在时返回 null。
+     *
+     * @param changeSeq 加载开始时数据库的变化序号
+     */
+    NoteLoader.Snapshot toSnapshot(int changeSeq) {
+        if (mType < 0) {
+            return null;
+        }
+        List<String> chunks = mNote.getTextChunks();
+        NoteLoader.Snapshot snapshot = new NoteLoader.Snapshot(mNoteId, mType, mVersion,
+                mModifiedDate, mFolderId, mAlertDate, mBgColorId, mWidgetId, mWidgetType,
+                mContent, mMode, mNote.getTextDataId(), mNote.getCallDataId(),
+                chunks != null ? Collections.unmodifiableList(chunks) : null);
+        snapshot.changeSeq = changeSeq;
+        return snapshot;
+    }
+
     /**
      * 加载笔记的元数据。
      */
@@ -165,6 +238,8 @@ public class WorkingNote {
                 mWidgetType = cursor.getInt(NOTE_WIDGET_TYPE_COLUMN); // 获取小部件类型
                 mAlertDate = cursor.getLong(NOTE_ALERTED_DATE_COLUMN); // 获取提醒时间
                 mModifiedDate = cursor.getLong(NOTE_MODIFIED_DATE_COLUMN); // 获取最后修改时间
+                mType = cursor.getInt(NOTE_TYPE_COLUMN); // 获取类型
+                mVersion = cursor.getLong(NOTE_VERSION_COLUMN); // 获取版本号
             }
             cursor.close();
         } else {
@@ -186,9 +261,15 @@ public class WorkingNote {
                 do {
                     String type = cursor.getString(DATA_MIME_TYPE_COLUMN); // 获取数据类型
                     if (DataConstants.NOTE.equals(type)) {
-                        mContent = cursor.getString(DATA_CONTENT_COLUMN); // 获取笔记内容
+                        long dataId = cursor.getLong(DATA_ID_COLUMN);
+                        // 很长的内容分块保存，数据行中只有第一块
+                        List<String> chunks = ContentChunks.read(mContext.getContentResolver(),
+                                dataId, cursor.getString(DATA_CONTENT_COLUMN),
+                                cursor.getInt(DATA_CHUNK_COUNT_COLUMN));
+                        mContent = ContentChunks.join(chunks); // 获取笔记内容
                         mMode = cursor.getInt(DATA_MODE_COLUMN); // 获取笔记模式
-                        mNote.setTextDataId(cursor.getLong(DATA_ID_COLUMN)); // 设置文本数据 ID
+                        mNote.setTextDataId(dataId); // 设置文本数据 ID
+                        mNote.setTextChunks(chunks);
                     } else if (DataConstants.CALL_NOTE.equals(type)) {
                         mNote.setCallDataId(cursor.getLong(DATA_ID_COLUMN)); // 设置电话笔记数据 ID
                     } else {
@@ -230,7 +311,7 @@ public class WorkingNote {
      * @return 加载的笔记实例
      */
     public static WorkingNote load(Context context, long id) {
-        return new WorkingNote(context,        return new WorkingNote(context, id, 0);
+        return new WorkingNote(context, id, 0);
     }
 
     /**
@@ -241,30 +322,64 @@ public class WorkingNote {
      * @return 是否保存成功
      */
     public synchronized boolean saveNote() {
-        if (isWorthSaving()) { // 检查笔记是否值得保存（例如内容不为空或有修改）
-            if (!existInDatabase()) { // 如果笔记不存在于数据库中
-                if ((mNoteId = Note.getNewNoteId(mContext, mFolderId)) == 0) { // 获取新的笔记 ID
-                    Log.e(TAG, "Create new note fail with id:" + mNoteId);
-                    return false;
-                }
-            }
-
-            mNote.syncNote(mContext, mNoteId); // 同步笔记数据到数据库
-
-            /**
-             * 如果笔记关联了小部件，并且有监听器，则通知小部件内容已更改。
-             */
-            if (mWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID
-                    && mWidgetType != Notes.TYPE_WIDGET_INVALIDE
-                    && mNoteSettingStatusListener != null) {
-                mNoteSettingStatusListener.onWidgetChanged();
-            }
+        if (persist() == PERSIST_SAVED) {
+            notifyWidgetChanged();
             return true;
         } else {
             return false;
         }
     }
 
+    /**
+     * 只把修改写入数据库，不通知监听器，可以在后台线程调用。
+     * 同步保证同一篇笔记同一时间只有一个写入在进行。
+     *
+     * @return {@link #PERSIST_SAVED}、{@link #PERSIST_NOTHING_TO_SAVE} 或 {@link #PERSIST_FAILED}
+     */
+    synchronized int persist() {
+        if (!isWorthSaving()) { // 检查笔记是否值得保存（例如内容不为空或有修改）
+            return PERSIST_NOTHING_TO_SAVE;
+        }
+        if (!existInDatabase()) { // 如果笔记不存在于数据库中
+            // 笔记和数据行在同一个事务中插入，并得到全部 ID
+            if ((mNoteId = mNote.insertNote(mContext, mFolderId)) == 0) {
+                Log.e(TAG, "Create new note fail with id:" + mNoteId);
+                return PERSIST_FAILED;
+            }
+        } else if (!mNote.syncNote(mContext, mNoteId)) { // 同步笔记数据到数据库
+            Log.e(TAG, "Sync note " + mNoteId + " fail");
+            return PERSIST_FAILED;
+        }
+
+        // 记录历史版本，只记录这次实际写入的文本，内容未变化时不会新增
+        String content = mNote.getSavedText();
+        if (content != null) {
+            mRevisions.record(mNoteId, content, Notes.REVISION_REASON_SAVE);
+        }
+        NoteLoader.getInstance(mContext).invalidate(mNoteId);
+        return PERSIST_SAVED;
+    }
+
+    /**
+     * 如果笔记关联了小部件，并且有监听器，则通知小部件内容已更改。
+     */
+    void notifyWidgetChanged() {
+        if (mWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID
+                && mWidgetType != Notes.TYPE_WIDGET_INVALIDE
+                && mNoteSettingStatusListener != null) {
+            mNoteSettingStatusListener.onWidgetChanged();
+        }
+    }
+
+    /**
+     * 检查笔记是否有尚未保存的修改。
+     *
+     * @return 是否需要保存
+     */
+    public boolean hasUnsavedChanges() {
+        return isWorthSaving();
+    }
+
     /**
      * 检查笔记是否已经存在于数据库中。
      *
@@ -24,6 +24,7 @@ import android.text.format.DateFormat;
 import android.util.Log;
 
 import net.micode.notes.R;
+import net.micode.notes.data.ContentChunks;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
@@ -130,18 +131,22 @@ public class BackupUtils {
         private static final int NOTE_COLUMN_SNIPPET = 2;
 
         private static final String[] DATA_PROJECTION = {
-                DataColumns.CONTENT,          // 数据内容
+                DataColumns.CONTENT,          // 数据内容（分块时为第一块）
                 DataColumns.MIME_TYPE,        // 数据类型
                 DataColumns.DATA1,            // 数据字段 1
                 DataColumns.DATA2,            // 数据字段 2
                 DataColumns.DATA3,            // 数据字段 3
-                DataColumns.DATA4             // 数据字段 4
+                DataColumns.DATA4,            // 数据字段 4
+                DataColumns.ID,               // 数据 ID
+                DataColumns.CHUNK_COUNT       // 内容分块数
         };
 
         private static final int DATA_COLUMN_CONTENT = 0;
         private static final int DATA_COLUMN_MIME_TYPE = 1;
         private static final int DATA_COLUMN_CALL_DATE = 2;
         private static final int DATA_COLUMN_PHONE_NUMBER = 4;
+        private static final int DATA_COLUMN_ID = 6;
+        private static final int DATA_COLUMN_CHUNK_COUNT = 7;
 
         private final String[] TEXT_FORMAT;   // 导出文本的格式化字符串
         private static final int FORMAT_FOLDER_NAME = 0;    // 文件夹名称格式
@@ -232,7 +237,11 @@ public class BackupUtils {
                                 ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT), location));
                             }
                         } else if (DataConstants.NOTE.equals(mimeType)) {
-                            String content = dataCursor.getString(DATA_COLUMN_CONTENT);
+                            String content = ContentChunks.readContent(
+                                    mContext.getContentResolver(),
+                                    dataCursor.getLong(DATA_COLUMN_ID),
+                                    dataCursor.getString(DATA_COLUMN_CONTENT),
+                                    dataCursor.getInt(DATA_COLUMN_CHUNK_COUNT));
                             if (!TextUtils.isEmpty(content)) {
                                 ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT), content));
                             }
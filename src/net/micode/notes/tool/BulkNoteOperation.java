@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
+
+import java.util.HashSet;
+
+/**
+ * Deletes or moves many notes in the background, in chunks of {@link #CHUNK_SIZE} rows. Each
+ * chunk is a transaction of its own, so the write lock is given up between chunks and the
+ * list can read in between. The notes of chosen folders are handled before the folders, so
+ * that no chunk grows by the notes a folder takes along. The operation can be cancelled
+ * between chunks, the chunks done so far stay done. It may outlive the activity that started
+ * it, the callback can be replaced, see {@link #setCallback}.
+ */
+public class BulkNoteOperation extends AsyncTask<Void, Integer, HashSet<AppWidgetAttribute>> {
+    private static final String TAG = "BulkNoteOperation";
+
+    public static final int CHUNK_SIZE = 200;
+
+    // lets readers waiting for the database run before the next chunk
+    private static final long CHUNK_PAUSE = 20;
+
+    public interface Callback {
+        /**
+         * Called on the main thread after each chunk, and once with the total before the first
+         */
+        void onBulkProgress(int done, int total);
+
+        /**
+         * Called on the main thread when the operation is over
+         *
+         * @param widgets the widgets of the changed notes, to be updated
+         * @param cancelled whether the operation stopped before all notes were done
+         */
+        void onBulkFinished(HashSet<AppWidgetAttribute> widgets, int done, boolean cancelled);
+    }
+
+    private final ContentResolver mResolver;
+
+    private final String mMethod;
+
+    private final String mSelection;
+
+    private final String[] mSelectionArgs;
+
+    private final long mFolderId;
+
+    // only touched on the main thread
+    private Callback mCallback;
+
+    private final HashSet<AppWidgetAttribute> mWidgets;
+
+    private int mTotal;
+
+    private int mDone;
+
+    // last progress handed to the callback, no total yet while it is -1
+    private int mShownDone;
+
+    private int mShownTotal = -1;
+
+    private BulkNoteOperation(ContentResolver resolver, String method, String selection,
+            String[] selectionArgs, long folderId, Callback callback) {
+        mResolver = resolver;
+        mMethod = method;
+        mSelection = "(" + selection + ") AND " + NoteColumns.ID + ">0";
+        mSelectionArgs = selectionArgs;
+        mFolderId = folderId;
+        mCallback = callback;
+        mWidgets = new HashSet<AppWidgetAttribute>();
+    }
+
+    /**
+     * Delete the notes chosen by {@code selection}, folders with their notes
+     */
+    public static BulkNoteOperation delete(ContentResolver resolver, String selection,
+            String[] selectionArgs, Callback callback) {
+        return new BulkNoteOperation(resolver, Notes.METHOD_DELETE_NOTES, selection,
+                selectionArgs, 0, callback);
+    }
+
+    /**
+     * Move the notes chosen by {@code selection} into the folder {@code folderId}
+     */
+    public static BulkNoteOperation move(ContentResolver resolver, String selection,
+            String[] selectionArgs, long folderId, Callback callback) {
+        return new BulkNoteOperation(resolver, Notes.METHOD_MOVE_NOTES, selection,
+                selectionArgs, folderId, callback);
+    }
+
+    /**
+     * Hand the progress and the end of the operation to {@code callback} from now on, e.g.
+     * to the activity made again while it runs. Must be called on the main thread, the last
+     * progress is handed over at once.
+     */
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+        if (mShownTotal >= 0 && getStatus() == Status.RUNNING && !isCancelled()) {
+            callback.onBulkProgress(mShownDone, mShownTotal);
+        }
+    }
+
+    public Callback getCallback() {
+        return mCallback;
+    }
+
+    @Override
+    protected HashSet<AppWidgetAttribute> doInBackground(Void... unused) {
+        // folders deleted or moved to the trash take their notes along
+        boolean withFolderNotes = Notes.METHOD_DELETE_NOTES.equals(mMethod)
+                || mFolderId == Notes.ID_TRASH_FOLER;
+        String folderNotes = NoteColumns.PARENT_ID + " IN (SELECT " + NoteColumns.ID
+                + " FROM " + TABLE.NOTE + " WHERE " + mSelection + ")";
+
+        mTotal = count(mSelection);
+        if (withFolderNotes) {
+            mTotal += count(folderNotes);
+        }
+        publishProgress(0, mTotal);
+
+        if (withFolderNotes && !runChunks(folderNotes)) {
+            return mWidgets;
+        }
+        runChunks(mSelection);
+        return mWidgets;
+    }
+
+    /**
+     * @return false if the operation was cancelled or failed
+     */
+    private boolean runChunks(String selection) {
+        long afterId = 0;
+        while (!isCancelled()) {
+            Bundle extras = new Bundle();
+            extras.putString(Notes.EXTRA_SELECTION, selection);
+            extras.putStringArray(Notes.EXTRA_SELECTION_ARGS, mSelectionArgs);
+            extras.putLong(Notes.EXTRA_TARGET_FOLDER_ID, mFolderId);
+            extras.putInt(Notes.EXTRA_LIMIT, CHUNK_SIZE);
+            extras.putLong(Notes.EXTRA_AFTER_ID, afterId);
+            Bundle result;
+            try {
+                result = mResolver.call(Notes.CONTENT_NOTE_URI, mMethod, null, extras);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, mMethod + " failed: " + e.toString());
+                return false;
+            }
+            if (result == null) {
+                Log.e(TAG, mMethod + " failed, no result");
+                return false;
+            }
+
+            long lastId = result.getLong(Notes.EXTRA_LAST_ID, afterId);
+            if (lastId == afterId) {
+                return true;
+            }
+            afterId = lastId;
+            DataUtils.addWidgets(result, mWidgets);
+            mDone += result.getInt(Notes.EXTRA_COUNT);
+            publishProgress(mDone, Math.max(mDone, mTotal));
+            SystemClock.sleep(CHUNK_PAUSE);
+        }
+        return false;
+    }
+
+    private int count(String selection) {
+        Cursor cursor = mResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+            "COUNT(*)"
+        }, selection, mSelectionArgs, null);
+        if (cursor == null) {
+            Log.e(TAG, "Count notes failed");
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... progress) {
+        mShownDone = progress[0];
+        mShownTotal = progress[1];
+        mCallback.onBulkProgress(progress[0], progress[1]);
+    }
+
+    @Override
+    protected void onPostExecute(HashSet<AppWidgetAttribute> widgets) {
+        mCallback.onBulkFinished(widgets, mDone, false);
+    }
+
+    @Override
+    protected void onCancelled(HashSet<AppWidgetAttribute> widgets) {
+        mCallback.onBulkFinished(widgets != null ? widgets : mWidgets, mDone, true);
+    }
+}
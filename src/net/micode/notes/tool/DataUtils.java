@@ -21,11 +21,14 @@ import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.os.Bundle;
 import android.os.RemoteException;
 import android.util.Log;
 
+import net.micode.notes.data.FolderRegistry;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
 import net.micode.notes.data.Notes.NoteColumns;
@@ -139,31 +142,13 @@ public class DataUtils {
     }
 
     /**
-     * 获取用户创建的文件夹数量（不包括系统文件夹）。
+     * 获取用户创建的文件夹数量（不包括系统文件夹和回收站中的文件夹），由内存中的文件夹表提供。
      *
-     * @param resolver ContentResolver 对象。
+     * @param context Context 对象。
      * @return 文件夹数量。
      */
-    public static int getUserFolderCount(ContentResolver resolver) {
-        Cursor cursor = resolver.query(Notes.CONTENT_NOTE_URI,
-                new String[] { "COUNT(*)" },
-                NoteColumns.TYPE + "=? AND " + NoteColumns.PARENT_ID + "<>?",
-                new String[] { String.valueOf(Notes.TYPE_FOLDER), String.valueOf(Notes.ID_TRASH_FOLDER)},
-                null);
-
-        int count = 0;
-        if (cursor != null) {
-            if (cursor.moveToFirst()) {
-                try {
-                    count = cursor.getInt(0);
-                } catch (IndexOutOfBoundsException e) {
-                    Log.e(TAG, "Get folder count failed: " + e.toString());
-                } finally {
-                    cursor.close();
-                }
-            }
-        }
-        return count;
+    public static int getUserFolderCount(Context context) {
+        return FolderRegistry.getInstance(context).getUserFolderCount();
     }
 
     /**
@@ -234,60 +219,56 @@ public class DataUtils {
     }
 
     /**
-     * 检查文件夹名称是否已存在（不包括回收站中的文件夹）。
+     * 检查文件夹名称是否已存在（不包括回收站中的文件夹），由内存中的文件夹表提供，新建或重命名文件夹后表会立即重新读取。
      *
-     * @param resolver ContentResolver 对象。
+     * @param context Context 对象。
      * @param name 文件夹名称。
      * @return 是否已存在。
      */
-    public static boolean checkVisibleFolderName(ContentResolver resolver, String name) {
-        Cursor cursor = resolver.query(Notes.CONTENT_NOTE_URI, null,
-                NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER +
-                        " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLDER +
-                        " AND " + NoteColumns.SNIPPET + "=?",
-                new String[] { name }, null);
-        boolean        boolean exist = false;
-        if (cursor != null) {
-            if (cursor.getCount() > 0) {
-                exist = true;
-            }
-            cursor.close();
-        }
-        return exist;
+    public static boolean checkVisibleFolderName(Context context, String name) {
+        return FolderRegistry.getInstance(context).hasVisibleFolder(name);
     }
 
     /**
-     * 获取指定文件夹中所有笔记的小部件属性。
+     * 清除所有笔记的同步信息（gtask_id 和 sync_id），由 ContentProvider 用一条语句完成，
+     * 不增加笔记的版本号。
      *
      * @param resolver ContentResolver 对象。
-     * @param folderId 文件夹 ID。
-     * @return 包含所有笔记小部件属性的集合。
+     * @return 被清除的笔记数量，失败时返回 -1。
      */
-    public static HashSet<AppWidgetAttribute> getFolderNoteWidget(ContentResolver resolver, long folderId) {
-        Cursor c = resolver.query(Notes.CONTENT_NOTE_URI,
-                new String[] { NoteColumns.WIDGET_ID, NoteColumns.WIDGET_TYPE },
-                NoteColumns.PARENT_ID + "=?",
-                new String[] { String.valueOf(folderId) },
-                null);
+    public static int resetSyncInfo(ContentResolver resolver) {
+        Bundle result;
+        try {
+            result = resolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_RESET_SYNC_INFO, null,
+                    null);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Reset sync info failed: " + e.toString());
+            return -1;
+        }
+        if (result == null) {
+            Log.e(TAG, "Reset sync info failed, no result");
+            return -1;
+        }
+        return result.getInt(Notes.EXTRA_COUNT);
+    }
 
-        HashSet<AppWidgetAttribute> set = null;
-        if (c != null) {
-            if (c.moveToFirst()) {
-                set = new HashSet<>();
-                do {
-                    try {
-                        AppWidgetAttribute widget = new AppWidgetAttribute();
-                        widget.widgetId = c.getInt(0); // 小部件 ID
-                        widget.widgetType = c.getInt(1); // 小部件类型
-                        set.add(widget);
-                    } catch (IndexOutOfBoundsException e) {
-                        Log.e(TAG, e.toString());
-                    }
-                } while (c.moveToNext());
+    /**
+     * 把批量调用结果中的小部件加入集合。
+     *
+     * @param result 批量调用的结果。
+     * @param set 受影响的小部件属性集合。
+     */
+    static void addWidgets(Bundle result, HashSet<AppWidgetAttribute> set) {
+        int[] widgetIds = result.getIntArray(Notes.EXTRA_WIDGET_IDS);
+        int[] widgetTypes = result.getIntArray(Notes.EXTRA_WIDGET_TYPES);
+        if (widgetIds != null && widgetTypes != null) {
+            for (int i = 0; i < widgetIds.length; i++) {
+                AppWidgetAttribute widget = new AppWidgetAttribute();
+                widget.widgetId = widgetIds[i]; // 小部件 ID
+                widget.widgetType = widgetTypes[i]; // 小部件类型
+                set.add(widget);
             }
-            c.close();
         }
-        return set;
     }
 
     /**
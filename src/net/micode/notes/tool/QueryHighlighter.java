@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.TextUtils;
+import android.text.style.BackgroundColorSpan;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Highlights the words of a search query in texts. The query is taken literally and split at
+ * white spaces, every word is matched ignoring case. All words are looked for in one pass over
+ * the text, and the found ranges of recent short texts, e.g. list titles, are cached.
+ */
+public class QueryHighlighter {
+    private static final int CACHE_SIZE = 64;
+
+    // longer texts, e.g. a whole note in the editor, are matched every time instead of being
+    // kept as cache keys
+    private static final int MAX_CACHED_LENGTH = 512;
+
+    private static final int[] NO_RANGES = new int[0];
+
+    private static class Node {
+        char[] labels = new char[0];
+
+        Node[] children = new Node[0];
+
+        Node fail;
+
+        // length of the longest word ending here, 0 if none does
+        int match;
+
+        Node child(char c) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node node = new Node();
+            labels = Arrays.copyOf(labels, labels.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            labels[labels.length - 1] = c;
+            children[children.length - 1] = node;
+            return node;
+        }
+    }
+
+    private final String mQuery;
+
+    private final Node mRoot;
+
+    private final LruCache<String, int[]> mRanges;
+
+    public QueryHighlighter(String query) {
+        mQuery = query != null ? query : "";
+        mRoot = new Node();
+        mRanges = new LruCache<String, int[]>(CACHE_SIZE);
+        for (String word : mQuery.trim().split("\\s+")) {
+            if (word.length() > 0) {
+                addWord(word);
+            }
+        }
+        buildFailLinks();
+    }
+
+    public String getQuery() {
+        return mQuery;
+    }
+
+    public boolean isEmpty() {
+        return mRoot.labels.length == 0;
+    }
+
+    public boolean hasSameQuery(String query) {
+        return TextUtils.equals(mQuery, query != null ? query : "");
+    }
+
+    private void addWord(String word) {
+        Node node = mRoot;
+        for (int i = 0; i < word.length(); i++) {
+            char c = fold(word.charAt(i));
+            Node next = node.child(c);
+            node = next != null ? next : node.addChild(c);
+        }
+        node.match = word.length();
+    }
+
+    private void buildFailLinks() {
+        ArrayList<Node> queue = new ArrayList<Node>();
+        for (Node child : mRoot.children) {
+            child.fail = mRoot;
+            queue.add(child);
+        }
+        for (int head = 0; head < queue.size(); head++) {
+            Node node = queue.get(head);
+            for (int i = 0; i < node.labels.length; i++) {
+                Node child = node.children[i];
+                Node fail = node.fail;
+                while (fail != mRoot && fail.child(node.labels[i]) == null) {
+                    fail = fail.fail;
+                }
+                Node target = fail.child(node.labels[i]);
+                child.fail = target != null && target != child ? target : mRoot;
+                child.match = Math.max(child.match, child.fail.match);
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * @return the ranges to highlight as start and end offsets one after another, sorted and
+     *         not overlapping
+     */
+    public int[] findRanges(CharSequence text) {
+        if (isEmpty() || TextUtils.isEmpty(text)) {
+            return NO_RANGES;
+        }
+        if (text.length() > MAX_CACHED_LENGTH) {
+            return match(text);
+        }
+        String key = text.toString();
+        int[] ranges = mRanges.get(key);
+        if (ranges == null) {
+            ranges = match(key);
+            mRanges.put(key, ranges);
+        }
+        return ranges;
+    }
+
+    private int[] match(CharSequence text) {
+        int[] ranges = new int[8];
+        int count = 0;
+        Node node = mRoot;
+        for (int i = 0; i < text.length(); i++) {
+            char c = fold(text.charAt(i));
+            Node next = node.child(c);
+            while (next == null && node != mRoot) {
+                node = node.fail;
+                next = node.child(c);
+            }
+            node = next != null ? next : mRoot;
+            if (node.match == 0) {
+                continue;
+            }
+
+            int start = i + 1 - node.match;
+            int end = i + 1;
+            if (count > 0 && start <= ranges[count - 1]) {
+                // overlaps or touches the previous range
+                ranges[count - 2] = Math.min(ranges[count - 2], start);
+                ranges[count - 1] = end;
+                // a long word may reach back over earlier ranges too
+                while (count > 2 && ranges[count - 2] <= ranges[count - 3]) {
+                    ranges[count - 4] = Math.min(ranges[count - 4], ranges[count - 2]);
+                    ranges[count - 3] = ranges[count - 1];
+                    count -= 2;
+                }
+            } else {
+                if (count == ranges.length) {
+                    ranges = Arrays.copyOf(ranges, count * 2);
+                }
+                ranges[count++] = start;
+                ranges[count++] = end;
+            }
+        }
+        return Arrays.copyOf(ranges, count);
+    }
+
+    /**
+     * @return the text with a background of {@code color} behind the words of the query, or
+     *         the text itself when nothing is found
+     */
+    public CharSequence highlight(CharSequence text, int color) {
+        if (text == null) {
+            return "";
+        }
+        int[] ranges = findRanges(text);
+        if (ranges.length == 0) {
+            return text;
+        }
+        Spannable spannable = new SpannableString(text);
+        for (int i = 0; i < ranges.length; i += 2) {
+            spannable.setSpan(new BackgroundColorSpan(color), ranges[i], ranges[i + 1],
+                    Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+        }
+        return spannable;
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the background work of the app. Work goes to one of the {@link Lane}s, each a pool
+ * with a fixed number of threads of its own priority, so reads the user waits for are never
+ * queued behind a sync or an export. The queue of a lane is bounded, see
+ * {@link Lane#BACKGROUND} for what happens when it is full. Every task is named; the time it waited and ran is
+ * recorded per name, slow tasks are logged right away and the totals now and then.
+ */
+public class TaskExecutor {
+    private static final String TAG = "TaskExecutor";
+
+    // totals of a task name are logged after this many runs
+    private static final int STATS_LOG_INTERVAL = 50;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    public enum Lane {
+        /**
+         * Reads the user is waiting for, e.g. the notes list or a note being opened. When
+         * the queue is full the caller runs the task itself, it is slowed down rather than
+         * losing the read
+         */
+        READ(2, Process.THREAD_PRIORITY_DEFAULT, 128, false, 100),
+
+        /**
+         * Saves and other writes of the user, never dropped like the reads
+         */
+        WRITE(2, Process.THREAD_PRIORITY_BACKGROUND, 128, false, 500),
+
+        /**
+         * Sync, export and maintenance nobody is waiting for. When the queue is full a task
+         * is dropped; it is mostly the same work asked for again, e.g. another export while
+         * one still waits
+         */
+        BACKGROUND(2, Process.THREAD_PRIORITY_BACKGROUND
+                + Process.THREAD_PRIORITY_LESS_FAVORABLE, 16, true, 5000);
+
+        private final int mThreads;
+
+        private final int mPriority;
+
+        private final int mQueueSize;
+
+        // whether a task which does not fit the queue is dropped or run by the caller
+        private final boolean mDropWhenFull;
+
+        // waiting or running longer than this is logged
+        private final long mSlowMillis;
+
+        private ThreadPoolExecutor mPool;
+
+        Lane(int threads, int priority, int queueSize, boolean dropWhenFull,
+                long slowMillis) {
+            mThreads = threads;
+            mPriority = priority;
+            mQueueSize = queueSize;
+            mDropWhenFull = dropWhenFull;
+            mSlowMillis = slowMillis;
+        }
+
+        private synchronized ThreadPoolExecutor pool() {
+            if (mPool == null) {
+                final String prefix = "notes-" + name().toLowerCase(Locale.US) + "-";
+                final AtomicInteger count = new AtomicInteger();
+                mPool = new ThreadPoolExecutor(mThreads, mThreads, KEEP_ALIVE_SECONDS,
+                        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(mQueueSize),
+                        new ThreadFactory() {
+                            public Thread newThread(final Runnable r) {
+                                return new Thread(new Runnable() {
+                                    public void run() {
+                                        Process.setThreadPriority(mPriority);
+                                        r.run();
+                                    }
+                                }, prefix + count.incrementAndGet());
+                            }
+                        }, new RejectedExecutionHandler() {
+                            public void rejectedExecution(Runnable r, ThreadPoolExecutor pool) {
+                                reject(r, pool);
+                            }
+                        });
+                mPool.allowCoreThreadTimeOut(true);
+            }
+            return mPool;
+        }
+
+        private void reject(Runnable r, ThreadPoolExecutor pool) {
+            String name = r instanceof Task ? ((Task<?>) r).mName : r.toString();
+            if (!mDropWhenFull) {
+                Log.w(TAG, "Queue of " + this + " full, task " + name + " runs on the caller");
+                r.run();
+                return;
+            }
+            boolean waiting = false;
+            for (Runnable queued : pool.getQueue()) {
+                if (queued instanceof Task && ((Task<?>) queued).mName.equals(name)) {
+                    waiting = true;
+                    break;
+                }
+            }
+            if (r instanceof Future) {
+                // whoever waits for the result is not left hanging
+                ((Future<?>) r).cancel(false);
+            }
+            if (waiting) {
+                Log.w(TAG, "Queue of " + this + " full, task " + name + " already waits");
+            } else {
+                Log.e(TAG, "Queue of " + this + " full, task " + name + " dropped");
+            }
+        }
+    }
+
+    private static class Stats {
+        int count;
+        long totalWait;
+        long maxWait;
+        long totalRun;
+        long maxRun;
+    }
+
+    private static final HashMap<String, Stats> sStats = new HashMap<String, Stats>();
+
+    private static class Task<V> extends FutureTask<V> {
+        private final Lane mLane;
+
+        private final String mName;
+
+        private final long mQueueTime;
+
+        Task(Lane lane, String name, long queueTime, Callable<V> callable) {
+            super(callable);
+            mLane = lane;
+            mName = name;
+            mQueueTime = queueTime;
+        }
+
+        Task(Lane lane, String name, long queueTime, Runnable runnable) {
+            super(runnable, null);
+            mLane = lane;
+            mName = name;
+            mQueueTime = queueTime;
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled()) {
+                return;
+            }
+            long start = SystemClock.uptimeMillis();
+            super.run();
+            record(mLane, mName, start - mQueueTime, SystemClock.uptimeMillis() - start);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                get();
+            } catch (Exception e) {
+                // the owner may never look at the result, do not lose the failure
+                Log.e(TAG, "Task " + mName + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Keeps the order of the tasks given to it, running one at a time
+     */
+    private static class SerialExecutor implements Executor {
+        private final Lane mLane;
+
+        private final String mName;
+
+        private final ArrayDeque<Task<Void>> mTasks = new ArrayDeque<Task<Void>>();
+
+        private Task<Void> mActive;
+
+        SerialExecutor(Lane lane, String name) {
+            mLane = lane;
+            mName = name;
+        }
+
+        public synchronized void execute(final Runnable r) {
+            mTasks.offer(new Task<Void>(mLane, mName, SystemClock.uptimeMillis(),
+                    new Runnable() {
+                        public void run() {
+                            try {
+                                r.run();
+                            } finally {
+                                scheduleNext();
+                            }
+                        }
+                    }));
+            if (mActive == null) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            mActive = mTasks.poll();
+            if (mActive != null) {
+                mLane.pool().execute(mActive);
+            }
+        }
+    }
+
+    private TaskExecutor() {
+    }
+
+    /**
+     * Run {@code task} on {@code lane}
+     *
+     * @param name names the kind of task in the logged latencies
+     * @return to cancel the task before it runs
+     */
+    public static Future<?> submit(Lane lane, String name, Runnable task) {
+        Task<Object> t = new Task<Object>(lane, name, SystemClock.uptimeMillis(), task);
+        lane.pool().execute(t);
+        return t;
+    }
+
+    public static <V> Future<V> submit(Lane lane, String name, Callable<V> task) {
+        Task<V> t = new Task<V>(lane, name, SystemClock.uptimeMillis(), task);
+        lane.pool().execute(t);
+        return t;
+    }
+
+    /**
+     * @return an executor running its tasks on {@code lane} one after another in order
+     */
+    public static Executor newSerialExecutor(Lane lane, String name) {
+        return new SerialExecutor(lane, name);
+    }
+
+    /**
+     * @return an executor running its tasks on {@code lane}, e.g. for
+     *         {@link android.os.AsyncTask#executeOnExecutor}
+     */
+    public static Executor getExecutor(final Lane lane, final String name) {
+        return new Executor() {
+            public void execute(Runnable r) {
+                submit(lane, name, r);
+            }
+        };
+    }
+
+    private static void record(Lane lane, String name, long wait, long run) {
+        if (wait > lane.mSlowMillis || run > lane.mSlowMillis) {
+            Log.w(TAG, "Slow task " + name + " on " + lane + ": waited " + wait + "ms, ran "
+                    + run + "ms");
+        }
+        synchronized (sStats) {
+            Stats stats = sStats.get(name);
+            if (stats == null) {
+                stats = new Stats();
+                sStats.put(name, stats);
+            }
+            stats.count++;
+            stats.totalWait += wait;
+            stats.maxWait = Math.max(stats.maxWait, wait);
+            stats.totalRun += run;
+            stats.maxRun = Math.max(stats.maxRun, run);
+            if (stats.count % STATS_LOG_INTERVAL == 0) {
+                Log.d(TAG, name + ": " + stats.count + " runs, wait avg "
+                        + stats.totalWait / stats.count + "ms max " + stats.maxWait
+                        + "ms, run avg " + stats.totalRun / stats.count + "ms max "
+                        + stats.maxRun + "ms");
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.Context;
+import android.graphics.Paint;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.View.OnFocusChangeListener;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.CompoundButton.OnCheckedChangeListener;
+
+import net.micode.notes.R;
+import net.micode.notes.tool.QueryHighlighter;
+import net.micode.notes.ui.NoteEditText.OnTextViewChangeListener;
+
+/**
+ * Shows a {@link CheckListModel} in a list view, only the items on screen have views and the
+ * views are reused while scrolling. Edits go to the model directly.
+ */
+public class CheckListAdapter extends BaseAdapter {
+    public interface OnItemEditListener {
+        void onItemEdited();
+    }
+
+    private final Context mContext;
+
+    private final LayoutInflater mInflater;
+
+    private final OnTextViewChangeListener mTextViewChangeListener;
+
+    private final OnItemEditListener mEditListener;
+
+    private CheckListModel mModel;
+
+    private int mTextAppearance;
+
+    private QueryHighlighter mHighlighter;
+
+    // the item holding the focus, its view takes the focus again when it is rebound
+    private int mFocusPosition = -1;
+
+    private int mFocusSelection = -1;
+
+    private class ViewHolder implements TextWatcher, OnCheckedChangeListener,
+            OnFocusChangeListener {
+        CheckBox checkBox;
+
+        NoteEditText editText;
+
+        // -1 while the views are being bound
+        int position = -1;
+
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+
+        public void afterTextChanged(Editable s) {
+            if (position < 0) {
+                return;
+            }
+            mModel.setText(position, s.toString());
+            mEditListener.onItemEdited();
+        }
+
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            setStrikeThrough(editText, isChecked);
+            if (position < 0) {
+                return;
+            }
+            mModel.setChecked(position, isChecked);
+            mEditListener.onItemEdited();
+        }
+
+        public void onFocusChange(View v, boolean hasFocus) {
+            if (position < 0) {
+                return;
+            }
+            if (hasFocus) {
+                mFocusPosition = position;
+            } else if (mFocusPosition == position) {
+                mFocusPosition = -1;
+            }
+        }
+    }
+
+    public CheckListAdapter(Context context, OnTextViewChangeListener textViewChangeListener,
+            OnItemEditListener editListener) {
+        mContext = context;
+        mInflater = LayoutInflater.from(context);
+        mTextViewChangeListener = textViewChangeListener;
+        mEditListener = editListener;
+    }
+
+    public void setModel(CheckListModel model) {
+        mModel = model;
+        mFocusPosition = -1;
+        mFocusSelection = -1;
+        notifyDataSetChanged();
+    }
+
+    public CheckListModel getModel() {
+        return mModel;
+    }
+
+    public void setTextAppearance(int resId) {
+        mTextAppearance = resId;
+        notifyDataSetChanged();
+    }
+
+    public void setHighlighter(QueryHighlighter highlighter) {
+        mHighlighter = highlighter;
+    }
+
+    /**
+     * Move the focus to the item once its view is bound
+     *
+     * @param selection cursor position in the item, clamped to its length
+     */
+    public void requestFocus(int position, int selection) {
+        mFocusPosition = position;
+        mFocusSelection = selection;
+        notifyDataSetChanged();
+    }
+
+    public int getCount() {
+        return mModel != null ? mModel.size() : 0;
+    }
+
+    public Object getItem(int position) {
+        return mModel.getText(position);
+    }
+
+    public long getItemId(int position) {
+        return position;
+    }
+
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
+        if (convertView == null) {
+            convertView = mInflater.inflate(R.layout.note_edit_list_item, parent, false);
+            holder = new ViewHolder();
+            holder.checkBox = (CheckBox) convertView.findViewById(R.id.cb_edit_item);
+            holder.editText = (NoteEditText) convertView.findViewById(R.id.et_edit_text);
+            holder.editText.setOnTextViewChangeListener(mTextViewChangeListener);
+            holder.editText.addTextChangedListener(holder);
+            holder.editText.setOnFocusChangeListener(holder);
+            holder.checkBox.setOnCheckedChangeListener(holder);
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+        bindView(holder, position);
+        return convertView;
+    }
+
+    private void bindView(ViewHolder holder, int position) {
+        boolean rebind = holder.position == position;
+        holder.position = -1;
+        NoteEditText edit = holder.editText;
+        if (edit.hasFocus() && position != mFocusPosition) {
+            edit.clearFocus();
+        }
+
+        String text = mModel.getText(position);
+        boolean checked = mModel.isChecked(position);
+        if (mTextAppearance != 0) {
+            edit.setTextAppearance(mContext, mTextAppearance);
+        }
+        edit.setIndex(position);
+        // keep the cursor when the same item is laid out again
+        if (!rebind || !TextUtils.equals(edit.getText().toString(), text)) {
+            edit.setText(highlight(text));
+        }
+        holder.checkBox.setChecked(checked);
+        setStrikeThrough(edit, checked);
+        holder.checkBox.setVisibility(!TextUtils.isEmpty(text) || position == mFocusPosition
+                ? View.VISIBLE : View.GONE);
+        holder.position = position;
+
+        if (position == mFocusPosition) {
+            if (!edit.hasFocus()) {
+                edit.requestFocus();
+            }
+            if (mFocusSelection >= 0) {
+                edit.setSelection(Math.min(mFocusSelection, edit.length()));
+                mFocusSelection = -1;
+            }
+        }
+    }
+
+    private CharSequence highlight(String text) {
+        if (mHighlighter == null) {
+            return text;
+        }
+        return mHighlighter.highlight(text,
+                mContext.getResources().getColor(R.color.user_query_highlight));
+    }
+
+    private static void setStrikeThrough(NoteEditText edit, boolean checked) {
+        if (checked) {
+            edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
+        } else {
+            edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+
+/**
+ * Items of a check list note. The text of the note is kept along with the items, an edit only
+ * serializes the items from the first changed one on, the text before it is copied as it was.
+ */
+public class CheckListModel {
+    private static class Item {
+        String text;
+
+        boolean checked;
+
+        // the line of this item in the note text, null when it has to be built again
+        String line;
+
+        Item(String text, boolean checked) {
+            this.text = text;
+            this.checked = checked;
+        }
+
+        String getLine() {
+            if (line == null) {
+                if (TextUtils.isEmpty(text)) {
+                    line = "";
+                } else {
+                    line = (checked ? NoteEditActivity.TAG_CHECKED
+                            : NoteEditActivity.TAG_UNCHECKED) + " " + text + "\n";
+                }
+            }
+            return line;
+        }
+
+        boolean isCountedChecked() {
+            return checked && !TextUtils.isEmpty(text);
+        }
+    }
+
+    private final ArrayList<Item> mItems;
+
+    // mOffsets[i] is where item i starts in mText, valid for i <= mValidCount
+    private int[] mOffsets;
+
+    private int mValidCount;
+
+    private String mText;
+
+    private int mCheckedCount;
+
+    private CheckListModel() {
+        mItems = new ArrayList<Item>();
+        mOffsets = new int[16];
+        mValidCount = 0;
+        mText = "";
+    }
+
+    /**
+     * Parse the note text, empty lines are dropped and an empty item is added at the end
+     */
+    public static CheckListModel parse(String text) {
+        CheckListModel model = new CheckListModel();
+        if (text != null) {
+            int start = 0;
+            int length = text.length();
+            while (start < length) {
+                int end = text.indexOf('\n', start);
+                if (end < 0) {
+                    end = length;
+                }
+                if (end > start) {
+                    model.mItems.add(parseItem(text.substring(start, end)));
+                }
+                start = end + 1;
+            }
+        }
+        model.mItems.add(new Item("", false));
+        for (Item item : model.mItems) {
+            if (item.isCountedChecked()) {
+                model.mCheckedCount++;
+            }
+        }
+        return model;
+    }
+
+    private static Item parseItem(String line) {
+        if (line.startsWith(NoteEditActivity.TAG_CHECKED)) {
+            return new Item(line.substring(NoteEditActivity.TAG_CHECKED.length()).trim(), true);
+        } else if (line.startsWith(NoteEditActivity.TAG_UNCHECKED)) {
+            return new Item(line.substring(NoteEditActivity.TAG_UNCHECKED.length()).trim(),
+                    false);
+        }
+        return new Item(line, false);
+    }
+
+    public int size() {
+        return mItems.size();
+    }
+
+    public String getText(int index) {
+        return mItems.get(index).text;
+    }
+
+    public boolean isChecked(int index) {
+        return mItems.get(index).checked;
+    }
+
+    /**
+     * @return whether any non-empty item is checked
+     */
+    public boolean hasChecked() {
+        return mCheckedCount > 0;
+    }
+
+    public void setText(int index, String text) {
+        Item item = mItems.get(index);
+        if (TextUtils.equals(item.text, text)) {
+            return;
+        }
+        uncount(item);
+        item.text = text;
+        count(item);
+        changed(index);
+    }
+
+    public void setChecked(int index, boolean checked) {
+        Item item = mItems.get(index);
+        if (item.checked == checked) {
+            return;
+        }
+        uncount(item);
+        item.checked = checked;
+        count(item);
+        changed(index);
+    }
+
+    public void insert(int index, String text) {
+        Item item = new Item(text, false);
+        mItems.add(index, item);
+        count(item);
+        changed(index);
+    }
+
+    public void remove(int index) {
+        uncount(mItems.remove(index));
+        changed(index);
+    }
+
+    /**
+     * @return the note text of the items
+     */
+    public String toText() {
+        int size = mItems.size();
+        if (mValidCount == size) {
+            return mText;
+        }
+        if (mOffsets.length < size + 1) {
+            int[] offsets = new int[Math.max(size + 1, mOffsets.length * 2)];
+            System.arraycopy(mOffsets, 0, offsets, 0, mValidCount + 1);
+            mOffsets = offsets;
+        }
+
+        StringBuilder sb = new StringBuilder(mText.length() + 64);
+        sb.append(mText, 0, mOffsets[mValidCount]);
+        for (int i = mValidCount; i < size; i++) {
+            mOffsets[i] = sb.length();
+            sb.append(mItems.get(i).getLine());
+        }
+        mOffsets[size] = sb.length();
+        mText = sb.toString();
+        mValidCount = size;
+        return mText;
+    }
+
+    private void changed(int index) {
+        if (index < mItems.size()) {
+            mItems.get(index).line = null;
+        }
+        mValidCount = Math.min(mValidCount, index);
+    }
+
+    private void count(Item item) {
+        if (item.isCountedChecked()) {
+            mCheckedCount++;
+        }
+    }
+
+    private void uncount(Item item) {
+        if (item.isCountedChecked()) {
+            mCheckedCount--;
+        }
+    }
+}
@@ -17,50 +17,52 @@
 package net.micode.notes.ui;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
+import android.widget.BaseAdapter;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import net.micode.notes.R;
+import net.micode.notes.data.FolderRegistry.Folder;
 import net.micode.notes.data.Notes;
-import net.micode.notes.data.Notes.NoteColumns;
 
+import java.util.List;
 
-public class FoldersListAdapter extends CursorAdapter {
-    public static final String [] PROJECTION = {
-        NoteColumns.ID,
-        NoteColumns.SNIPPET
-    };
 
-    public static final int ID_COLUMN   = 0;
-    public static final int NAME_COLUMN = 1;
+public class FoldersListAdapter extends BaseAdapter {
+    private final Context mContext;
 
-    public FoldersListAdapter(Context context, Cursor c) {
-        super(context, c);
-        // TODO Auto-generated constructor stub
+    private final List<Folder> mFolders;
+
+    public FoldersListAdapter(Context context, List<Folder> folders) {
+        mContext = context;
+        mFolders = folders;
     }
 
-    @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return new FolderListItem(context);
+    public int getCount() {
+        return mFolders.size();
     }
 
-    @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-        if (view instanceof FolderListItem) {
-            String folderName = (cursor.getLong(ID_COLUMN) == Notes.ID_ROOT_FOLDER) ? context
-                    .getString(R.string.menu_move_parent_folder) : cursor.getString(NAME_COLUMN);
-            ((FolderListItem) view).bind(folderName);
-        }
+    public Object getItem(int position) {
+        return mFolders.get(position);
+    }
+
+    public long getItemId(int position) {
+        return mFolders.get(position).id;
+    }
+
+    public View getView(int position, View convertView, ViewGroup parent) {
+        FolderListItem view = convertView instanceof FolderListItem
+                ? (FolderListItem) convertView : new FolderListItem(mContext);
+        view.bind(getFolderName(mContext, position));
+        return view;
     }
 
     public String getFolderName(Context context, int position) {
-        Cursor cursor = (Cursor) getItem(position);
-        return (cursor.getLong(ID_COLUMN) == Notes.ID_ROOT_FOLDER) ? context
-                .getString(R.string.menu_move_parent_folder) : cursor.getString(NAME_COLUMN);
+        Folder folder = mFolders.get(position);
+        return (folder.id == Notes.ID_ROOT_FOLDER) ? context
+                .getString(R.string.menu_move_parent_folder) : folder.name;
     }
 
     private class FolderListItem extends LinearLayout {
@@ -27,37 +27,34 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.graphics.Paint;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
-import android.text.Spannable;
-import android.text.SpannableString;
+import android.text.Editable;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.text.format.DateUtils;
-import android.text.style.BackgroundColorSpan;
 import android.util.Log;
-import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.WindowManager;
-import android.widget.CheckBox;
-import android.widget.CompoundButton;
-import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.EditText;
 import android.widget.ImageView;
-import android.widget.LinearLayout;
+import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.model.NoteAutoSaver;
+import net.micode.notes.model.NoteLoader;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.model.WorkingNote.NoteSettingChangedListener;
 import net.micode.notes.tool.DataUtils;
+import net.micode.notes.tool.QueryHighlighter;
 import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.tool.ResourceParser.TextAppearanceResources;
 import net.micode.notes.ui.DateTimePickerDialog.OnDateTimeSetListener;
@@ -68,12 +65,10 @@ import net.micode.notes.widget.NoteWidgetProvider_4x;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 
 public class NoteEditActivity extends Activity implements OnClickListener,
-        NoteSettingChangedListener, OnTextViewChangeListener {
+        NoteSettingChangedListener, OnTextViewChangeListener, NoteLoader.Callback {
     private class HeadViewHolder {
         public TextView tvModified;
 
@@ -132,8 +127,32 @@ public class NoteEditActivity extends Activity implements OnClickListener,
 
     private View mNoteEditorPanel;
 
+    private ProgressiveTextRenderer mTextRenderer;
+
     private WorkingNote mWorkingNote;
 
+    // the note being loaded in the background, 0 if none
+    private long mLoadingNoteId;
+
+    private boolean mResumed;
+
+    private NoteAutoSaver mAutoSaver;
+
+    private final TextWatcher mAutoSaveWatcher = new TextWatcher() {
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+
+        public void afterTextChanged(Editable s) {
+            // appending a long text piece by piece is not an edit
+            if (mAutoSaver != null && !mTextRenderer.isRendering()) {
+                mAutoSaver.onEdit();
+            }
+        }
+    };
+
     private SharedPreferences mSharedPrefs;
     private int mFontSizeId;
 
@@ -144,10 +163,16 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     public static final String TAG_CHECKED = String.valueOf('\u221A');
     public static final String TAG_UNCHECKED = String.valueOf('\u25A1');
 
-    private LinearLayout mEditTextList;
+    private View mNoteEditScroll;
+
+    private ListView mCheckListView;
+
+    private CheckListAdapter mCheckListAdapter;
+
+    private CheckListModel mCheckList;
 
     private String mUserQuery;
-    private Pattern mPattern;
+    private QueryHighlighter mHighlighter;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -184,7 +209,12 @@ public class NoteEditActivity extends Activity implements OnClickListener,
          * If the user specified the {@link Intent#ACTION_VIEW} but not provided with id,
          * then jump to the NotesListActivity
          */
+        if (mAutoSaver != null) {
+            mAutoSaver.release();
+            mAutoSaver = null;
+        }
         mWorkingNote = null;
+        mLoadingNoteId = 0;
         if (TextUtils.equals(Intent.ACTION_VIEW, intent.getAction())) {
             long noteId = intent.getLongExtra(Intent.EXTRA_UID, 0);
             mUserQuery = "";
@@ -197,23 +227,14 @@ public class NoteEditActivity extends Activity implements OnClickListener,
                 mUserQuery = intent.getStringExtra(SearchManager.USER_QUERY);
             }
 
-            if (!DataUtils.visibleInNoteDatabase(getContentResolver(), noteId, Notes.TYPE_NOTE)) {
-                Intent jump = new Intent(this, NotesListActivity.class);
-                startActivity(jump);
-                showToast(R.string.error_note_not_exist);
-                finish();
-                return false;
-            } else {
-                mWorkingNote = WorkingNote.load(this, noteId);
-                if (mWorkingNote == null) {
-                    Log.e(TAG, "load note failed with note id" + noteId);
-                    finish();
-                    return false;
-                }
-            }
             getWindow().setSoftInputMode(
                     WindowManager.LayoutParams.SOFT_INPUT_STATE_HIDDEN
                             | WindowManager.LayoutParams.SOFT_INPUT_ADJUST_RESIZE);
+            // the note is usually prefetched when its row is pressed in the list, otherwise
+            // it is shown once loaded, see onNoteLoaded
+            mLoadingNoteId = noteId;
+            NoteLoader.getInstance(this).load(this, noteId, this);
+            return true;
         } else if(TextUtils.equals(Intent.ACTION_INSERT_OR_EDIT, intent.getAction())) {
             // New note
             long folderId = intent.getLongExtra(Notes.INTENT_EXTRA_FOLDER_ID, 0);
@@ -258,14 +279,47 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             finish();
             return false;
         }
-        mWorkingNote.setOnSettingStatusChangedListener(this);
+        attachWorkingNote();
         return true;
     }
 
+    public void onNoteLoaded(long noteId, WorkingNote note) {
+        if (noteId != mLoadingNoteId || isFinishing()) {
+            return;
+        }
+        mLoadingNoteId = 0;
+        if (note == null) {
+            Intent jump = new Intent(this, NotesListActivity.class);
+            startActivity(jump);
+            showToast(R.string.error_note_not_exist);
+            finish();
+            return;
+        }
+        mWorkingNote = note;
+        attachWorkingNote();
+        invalidateOptionsMenu();
+        if (mResumed) {
+            initNoteScreen();
+        }
+    }
+
+    private void attachWorkingNote() {
+        mWorkingNote.setOnSettingStatusChangedListener(this);
+        mAutoSaver = new NoteAutoSaver(mWorkingNote, new NoteAutoSaver.ChangeCollector() {
+            public void collectChanges() {
+                getWorkingText();
+            }
+        });
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
-        initNoteScreen();
+        mResumed = true;
+        // a note still being loaded is shown by onNoteLoaded
+        if (mWorkingNote != null) {
+            initNoteScreen();
+        }
     }
 
     private void initNoteScreen() {
@@ -274,8 +328,10 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
             switchToListMode(mWorkingNote.getContent());
         } else {
-            mNoteEditor.setText(getHighlightQueryResult(mWorkingNote.getContent(), mUserQuery));
-            mNoteEditor.setSelection(mNoteEditor.getText().length());
+            if (!mTextRenderer.render(getHighlightQueryResult(mWorkingNote.getContent(),
+                    mUserQuery))) {
+                mNoteEditor.setSelection(mNoteEditor.getText().length());
+            }
         }
         for (Integer id : sBgSelectorSelectionMap.keySet()) {
             findViewById(sBgSelectorSelectionMap.get(id)).setVisibility(View.GONE);
@@ -321,6 +377,13 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
+        if (mWorkingNote == null) {
+            // still loading, open the same note again
+            if (mLoadingNoteId > 0) {
+                outState.putLong(Intent.EXTRA_UID, mLoadingNoteId);
+            }
+            return;
+        }
         /**
          * For new note without note id, we should firstly save it to
          * generate a id. If the editing note is not worth saving, there
@@ -372,6 +435,8 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         mNoteHeaderHolder.ibSetBgColor = (ImageView) findViewById(R.id.btn_set_bg_color);
         mNoteHeaderHolder.ibSetBgColor.setOnClickListener(this);
         mNoteEditor = (EditText) findViewById(R.id.note_edit_view);
+        mNoteEditor.addTextChangedListener(mAutoSaveWatcher);
+        mTextRenderer = new ProgressiveTextRenderer(mNoteEditor);
         mNoteEditorPanel = findViewById(R.id.sv_note_edit);
         mNoteBgColorSelector = findViewById(R.id.note_bg_color_selector);
         for (int id : sBgSelectorBtnsMap.keySet()) {
@@ -394,18 +459,43 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         if(mFontSizeId >= TextAppearanceResources.getResourcesSize()) {
             mFontSizeId = ResourceParser.BG_DEFAULT_FONT_SIZE;
         }
-        mEditTextList = (LinearLayout) findViewById(R.id.note_edit_list);
+        mNoteEditScroll = findViewById(R.id.sv_note_text);
+        mCheckListView = (ListView) findViewById(R.id.note_edit_list);
+        mCheckListView.setItemsCanFocus(true);
+        mCheckListAdapter = new CheckListAdapter(this, this,
+                new CheckListAdapter.OnItemEditListener() {
+                    public void onItemEdited() {
+                        if (mAutoSaver != null) {
+                            mAutoSaver.onEdit();
+                        }
+                    }
+                });
+        mCheckListView.setAdapter(mCheckListAdapter);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        if(saveNote()) {
-            Log.d(TAG, "Note data was saved with length:" + mWorkingNote.getContent().length());
+        mResumed = false;
+        // 写数据库放到后台，避免退出时卡顿
+        if (mAutoSaver != null && mAutoSaver.saveNow()) {
+            Log.d(TAG, "Note data is being saved with length:" + mWorkingNote.getContent().length());
         }
         clearSettingState();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mLoadingNoteId > 0) {
+            NoteLoader.getInstance(this).cancel(mLoadingNoteId, this);
+            mLoadingNoteId = 0;
+        }
+        if (mAutoSaver != null) {
+            mAutoSaver.release();
+        }
+    }
+
     private void updateWidget() {
         Intent intent = new Intent(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
         if (mWorkingNote.getWidgetType() == Notes.TYPE_WIDGET_2X) {
@@ -426,11 +516,14 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     }
 
     public void onClick(View v) {
+        if (mWorkingNote == null) {
+            return;
+        }
         int id = v.getId();
         if (id == R.id.btn_set_bg_color) {
             mNoteBgColorSelector.setVisibility(View.VISIBLE);
             findViewById(sBgSelectorSelectionMap.get(mWorkingNote.getBgColorId())).setVisibility(
-                    -                    View.VISIBLE);
+                    View.VISIBLE);
         } else if (sBgSelectorBtnsMap.containsKey(id)) {
             findViewById(sBgSelectorSelectionMap.get(mWorkingNote.getBgColorId())).setVisibility(
                     View.GONE);
@@ -442,8 +535,8 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             mSharedPrefs.edit().putInt(PREFERENCE_FONT_SIZE, mFontSizeId).commit();
             findViewById(sFontSelectorSelectionMap.get(mFontSizeId)).setVisibility(View.VISIBLE);
             if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
-                getWorkingText();
-                switchToListMode(mWorkingNote.getContent());
+                mCheckListAdapter.setTextAppearance(
+                        TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
             } else {
                 mNoteEditor.setTextAppearance(this,
                         TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
@@ -458,7 +551,9 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             return;
         }
 
-        saveNote();
+        if (mAutoSaver != null && mAutoSaver.saveNow()) {
+            setResult(RESULT_OK);
+        }
         super.onBackPressed();
     }
 
@@ -487,6 +582,9 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         }
         clearSettingState();
         menu.clear();
+        if (mWorkingNote == null) {
+            return true;
+        }
         if (mWorkingNote.getFolderId() == Notes.ID_CALL_RECORD_FOLDER) {
             getMenuInflater().inflate(R.menu.call_note_edit, menu);
         } else {
@@ -647,158 +745,106 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     }
 
     public void onEditTextDelete(int index, String text) {
-        int childCount = mEditTextList.getChildCount();
-        if (childCount == 1) {
+        if (mCheckList == null || mCheckList.size() == 1 || index >= mCheckList.size()) {
             return;
         }
 
-        for (int i = index + 1; i < childCount; i++) {
-            ((NoteEditText) mEditTextList.getChildAt(i).findViewById(R.id.et_edit_text))
-                    .setIndex(i - 1);
-        }
-
-        mEditTextList.removeViewAt(index);
-        NoteEditText edit = null;
-        if(index == 0) {
-            edit = (NoteEditText) mEditTextList.getChildAt(0).findViewById(
-                    R.id.et_edit_text);
-        } else {
-            edit = (NoteEditText) mEditTextList.getChildAt(index - 1).findViewById(
-                    R.id.et_edit_text);
-        }
-        int length = edit.length();
-        edit.append(text);
-        edit.requestFocus();
-        edit.setSelection(length);
+        mCheckList.remove(index);
+        int target = index == 0 ? 0 : index - 1;
+        String previous = mCheckList.getText(target);
+        mCheckList.setText(target, previous + text);
+        mCheckListAdapter.requestFocus(target, previous.length());
+        ensureCheckListItemVisible(target);
+        mAutoSaver.onEdit();
     }
 
     public void onEditTextEnter(int index, String text) {
         /**
          * Should not happen, check for debug
          */
-        if(index > mEditTextList.getChildCount()) {
-            Log.e(TAG, "Index out of mEditTextList boundrary, should not happen");
+        if (mCheckList == null || index > mCheckList.size()) {
+            Log.e(TAG, "Index out of check list boundrary, should not happen");
+            return;
         }
 
-        View view = getListItem(text, index);
-        mEditTextList.addView(view, index);
-        NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-        edit.requestFocus();
-        edit.setSelection(0);
-        for (int i = index + 1; i < mEditTextList.getChildCount(); i++) {
-            ((NoteEditText) mEditTextList.getChildAt(i).findViewById(R.id.et_edit_text))
-                    .setIndex(i);
+        mCheckList.insert(index, text);
+        mCheckListAdapter.requestFocus(index, 0);
+        ensureCheckListItemVisible(index);
+        mAutoSaver.onEdit();
+    }
+
+    private void ensureCheckListItemVisible(int position) {
+        if (position < mCheckListView.getFirstVisiblePosition()
+                || position > mCheckListView.getLastVisiblePosition()) {
+            mCheckListView.setSelection(position);
         }
     }
 
     private void switchToListMode(String text) {
-        mEditTextList.removeAllViews();
-        String[] items = text.split("\n");
-        int index = 0;
-        for (String item : items) {
-            if(!TextUtils.isEmpty(item)) {
-                mEditTextList.addView(getListItem(item, index));
-                index++;
-            }
-        }
-        mEditTextList.addView(getListItem("", index));
-        mEditTextList.getChildAt(index).findViewById(R.id.et_edit_text).requestFocus();
-
-        mNoteEditor.setVisibility(View.GONE);
-        mEditTextList.setVisibility(View.VISIBLE);
-    }
-
-    private Spannable getHighlightQueryResult(String fullText, String userQuery) {
-        SpannableString spannable = new SpannableString(fullText == null ? "" : fullText);
-        if (!TextUtils.isEmpty(userQuery)) {
-            mPattern = Pattern.compile(userQuery);
-            Matcher m = mPattern.matcher(fullText);
-            int start = 0;
-            while (m.find(start)) {
-                spannable.setSpan(
-                        new BackgroundColorSpan(this.getResources().getColor(
-                                R.color.user_query_highlight)), m.start(), m.end(),
-                        Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-                start = m.end();
-            }
-        }
-        return spannable;
+        // 只为屏幕上可见的条目创建视图，打开很长的清单也不会一次创建所有条目
+        mCheckList = CheckListModel.parse(text);
+        mCheckListAdapter.setHighlighter(getHighlighter(mUserQuery));
+        mCheckListAdapter.setTextAppearance(
+                TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
+        mCheckListAdapter.setModel(mCheckList);
+        int last = mCheckList.size() - 1;
+        mCheckListAdapter.requestFocus(last, 0);
+        mCheckListView.setSelection(last);
+
+        mNoteEditScroll.setVisibility(View.GONE);
+        mCheckListView.setVisibility(View.VISIBLE);
     }
 
-    private View getListItem(String item, int index) {
-        View view = LayoutInflater.from(this).inflate(R.layout.note_edit_list_item, null);
-        final NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-        edit.setTextAppearance(this, TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
-        CheckBox cb = ((CheckBox) view.findViewById(R.id.cb_edit_item));
-        cb.setOnCheckedChangeListener(new OnCheckedChangeListener() {
-            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-                if (isChecked) {
-                    edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-                } else {
-                    edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
-                }
-            }
-        });
+    private CharSequence getHighlightQueryResult(String fullText, String userQuery) {
+        return getHighlighter(userQuery).highlight(fullText,
+                getResources().getColor(R.color.user_query_highlight));
+    }
 
-        if (item.startsWith(TAG_CHECKED)) {
-            cb.setChecked(true);
-            edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-            item = item.substring(TAG_CHECKED.length(), item.length()).trim();
-        } else if (item.startsWith(TAG_UNCHECKED)) {
-            cb.setChecked(false);
-            edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
-            item = item.substring(TAG_UNCHECKED.length(), item.length()).trim();
+    private QueryHighlighter getHighlighter(String userQuery) {
+        // 查询词只编译一次，编辑器和清单的每个条目共用
+        if (mHighlighter == null || !mHighlighter.hasSameQuery(userQuery)) {
+            mHighlighter = new QueryHighlighter(userQuery);
         }
-
-        edit.setOnTextViewChangeListener(this);
-        edit.setIndex(index);
-        edit.setText(getHighlightQueryResult(item, mUserQuery));
-        return view;
+        return mHighlighter;
     }
 
     public void onTextChange(int index, boolean hasText) {
-        if (index >= mEditTextList.getChildCount()) {
-            Log.e(TAG, "Wrong index, should not happen");
+        View view = mCheckListView.getChildAt(index - mCheckListView.getFirstVisiblePosition());
+        if (view == null) {
+            // the item has scrolled away, its check box is set when it is bound again
             return;
         }
-        if(hasText) {
-            mEditTextList.getChildAt(index).findViewById(R.id.cb_edit_item).setVisibility(View.VISIBLE);
-        } else {
-            mEditTextList.getChildAt(index).findViewById(R.id.cb_edit_item).setVisibility(View.GONE);
-        }
+        view.findViewById(R.id.cb_edit_item).setVisibility(hasText ? View.VISIBLE : View.GONE);
     }
 
     public void onCheckListModeChanged(int oldMode, int newMode) {
         if (newMode == TextNote.MODE_CHECK_LIST) {
+            mTextRenderer.finish();
             switchToListMode(mNoteEditor.getText().toString());
         } else {
             if (!getWorkingText()) {
                 mWorkingNote.setWorkingText(mWorkingNote.getContent().replace(TAG_UNCHECKED + " ",
                         ""));
             }
-            mNoteEditor.setText(getHighlightQueryResult(mWorkingNote.getContent(), mUserQuery));
-            mEditTextList.setVisibility(View.GONE);
-            mNoteEditor.setVisibility(View.VISIBLE);
+            mTextRenderer.render(getHighlightQueryResult(mWorkingNote.getContent(), mUserQuery));
+            mCheckList = null;
+            mCheckListAdapter.setModel(null);
+            mCheckListView.setVisibility(View.GONE);
+            mNoteEditScroll.setVisibility(View.VISIBLE);
         }
     }
 
     private boolean getWorkingText() {
         boolean hasChecked = false;
         if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < mEditTextList.getChildCount(); i++) {
-                View view = mEditTextList.getChildAt(i);
-                NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-                if (!TextUtils.isEmpty(edit.getText())) {
-                    if (((CheckBox) view.findViewById(R.id.cb_edit_item)).isChecked()) {
-                        sb.append(TAG_CHECKED).append(" ").append(edit.getText()).append("\n");
-                        hasChecked = true;
-                    } else {
-                        sb.append(TAG_UNCHECKED).append(" ").append(edit.getText()).append("\n");
-                    }
-                }
+            if (mCheckList != null) {
+                // 只重新序列化修改过的条目之后的部分
+                mWorkingNote.setWorkingText(mCheckList.toText());
+                hasChecked = mCheckList.hasChecked();
             }
-            mWorkingNote.setWorkingText(sb.toString());
+        } else if (mTextRenderer.isRendering()) {
+            // the editor only holds part of the text and nothing was edited yet
+            return false;
         } else {
             mWorkingNote.setWorkingText(mNoteEditor.getText().toString());
         }
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import java.util.Arrays;
+
+/**
+ * Items of the notes list kept across binds, so scrolling back and forth over unchanged rows
+ * neither reads all their columns nor formats their texts again. An item is found by the id
+ * of its note and only used while the row is unchanged. The cache is a direct mapped table
+ * indexed by the id, a lookup that finds its item allocates nothing (see NoteItemCacheTest).
+ * Binding the item still may: the time text is formatted again once a minute and a title is
+ * highlighted again for each new query.
+ */
+class NoteItemCache {
+    private static final int SIZE_BITS = 8;
+
+    private static final int SIZE = 1 << SIZE_BITS;
+
+    private final NoteItemData[] mItems = new NoteItemData[SIZE];
+
+    /**
+     * @return the item of the row under the cursor, made anew only when the row is not cached
+     *         or has changed
+     */
+    public NoteItemData get(Context context, Cursor cursor) {
+        int index = indexOf(NoteItemData.getId(cursor));
+        NoteItemData item = mItems[index];
+        if (item == null || !item.isSameRow(cursor)) {
+            item = new NoteItemData(context, cursor, false);
+            mItems[index] = item;
+        }
+        return item;
+    }
+
+    /**
+     * Drop all items, e.g. when the list shows another folder
+     */
+    public void clear() {
+        Arrays.fill(mItems, null);
+    }
+
+    // the top bits of the product spread consecutive ids best
+    static int indexOf(long id) {
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> (64 - SIZE_BITS));
+    }
+}
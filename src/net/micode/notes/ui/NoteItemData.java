@@ -19,11 +19,14 @@ package net.micode.notes.ui;
 import android.content.Context;
 import android.database.Cursor;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 
+import net.micode.notes.R;
 import net.micode.notes.data.Contact;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.tool.DataUtils;
+import net.micode.notes.tool.QueryHighlighter;
 
 
 public class NoteItemData {
@@ -40,6 +43,8 @@ public class NoteItemData {
         NoteColumns.TYPE,
         NoteColumns.WIDGET_ID,
         NoteColumns.WIDGET_TYPE,
+        NoteColumns.VERSION,
+        NoteColumns.CONTENT_VERSION,
     };
 
     private static final int ID_COLUMN                    = 0;
@@ -54,6 +59,8 @@ public class NoteItemData {
     private static final int TYPE_COLUMN                  = 9;
     private static final int WIDGET_ID_COLUMN             = 10;
     private static final int WIDGET_TYPE_COLUMN           = 11;
+    private static final int VERSION_COLUMN               = 12;
+    private static final int CONTENT_VERSION_COLUMN       = 13;
 
     private long mId;
     private long mAlertDate;
@@ -67,6 +74,8 @@ public class NoteItemData {
     private int mType;
     private int mWidgetId;
     private int mWidgetType;
+    private long mVersion;
+    private long mContentVersion;
     private String mName;
     private String mPhoneNumber;
 
@@ -76,7 +85,22 @@ public class NoteItemData {
     private boolean mIsOneNoteFollowingFolder;
     private boolean mIsMultiNotesFollowingFolder;
 
+    // display strings, worked out on first use and kept as long as the row is unchanged
+    private String mTitle;
+    private CharSequence mHighlightedTitle;
+    private QueryHighlighter mHighlightedBy;
+    private CharSequence mTimeText;
+    private long mTimeTextDate;
+
     public NoteItemData(Context context, Cursor cursor) {
+        this(context, cursor, true);
+    }
+
+    /**
+     * @param checkPosition whether to work out the position flags from the neighbour rows,
+     *            otherwise {@link #setPosition} has to be called before binding
+     */
+    NoteItemData(Context context, Cursor cursor, boolean checkPosition) {
         mId = cursor.getLong(ID_COLUMN);
         mAlertDate = cursor.getLong(ALERTED_DATE_COLUMN);
         mBgColorId = cursor.getInt(BG_COLOR_ID_COLUMN);
@@ -91,6 +115,8 @@ public class NoteItemData {
         mType = cursor.getInt(TYPE_COLUMN);
         mWidgetId = cursor.getInt(WIDGET_ID_COLUMN);
         mWidgetType = cursor.getInt(WIDGET_TYPE_COLUMN);
+        mVersion = cursor.getLong(VERSION_COLUMN);
+        mContentVersion = cursor.getLong(CONTENT_VERSION_COLUMN);
 
         mPhoneNumber = "";
         if (mParentId == Notes.ID_CALL_RECORD_FOLDER) {
@@ -106,10 +132,88 @@ public class NoteItemData {
         if (mName == null) {
             mName = "";
         }
-        checkPostion(cursor);
+        if (checkPosition) {
+            checkPostion(cursor);
+        }
+    }
+
+    /**
+     * Whether the row under the cursor is the one this item was made from and has not
+     * changed since. Folder counts change without a new version so they are compared too,
+     * a new snippet comes with a new content version.
+     */
+    boolean isSameRow(Cursor cursor) {
+        return cursor.getLong(ID_COLUMN) == mId
+                && cursor.getLong(VERSION_COLUMN) == mVersion
+                && cursor.getLong(CONTENT_VERSION_COLUMN) == mContentVersion
+                && cursor.getLong(MODIFIED_DATE_COLUMN) == mModifiedDate
+                && cursor.getInt(NOTES_COUNT_COLUMN) == mNotesCount;
     }
 
-    private void checkPostion(Cursor cursor) {
+    /**
+     * Set the position flags without moving the cursor, the list is sorted with the folders
+     * before the notes
+     *
+     * @param firstNotePosition position of the first note in the list
+     */
+    void setPosition(int position, int count, int firstNotePosition) {
+        mIsFirstItem = position == 0;
+        mIsLastItem = position == count - 1;
+        mIsOnlyOneItem = count == 1;
+        boolean followingFolder = mType == Notes.TYPE_NOTE && position > 0
+                && position == firstNotePosition;
+        mIsOneNoteFollowingFolder = followingFolder && count == position + 1;
+        mIsMultiNotesFollowingFolder = followingFolder && count > position + 1;
+    }
+
+    static long getId(Cursor cursor) {
+        return cursor.getLong(ID_COLUMN);
+    }
+
+    /**
+     * @return the first line of the snippet, or for a folder its name with the count of notes
+     */
+    public String getTitle(Context context) {
+        if (mTitle == null) {
+            if (mId == Notes.ID_CALL_RECORD_FOLDER) {
+                mTitle = context.getString(R.string.call_record_folder_name)
+                        + context.getString(R.string.format_folder_files_count, mNotesCount);
+            } else if (mType == Notes.TYPE_FOLDER) {
+                mTitle = mSnippet
+                        + context.getString(R.string.format_folder_files_count, mNotesCount);
+            } else {
+                mTitle = DataUtils.getFormattedSnippet(mSnippet);
+            }
+        }
+        return mTitle;
+    }
+
+    public CharSequence getHighlightedTitle(Context context, QueryHighlighter highlighter,
+            int color) {
+        if (highlighter == null) {
+            return getTitle(context);
+        }
+        if (mHighlightedBy != highlighter) {
+            mHighlightedTitle = highlighter.highlight(getTitle(context), color);
+            mHighlightedBy = highlighter;
+        }
+        return mHighlightedTitle;
+    }
+
+    /**
+     * @return the modified date relative to now, refreshed at most once a minute
+     */
+    public CharSequence getTimeText() {
+        long now = System.currentTimeMillis();
+        if (mTimeText == null || now - mTimeTextDate >= DateUtils.MINUTE_IN_MILLIS) {
+            mTimeText = DateUtils.getRelativeTimeSpanString(mModifiedDate, now,
+                    DateUtils.MINUTE_IN_MILLIS);
+            mTimeTextDate = now;
+        }
+        return mTimeText;
+    }
+
+    void checkPostion(Cursor cursor) {
         mIsLastItem = cursor.isLast() ? true : false;
         mIsFirstItem = cursor.isFirst() ? true : false;
         mIsOnlyOneItem = (cursor.getCount() == 1);
@@ -174,6 +278,10 @@ public class NoteItemData {
         return mHasAttachment;
     }
 
+    public long getVersion() {
+        return mVersion;
+    }
+
     public long getModifiedDate() {
         return mModifiedDate;
     }
@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.tool.TaskExecutor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Loads the rows of the notes list in the background and keeps them up to date. The first
+ * load of a folder reads all its rows. After a change only the ids, versions and counts of
+ * the rows are queried, compared with the shown snapshot, and just the new or changed rows
+ * are read in full. A note's text is written without a new version of the note, its content
+ * version tells that instead. When nothing in the folder changed the list is left alone.
+ * The first screen of one query, the root folder, is kept in a file as well, with the counts
+ * of the whole list. It is read in the background on a cold start, shown if the query has
+ * not answered yet, and replaced once the query has run.
+ */
+public class NoteListLoader {
+    private static final String TAG = "NoteListLoader";
+
+    // ids per query when reading changed rows
+    private static final int READ_BATCH = 200;
+
+    // rows kept in the file, a little more than fit on a screen
+    private static final int PERSIST_ROWS = 24;
+
+    private static final String[] VERSION_PROJECTION = new String[] {
+            NoteColumns.ID, NoteColumns.VERSION, NoteColumns.MODIFIED_DATE,
+            NoteColumns.NOTES_COUNT, NoteColumns.CONTENT_VERSION
+    };
+
+    public interface Callback {
+        /**
+         * Called on the main thread with a new snapshot of the list
+         */
+        void onListLoaded(NoteListSnapshot snapshot, String selection, String[] selectionArgs);
+    }
+
+    private final ContentResolver mResolver;
+
+    private final Callback mCallback;
+
+    private final Handler mHandler;
+
+    private final Executor mExecutor;
+
+    private final ContentObserver mObserver;
+
+    private String mSelection;
+
+    private String[] mSelectionArgs;
+
+    private String mSortOrder;
+
+    // last snapshot handed to the callback, only touched on the main thread
+    private NoteListSnapshot mSnapshot;
+
+    // bumped when the query changes so results of the old query are dropped
+    private int mGeneration;
+
+    private boolean mLoading;
+
+    private boolean mDirty;
+
+    private File mPersistFile;
+
+    private String mPersistKey;
+
+    // first rows last written to the file, and the counts of the whole list written along
+    private List<Object[]> mPersistedRows;
+
+    private int mPersistedNotesCount;
+
+    private int mPersistedFoldersCount;
+
+    public NoteListLoader(Context context, Callback callback) {
+        mResolver = context.getContentResolver();
+        mCallback = callback;
+        mHandler = new Handler();
+        // loads run in order, a newer load finds the rows of the one before
+        mExecutor = TaskExecutor.newSerialExecutor(TaskExecutor.Lane.READ, "load notes list");
+        mObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                update();
+            }
+        };
+    }
+
+    /**
+     * Show the rows of the query, only an update is done if it is the query already shown
+     */
+    public void load(String selection, String[] selectionArgs, String sortOrder) {
+        if (mSnapshot != null && TextUtils.equals(selection, mSelection)
+                && Arrays.equals(selectionArgs, mSelectionArgs)
+                && TextUtils.equals(sortOrder, mSortOrder)) {
+            update();
+            return;
+        }
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mSortOrder = sortOrder;
+        mSnapshot = null;
+        mGeneration++;
+        mLoading = false;
+        mDirty = false;
+        update();
+    }
+
+    /**
+     * Keep the first rows of the query in {@code file}. The file is read in the background,
+     * if it holds rows of the query and the query has not answered first, they are handed to
+     * the callback.
+     */
+    public void restore(final File file, final String selection,
+            final String[] selectionArgs, final String sortOrder) {
+        mPersistFile = file;
+        mPersistKey = makeKey(selection, selectionArgs, sortOrder);
+        final String key = mPersistKey;
+        // queued before the first load of the query, so it comes back before its rows
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                final NoteListSnapshot snapshot = NoteListSnapshot.readFrom(file, key);
+                if (snapshot == null) {
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        onRestored(key, snapshot, selection, selectionArgs, sortOrder);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onRestored(String key, NoteListSnapshot snapshot, String selection,
+            String[] selectionArgs, String sortOrder) {
+        if (mSnapshot != null || !key.equals(mPersistKey) || (mSelection != null
+                && !key.equals(makeKey(mSelection, mSelectionArgs, mSortOrder)))) {
+            // rows of the query, or of another query, are shown already
+            return;
+        }
+        if (mSelection == null) {
+            // nothing loaded yet, the first load of the query reads all the rows
+            mSelection = selection;
+            mSelectionArgs = selectionArgs;
+            mSortOrder = sortOrder;
+            mGeneration++;
+        }
+        mSnapshot = snapshot;
+        mPersistedRows = snapshot.getRows();
+        mPersistedNotesCount = snapshot.getNotesCount();
+        mPersistedFoldersCount = snapshot.getFoldersCount();
+        mCallback.onListLoaded(snapshot, mSelection, mSelectionArgs);
+    }
+
+    /**
+     * Follow changes of the notes until {@link #stop()}
+     */
+    public void start() {
+        mResolver.registerContentObserver(Notes.CONTENT_NOTE_URI, true, mObserver);
+    }
+
+    public void stop() {
+        mResolver.unregisterContentObserver(mObserver);
+    }
+
+    private void update() {
+        if (mSelection == null) {
+            return;
+        }
+        if (mLoading) {
+            // changes while loading are picked up by one more update afterwards
+            mDirty = true;
+            return;
+        }
+        mLoading = true;
+        mDirty = false;
+
+        final int generation = mGeneration;
+        final String selection = mSelection;
+        final String[] selectionArgs = mSelectionArgs;
+        final String sortOrder = mSortOrder;
+        final NoteListSnapshot old = mSnapshot;
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                NoteListSnapshot snapshot = null;
+                try {
+                    // rows restored from the file are only the first screen, all are read
+                    snapshot = old == null || old.isPartial()
+                            ? loadAll(selection, selectionArgs, sortOrder)
+                            : loadChanges(old, selection, selectionArgs, sortOrder);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Load notes list failed: " + e.toString());
+                }
+                final NoteListSnapshot result = snapshot;
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        onLoaded(generation, result);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onLoaded(int generation, NoteListSnapshot snapshot) {
+        if (generation != mGeneration) {
+            // the query changed meanwhile, its own load is queued behind this one
+            return;
+        }
+        mLoading = false;
+        if (snapshot != null) {
+            mSnapshot = snapshot;
+            mCallback.onListLoaded(snapshot, mSelection, mSelectionArgs);
+            persist(snapshot);
+        }
+        if (mDirty) {
+            update();
+        }
+    }
+
+    private void persist(final NoteListSnapshot snapshot) {
+        if (mPersistFile == null
+                || !mPersistKey.equals(makeKey(mSelection, mSelectionArgs, mSortOrder))) {
+            return;
+        }
+        List<Object[]> rows = snapshot.getRows();
+        List<Object[]> firstRows = rows.subList(0, Math.min(PERSIST_ROWS, rows.size()));
+        // the counts are written along for select all, a change past the first rows counts
+        if (mPersistedRows != null && mPersistedRows.size() == firstRows.size()
+                && mPersistedNotesCount == snapshot.getNotesCount()
+                && mPersistedFoldersCount == snapshot.getFoldersCount()) {
+            boolean same = true;
+            for (int i = 0; i < firstRows.size() && same; i++) {
+                same = isSameRow(firstRows.get(i), mPersistedRows.get(i));
+            }
+            if (same) {
+                return;
+            }
+        }
+        mPersistedRows = firstRows;
+        mPersistedNotesCount = snapshot.getNotesCount();
+        mPersistedFoldersCount = snapshot.getFoldersCount();
+        final File file = mPersistFile;
+        final String key = mPersistKey;
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                snapshot.writeTo(file, key, PERSIST_ROWS);
+            }
+        });
+    }
+
+    private static boolean isSameRow(Object[] a, Object[] b) {
+        return a == b || (NoteListSnapshot.getLong(a, NoteListSnapshot.ID_INDEX)
+                == NoteListSnapshot.getLong(b, NoteListSnapshot.ID_INDEX)
+                && NoteListSnapshot.getLong(a, NoteListSnapshot.VERSION_INDEX)
+                == NoteListSnapshot.getLong(b, NoteListSnapshot.VERSION_INDEX)
+                && NoteListSnapshot.getLong(a, NoteListSnapshot.MODIFIED_DATE_INDEX)
+                == NoteListSnapshot.getLong(b, NoteListSnapshot.MODIFIED_DATE_INDEX)
+                && NoteListSnapshot.getLong(a, NoteListSnapshot.NOTES_COUNT_INDEX)
+                == NoteListSnapshot.getLong(b, NoteListSnapshot.NOTES_COUNT_INDEX)
+                && NoteListSnapshot.getLong(a, NoteListSnapshot.CONTENT_VERSION_INDEX)
+                == NoteListSnapshot.getLong(b, NoteListSnapshot.CONTENT_VERSION_INDEX));
+    }
+
+    private static String makeKey(String selection, String[] selectionArgs, String sortOrder) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(selection).append('\n');
+        if (selectionArgs != null) {
+            sb.append(TextUtils.join(",", selectionArgs));
+        }
+        return sb.append('\n').append(sortOrder).toString();
+    }
+
+    private NoteListSnapshot loadAll(String selection, String[] selectionArgs,
+            String sortOrder) {
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, NoteItemData.PROJECTION, selection,
+                selectionArgs, sortOrder);
+        if (c == null) {
+            Log.e(TAG, "Query notes list failed");
+            return null;
+        }
+        try {
+            return new NoteListSnapshot(NoteListSnapshot.readRows(c));
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return the new snapshot, or null if the rows of the list have not changed
+     */
+    private NoteListSnapshot loadChanges(NoteListSnapshot old, String selection,
+            String[] selectionArgs, String sortOrder) {
+        List<Object[]> oldRows = old.getRows();
+        HashMap<Long, Object[]> oldById = new HashMap<Long, Object[]>(oldRows.size() * 2);
+        for (Object[] row : oldRows) {
+            oldById.put(NoteListSnapshot.getLong(row, NoteListSnapshot.ID_INDEX), row);
+        }
+
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, VERSION_PROJECTION, selection,
+                selectionArgs, sortOrder);
+        if (c == null) {
+            Log.e(TAG, "Query notes versions failed");
+            return null;
+        }
+        ArrayList<Object[]> rows;
+        ArrayList<Long> changedIds = new ArrayList<Long>();
+        long[] ids;
+        boolean sameOrder;
+        try {
+            rows = new ArrayList<Object[]>(c.getCount());
+            ids = new long[c.getCount()];
+            sameOrder = c.getCount() == oldRows.size();
+            for (int i = 0; c.moveToNext(); i++) {
+                long id = c.getLong(0);
+                ids[i] = id;
+                Object[] row = oldById.get(id);
+                if (row == null
+                        || NoteListSnapshot.getLong(row, NoteListSnapshot.VERSION_INDEX)
+                                != c.getLong(1)
+                        || NoteListSnapshot.getLong(row, NoteListSnapshot.MODIFIED_DATE_INDEX)
+                                != c.getLong(2)
+                        || NoteListSnapshot.getLong(row, NoteListSnapshot.NOTES_COUNT_INDEX)
+                                != c.getLong(3)
+                        || NoteListSnapshot.getLong(row, NoteListSnapshot.CONTENT_VERSION_INDEX)
+                                != c.getLong(4)) {
+                    changedIds.add(id);
+                    row = null;
+                }
+                sameOrder = sameOrder && row == oldRows.get(i);
+                rows.add(row);
+            }
+        } finally {
+            c.close();
+        }
+        if (sameOrder && changedIds.isEmpty()) {
+            return null;
+        }
+
+        HashMap<Long, Object[]> changed = readRows(changedIds);
+        ArrayList<Object[]> result = new ArrayList<Object[]>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            Object[] row = rows.get(i);
+            if (row == null) {
+                row = changed.get(ids[i]);
+            }
+            if (row != null) {
+                result.add(row);
+            } else {
+                // deleted between the two queries, its notification brings another update
+                Log.w(TAG, "Note " + ids[i] + " went away while loading");
+            }
+        }
+        return new NoteListSnapshot(result);
+    }
+
+    private HashMap<Long, Object[]> readRows(List<Long> ids) {
+        HashMap<Long, Object[]> rows = new HashMap<Long, Object[]>(ids.size() * 2);
+        for (int start = 0; start < ids.size(); start += READ_BATCH) {
+            List<Long> batch = ids.subList(start, Math.min(start + READ_BATCH, ids.size()));
+            Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, NoteItemData.PROJECTION,
+                    NoteColumns.ID + " IN (" + TextUtils.join(",", batch) + ")", null, null);
+            if (c == null) {
+                Log.e(TAG, "Query changed notes failed");
+                continue;
+            }
+            try {
+                while (c.moveToNext()) {
+                    Object[] row = NoteListSnapshot.readRow(c);
+                    rows.put(NoteListSnapshot.getLong(row, NoteListSnapshot.ID_INDEX), row);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return rows;
+    }
+}
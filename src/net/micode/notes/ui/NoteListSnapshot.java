@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Rows of the notes list held in memory, in the columns of {@link NoteItemData#PROJECTION}.
+ * The rows never change, an update of the list makes a new snapshot sharing the unchanged
+ * rows with the old one. Each snapshot is also a cursor so the list adapter can show it, the
+ * extras tell the number of notes and folders. The first rows of a snapshot can be saved to
+ * a file and shown on the next start before the list is queried, the counts of such a
+ * partial snapshot are those of the whole list it was saved from.
+ */
+public class NoteListSnapshot extends AbstractCursor {
+    private static final String TAG = "NoteListSnapshot";
+
+    private static final int FILE_FORMAT = 2;
+
+    private static final byte VALUE_NULL = 0;
+
+    private static final byte VALUE_LONG = 1;
+
+    private static final byte VALUE_DOUBLE = 2;
+
+    private static final byte VALUE_STRING = 3;
+
+    private static final byte VALUE_BLOB = 4;
+
+    static final int ID_INDEX = indexOf(NoteColumns.ID);
+
+    static final int VERSION_INDEX = indexOf(NoteColumns.VERSION);
+
+    static final int MODIFIED_DATE_INDEX = indexOf(NoteColumns.MODIFIED_DATE);
+
+    static final int NOTES_COUNT_INDEX = indexOf(NoteColumns.NOTES_COUNT);
+
+    static final int CONTENT_VERSION_INDEX = indexOf(NoteColumns.CONTENT_VERSION);
+
+    static final int TYPE_INDEX = indexOf(NoteColumns.TYPE);
+
+    private final List<Object[]> mRows;
+
+    private final Bundle mExtras;
+
+    // only the first rows of the list, read back from a file
+    private final boolean mPartial;
+
+    private final int mNotesCount;
+
+    private final int mFoldersCount;
+
+    NoteListSnapshot(List<Object[]> rows) {
+        mRows = Collections.unmodifiableList(rows);
+        mPartial = false;
+        int notes = 0;
+        for (Object[] row : rows) {
+            if (getLong(row, TYPE_INDEX) == Notes.TYPE_NOTE) {
+                notes++;
+            }
+        }
+        mNotesCount = notes;
+        mFoldersCount = rows.size() - notes;
+        mExtras = makeExtras(mNotesCount, mFoldersCount);
+    }
+
+    private NoteListSnapshot(List<Object[]> rows, int notesCount, int foldersCount) {
+        mRows = Collections.unmodifiableList(rows);
+        mPartial = true;
+        mNotesCount = notesCount;
+        mFoldersCount = foldersCount;
+        mExtras = makeExtras(notesCount, foldersCount);
+    }
+
+    private static Bundle makeExtras(int notesCount, int foldersCount) {
+        Bundle extras = new Bundle();
+        extras.putInt(Notes.EXTRA_NOTES_COUNT, notesCount);
+        extras.putInt(Notes.EXTRA_FOLDERS_COUNT, foldersCount);
+        return extras;
+    }
+
+    /**
+     * Copy the rows of {@code cursor}, queried with {@link NoteItemData#PROJECTION}
+     */
+    static ArrayList<Object[]> readRows(Cursor cursor) {
+        ArrayList<Object[]> rows = new ArrayList<Object[]>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            rows.add(readRow(cursor));
+        }
+        return rows;
+    }
+
+    static Object[] readRow(Cursor cursor) {
+        Object[] row = new Object[NoteItemData.PROJECTION.length];
+        for (int i = 0; i < row.length; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row[i] = cursor.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row[i] = cursor.getBlob(i);
+                    break;
+                case Cursor.FIELD_TYPE_NULL:
+                    row[i] = null;
+                    break;
+                default:
+                    row[i] = cursor.getString(i);
+                    break;
+            }
+        }
+        return row;
+    }
+
+    List<Object[]> getRows() {
+        return mRows;
+    }
+
+    boolean isPartial() {
+        return mPartial;
+    }
+
+    /**
+     * @return the number of notes in the list, for a partial snapshot also those not read
+     */
+    int getNotesCount() {
+        return mNotesCount;
+    }
+
+    int getFoldersCount() {
+        return mFoldersCount;
+    }
+
+    /**
+     * Save the first rows to {@code file}
+     *
+     * @param key identifies the query of the rows, see {@link #readFrom}
+     */
+    void writeTo(File file, String key, int maxRows) {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            int count = Math.min(maxRows, mRows.size());
+            out.writeInt(FILE_FORMAT);
+            out.writeUTF(key);
+            out.writeInt(NoteItemData.PROJECTION.length);
+            out.writeInt(mNotesCount);
+            out.writeInt(mFoldersCount);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                for (Object value : mRows.get(i)) {
+                    writeValue(out, value);
+                }
+            }
+            out.close();
+            out = null;
+            // replace the old file only once the new one is complete
+            if (!temp.renameTo(file)) {
+                Log.e(TAG, "Rename list snapshot failed");
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Write list snapshot failed: " + e.toString());
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the rows saved by {@link #writeTo}
+     *
+     * @return the partial snapshot, or null if there is none for the query {@code key}
+     */
+    static NoteListSnapshot readFrom(File file, String key) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_FORMAT || !key.equals(in.readUTF())
+                    || in.readInt() != NoteItemData.PROJECTION.length) {
+                return null;
+            }
+            int notesCount = in.readInt();
+            int foldersCount = in.readInt();
+            int count = in.readInt();
+            ArrayList<Object[]> rows = new ArrayList<Object[]>(count);
+            for (int i = 0; i < count; i++) {
+                Object[] row = new Object[NoteItemData.PROJECTION.length];
+                for (int j = 0; j < row.length; j++) {
+                    row[j] = readValue(in);
+                }
+                rows.add(row);
+            }
+            return new NoteListSnapshot(rows, notesCount, foldersCount);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Read list snapshot failed: " + e.toString());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.toString());
+                }
+            }
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(VALUE_NULL);
+        } else if (value instanceof Long) {
+            out.writeByte(VALUE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(VALUE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof byte[]) {
+            byte[] blob = (byte[]) value;
+            out.writeByte(VALUE_BLOB);
+            out.writeInt(blob.length);
+            out.write(blob);
+        } else {
+            // writeUTF is limited to 64K, snippets may be longer
+            byte[] bytes = value.toString().getBytes("UTF-8");
+            out.writeByte(VALUE_STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_LONG:
+                return in.readLong();
+            case VALUE_DOUBLE:
+                return in.readDouble();
+            case VALUE_BLOB: {
+                byte[] blob = new byte[in.readInt()];
+                in.readFully(blob);
+                return blob;
+            }
+            case VALUE_STRING: {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return new String(bytes, "UTF-8");
+            }
+            default:
+                throw new IOException("Unknown value type");
+        }
+    }
+
+    static long getLong(Object[] row, int column) {
+        Object value = row[column];
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return value != null ? Long.parseLong(value.toString()) : 0;
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < NoteItemData.PROJECTION.length; i++) {
+            if (NoteItemData.PROJECTION[i].equals(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Column not in the list projection: " + column);
+    }
+
+    private Object get(int column) {
+        if (column < 0 || column >= NoteItemData.PROJECTION.length) {
+            throw new IndexOutOfBoundsException("Column " + column + " out of range");
+        }
+        if (mPos < 0 || mPos >= mRows.size()) {
+            throw new IndexOutOfBoundsException("Position " + mPos + " out of range");
+        }
+        return mRows.get(mPos)[column];
+    }
+
+    @Override
+    public Bundle getExtras() {
+        return mExtras;
+    }
+
+    @Override
+    public int getCount() {
+        return mRows.size();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return NoteItemData.PROJECTION;
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = get(column);
+        if (value == null) {
+            return FIELD_TYPE_NULL;
+        } else if (value instanceof Long) {
+            return FIELD_TYPE_INTEGER;
+        } else if (value instanceof Double) {
+            return FIELD_TYPE_FLOAT;
+        } else if (value instanceof byte[]) {
+            return FIELD_TYPE_BLOB;
+        }
+        return FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = get(column);
+        return value != null ? value.toString() : null;
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return (byte[]) get(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = get(column);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return value != null ? Long.parseLong(value.toString()) : 0;
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Object value = get(column);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return value != null ? Double.parseDouble(value.toString()) : 0;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return get(column) == null;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import java.util.Arrays;
+
+/**
+ * Selected notes of the list in choice mode, kept by note id so the selection survives a
+ * requery of the list. Selecting all notes of the list is remembered as such together with
+ * the notes deselected afterwards, it is turned into a selection clause for SQL instead of
+ * collecting every row.
+ */
+public class NoteSelection {
+    /**
+     * Set of positive longs with open addressing, 0 marks a free slot
+     */
+    static class LongSet {
+        private long[] mSlots = new long[16];
+
+        private int mSize;
+
+        public int size() {
+            return mSize;
+        }
+
+        public boolean contains(long value) {
+            return mSlots[indexOf(value)] == value;
+        }
+
+        public boolean add(long value) {
+            int index = indexOf(value);
+            if (mSlots[index] == value) {
+                return false;
+            }
+            mSlots[index] = value;
+            mSize++;
+            if (mSize * 2 > mSlots.length) {
+                rehash(mSlots.length * 2);
+            }
+            return true;
+        }
+
+        public boolean remove(long value) {
+            int index = indexOf(value);
+            if (mSlots[index] != value) {
+                return false;
+            }
+            mSlots[index] = 0;
+            mSize--;
+            // move the following entries of the run back so that lookups still find them
+            int mask = mSlots.length - 1;
+            int next = (index + 1) & mask;
+            while (mSlots[next] != 0) {
+                long moved = mSlots[next];
+                mSlots[next] = 0;
+                mSlots[indexOf(moved)] = moved;
+                next = (next + 1) & mask;
+            }
+            return true;
+        }
+
+        public void clear() {
+            if (mSize > 0) {
+                Arrays.fill(mSlots, 0);
+                mSize = 0;
+            }
+        }
+
+        public long[] toArray() {
+            long[] values = new long[mSize];
+            int i = 0;
+            for (long slot : mSlots) {
+                if (slot != 0) {
+                    values[i++] = slot;
+                }
+            }
+            return values;
+        }
+
+        private int indexOf(long value) {
+            int mask = mSlots.length - 1;
+            int index = hash(value) & mask;
+            while (mSlots[index] != 0 && mSlots[index] != value) {
+                index = (index + 1) & mask;
+            }
+            return index;
+        }
+
+        private void rehash(int capacity) {
+            long[] old = mSlots;
+            mSlots = new long[capacity];
+            for (long value : old) {
+                if (value != 0) {
+                    mSlots[indexOf(value)] = value;
+                }
+            }
+        }
+
+        private static int hash(long value) {
+            long h = value * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    // ids of the selected notes, or of the deselected ones while all are selected
+    private final LongSet mIds = new LongSet();
+
+    private boolean mAllSelected;
+
+    private int mTotalCount;
+
+    public boolean isSelected(long id) {
+        return mAllSelected != mIds.contains(id);
+    }
+
+    public void setSelected(long id, boolean selected) {
+        if (id <= 0) {
+            return;
+        }
+        if (selected != mAllSelected) {
+            mIds.add(id);
+        } else {
+            mIds.remove(id);
+        }
+    }
+
+    /**
+     * Select every note of the list
+     *
+     * @param totalCount number of notes in the list
+     */
+    public void selectAll(int totalCount) {
+        mIds.clear();
+        mAllSelected = true;
+        mTotalCount = totalCount;
+    }
+
+    public void clear() {
+        mIds.clear();
+        mAllSelected = false;
+    }
+
+    /**
+     * The number of notes in the list has changed, e.g. after a requery
+     */
+    public void setTotalCount(int totalCount) {
+        mTotalCount = totalCount;
+    }
+
+    public boolean isAllSelected() {
+        return mAllSelected;
+    }
+
+    public int getCount() {
+        return mAllSelected ? Math.max(mTotalCount - mIds.size(), 0) : mIds.size();
+    }
+
+    /**
+     * @return ids of the selected notes, only valid while not everything is selected
+     */
+    public long[] getSelectedIds() {
+        return mAllSelected ? new long[0] : mIds.toArray();
+    }
+
+    /**
+     * Build the selection clause of the selected notes
+     *
+     * @param listSelection selection of the notes shown by the list, used when everything is
+     *            selected
+     * @return the clause, its arguments are those of {@code listSelection}
+     */
+    public String toSelection(String listSelection) {
+        StringBuilder sb = new StringBuilder();
+        if (mAllSelected) {
+            sb.append('(').append(listSelection).append(") AND ").append(NoteColumns.TYPE)
+                    .append('=').append(Notes.TYPE_NOTE);
+            if (mIds.size() > 0) {
+                sb.append(" AND ").append(NoteColumns.ID).append(" NOT IN (");
+                appendIds(sb, mIds.toArray());
+                sb.append(')');
+            }
+        } else {
+            sb.append(NoteColumns.ID).append(" IN (");
+            appendIds(sb, mIds.toArray());
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+
+    private static void appendIds(StringBuilder sb, long[] ids) {
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(ids[i]);
+        }
+    }
+}
@@ -19,17 +19,17 @@ package net.micode.notes.ui;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.appwidget.AppWidgetManager;
-import android.content.AsyncQueryHandler;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.text.Editable;
 import android.text.TextUtils;
@@ -49,6 +49,8 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.View.OnCreateContextMenuListener;
 import android.view.View.OnTouchListener;
+import android.view.ViewConfiguration;
+import android.view.ViewTreeObserver.OnPreDrawListener;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
@@ -61,27 +63,31 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import net.micode.notes.R;
+import net.micode.notes.data.FolderRegistry;
+import net.micode.notes.data.FolderRegistry.Folder;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.gtask.remote.GTaskSyncService;
+import net.micode.notes.model.NoteLoader;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.tool.BackupUtils;
+import net.micode.notes.tool.BulkNoteOperation;
 import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.ResourceParser;
+import net.micode.notes.tool.TaskExecutor;
 import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
 import net.micode.notes.widget.NoteWidgetProvider_2x;
 import net.micode.notes.widget.NoteWidgetProvider_4x;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.HashSet;
+import java.util.List;
 
 public class NotesListActivity extends Activity implements OnClickListener, OnItemLongClickListener {
-    private static final int FOLDER_NOTE_LIST_QUERY_TOKEN = 0;
-
-    private static final int FOLDER_LIST_QUERY_TOKEN      = 1;
 
     private static final int MENU_FOLDER_DELETE = 0;
 
@@ -97,7 +103,19 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     private ListEditState mState;
 
-    private BackgroundQueryHandler mBackgroundQueryHandler;
+    private NoteListLoader mNotesListLoader;
+
+    private EditText mSearchText;
+
+    // shows the search results in place of the folder while searching
+    private NotesListAdapter mSearchAdapter;
+
+    private NotesSearchController mSearchController;
+
+    private boolean mSearchMode;
+
+    // for the time to the first frame showing notes, 0 once it is logged
+    private long mCreateTime;
 
     private NotesListAdapter mNotesListAdapter;
 
@@ -119,6 +137,14 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     private ModeCallback mModeCallBack;
 
+    // the running delete or move of notes, only one at a time in the process. It outlives
+    // the activity that started it, a new activity takes over its progress. Main thread only
+    private static BulkNoteOperation sBulkOperation;
+
+    private static int sBulkTitleId;
+
+    private ProgressDialog mBulkProgress;
+
     private static final String TAG = "NotesListActivity";
 
     public static final int NOTES_LISTVIEW_SCROLL_RATE = 30;
@@ -132,32 +158,55 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + " AND "
             + NoteColumns.NOTES_COUNT + ">0)";
 
+    private static final String LIST_SORT_ORDER = NoteColumns.TYPE + " DESC,"
+            + NoteColumns.MODIFIED_DATE + " DESC";
+
+    // first screen of the root folder, shown on a cold start before the list is queried
+    static final String LIST_SNAPSHOT_FILE = "notes_list_snapshot";
+
+    // a second activity created before the first one saved the introduction must not add it
+    private static final Object sIntroductionLock = new Object();
+
     private final static int REQUEST_CODE_OPEN_NODE = 102;
     private final static int REQUEST_CODE_NEW_NODE  = 103;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreateTime = SystemClock.uptimeMillis();
         setContentView(R.layout.note_list);
         initResources();
+        // the folders are read in the background, ready for the move menu
+        FolderRegistry.getInstance(this);
+        if (sBulkOperation != null) {
+            sBulkOperation.setCallback(new BulkOperationCallback(sBulkTitleId));
+        }
+        mNotesListLoader.restore(new File(getCacheDir(), LIST_SNAPSHOT_FILE),
+                ROOT_FOLDER_SELECTION, new String[] {
+                    String.valueOf(Notes.ID_ROOT_FOLDER)
+                }, LIST_SORT_ORDER);
 
         /**
-         * Insert an introduction when user firstly use this application
+         * Insert an introduction when user firstly use this application, the list shows it
+         * once it is saved. Even the preferences are read in the background, the first read
+         * loads their file
          */
-        setAppInfoFromRawRes();
+        new AsyncTask<Void, Void, Void>() {
+            protected Void doInBackground(Void... unused) {
+                setAppInfoFromRawRes();
+                return null;
+            }
+        }.executeOnExecutor(TaskExecutor.getExecutor(TaskExecutor.Lane.WRITE,
+                "add introduction"));
     }
 
-    @Override
-    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (resultCode == RESULT_OK
-                && (requestCode == REQUEST_CODE_OPEN_NODE || requestCode == REQUEST_CODE_NEW_NODE)) {
-            mNotesListAdapter.changeCursor(null);
-        } else {
-            super.onActivityResult(requestCode, resultCode, data);
+    private void setAppInfoFromRawRes() {
+        synchronized (sIntroductionLock) {
+            addIntroduction();
         }
     }
 
-    private void setAppInfoFromRawRes() {
+    private void addIntroduction() {
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
         if (!sp.getBoolean(PREFERENCE_ADD_INTRODUCTION, false)) {
             StringBuilder sb = new StringBuilder();
@@ -206,17 +255,50 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     @Override
     protected void onStart() {
         super.onStart();
+        // changes made while stopped, e.g. in the editor, come in as an update of the list
+        mNotesListLoader.start();
+        mSearchController.start();
         startAsyncNotesListQuery();
     }
 
+    @Override
+    protected void onStop() {
+        mNotesListLoader.stop();
+        mSearchController.stop();
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        // a running operation goes on without its dialog, still updating the widgets. Another
+        // activity may have taken it over already
+        if (sBulkOperation != null
+                && sBulkOperation.getCallback() instanceof BulkOperationCallback
+                && ((BulkOperationCallback) sBulkOperation.getCallback()).getActivity() == this) {
+            sBulkOperation.setCallback(new DetachedBulkCallback(getApplicationContext()));
+        }
+        dismissBulkProgress();
+        super.onDestroy();
+    }
+
     private void initResources() {
         mContentResolver = this.getContentResolver();
-        mBackgroundQueryHandler = new BackgroundQueryHandler(this.getContentResolver());
+        mNotesListLoader = new NoteListLoader(this, new NoteListLoader.Callback() {
+            public void onListLoaded(NoteListSnapshot snapshot, String selection,
+                    String[] selectionArgs) {
+                mNotesListAdapter.setListQuery(selection, selectionArgs);
+                mNotesListAdapter.changeCursor(snapshot);
+                if (mCreateTime != 0 && snapshot.getCount() > 0) {
+                    logFirstFrame(snapshot.isPartial());
+                }
+            }
+        });
         mCurrentFolderId = Notes.ID_ROOT_FOLDER;
         mNotesListView = (ListView) findViewById(R.id.notes_list);
         mNotesListView.addFooterView(LayoutInflater.from(this).inflate(R.layout.note_list_footer, null),
                 null, false);
         mNotesListView.setOnItemClickListener(new OnListItemClickListener());
+        mNotesListView.setOnTouchListener(new PrefetchOnTouchListener());
         mNotesListView.setOnItemLongClickListener(this);
         mNotesListAdapter = new NotesListAdapter(this);
         mNotesListView.setAdapter(mNotesListAdapter);
@@ -227,6 +309,29 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         mDispatchY = 0;
         mOriginY = 0;
         mTitleBar = (TextView) findViewById(R.id.tv_title_bar);
+        mSearchAdapter = new NotesListAdapter(this);
+        mSearchController = new NotesSearchController(this, new NotesSearchController.Callback() {
+            public void onSearchResults(String query, NoteListSnapshot results,
+                    boolean complete) {
+                mSearchAdapter.setHighlightQuery(query);
+                // results may come again from the cache, they must not be closed
+                mSearchAdapter.swapCursor(results);
+            }
+        });
+        mSearchText = (EditText) findViewById(R.id.et_search);
+        mSearchText.addTextChangedListener(new TextWatcher() {
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            public void afterTextChanged(Editable s) {
+                if (mSearchMode) {
+                    mSearchController.setQuery(s.toString());
+                }
+            }
+        });
         mState = ListEditState.NOTE_LIST;
         mModeCallBack = new ModeCallback();
     }
@@ -241,7 +346,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             menu.findItem(R.id.delete).setOnMenuItemClickListener(this);
             mMoveMenu = menu.findItem(R.id.move);
             if (mFocusNoteDataItem.getParentId() == Notes.ID_CALL_RECORD_FOLDER
-                    || DataUtils.getUserFolderCount(mContentResolver) == 0) {
+                    || DataUtils.getUserFolderCount(NotesListActivity.this) == 0) {
                 mMoveMenu.setVisible(false);
             } else {
                 mMoveMenu.setVisible(true);
@@ -308,7 +413,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
         public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
                 boolean checked) {
-            mNotesListAdapter.setCheckedItem(position, checked);
+            mNotesListAdapter.setCheckedItem(id, checked);
             updateMenu();
         }
 
@@ -408,54 +513,50 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     };
 
+    private void logFirstFrame(final boolean restored) {
+        mNotesListView.getViewTreeObserver().addOnPreDrawListener(new OnPreDrawListener() {
+            public boolean onPreDraw() {
+                mNotesListView.getViewTreeObserver().removeOnPreDrawListener(this);
+                if (mCreateTime != 0) {
+                    Log.d(TAG, "First frame with notes after "
+                            + (SystemClock.uptimeMillis() - mCreateTime) + "ms"
+                            + (restored ? ", restored from snapshot" : ""));
+                    mCreateTime = 0;
+                }
+                return true;
+            }
+        });
+    }
+
     private void startAsyncNotesListQuery() {
         String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
                 : NORMAL_SELECTION;
-        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, null,
-                Notes.CONTENT_NOTE_URI, NoteItemData.PROJECTION, selection, new String[] {
-                    String.valueOf(mCurrentFolderId)
-                }, NoteColumns.TYPE + " DESC," + NoteColumns.MODIFIED_DATE + " DESC");
-    }
-
-    private final class BackgroundQueryHandler extends AsyncQueryHandler {
-        public BackgroundQueryHandler(ContentResolver contentResolver) {
-            super(contentResolver);
-        }
-
-        @Override
-        protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
-            switch (token) {
-                case FOLDER_NOTE_LIST_QUERY_TOKEN:
-                    mNotesListAdapter.changeCursor(cursor);
-                    break;
-                case FOLDER_LIST_QUERY_TOKEN:
-                    if (cursor != null && cursor.getCount() > 0) {
-                        showFolderListMenu(cursor);
-                    } else {
-                        Log.e(TAG, "Query folder failed");
-                    }
-                    break;
-                default:
-                    return;
-            }
-        }
+        String[] selectionArgs = new String[] {
+            String.valueOf(mCurrentFolderId)
+        };
+        // the snapshots count their notes for select all, the adapter need not walk the rows
+        mNotesListLoader.load(selection, selectionArgs, LIST_SORT_ORDER);
     }
 
-    private void showFolderListMenu(Cursor cursor) {
+    private void showFolderListMenu(List<Folder> folders) {
         AlertDialog.Builder builder = new AlertDialog.Builder(NotesListActivity.this);
         builder.setTitle(R.string.menu_title_select_folder);
-        final FoldersListAdapter adapter = new FoldersListAdapter(this, cursor);
+        final FoldersListAdapter adapter = new FoldersListAdapter(this, folders);
         builder.setAdapter(adapter, new DialogInterface.OnClickListener() {
 
             public void onClick(DialogInterface dialog, int which) {
-                DataUtils.batchMoveToFolder(mContentResolver,
-                        mNotesListAdapter.getSelectedItemIds(), adapter.getItemId(which));
-                Toast.makeText(
-                        NotesListActivity.this,
-                        getString(R.string.format_move_notes_to_folder,
-                                mNotesListAdapter.getSelectedCount(),
-                                adapter.getFolderName(NotesListActivity.this, which)),
-                        Toast.LENGTH_SHORT).show();
+                final String folderName = adapter.getFolderName(NotesListActivity.this, which);
+                startBulkOperation(BulkNoteOperation.move(mContentResolver,
+                        mNotesListAdapter.getSelectionClause(),
+                        mNotesListAdapter.getSelectionArgs(), adapter.getItemId(which),
+                        new BulkOperationCallback(R.string.progress_move_notes) {
+                            @Override
+                            protected void onFinished(int done) {
+                                Toast.makeText(NotesListActivity.this,
+                                        getString(R.string.format_move_notes_to_folder, done,
+                                                folderName), Toast.LENGTH_SHORT).show();
+                            }
+                        }), R.string.progress_move_notes);
                 mModeCallBack.finishActionMode();
             }
         });
@@ -470,40 +571,11 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     }
 
     private void batchDelete() {
-        new AsyncTask<Void, Void, HashSet<AppWidgetAttribute>>() {
-            protected HashSet<AppWidgetAttribute> doInBackground(Void... unused) {
-                HashSet<AppWidgetAttribute> widgets = mNotesListAdapter.getSelectedWidget();
-                if (!isSyncMode()) {
-                    // if not synced, delete notes directly
-                    if (DataUtils.batchDeleteNotes(mContentResolver, mNotesListAdapter
-                            .getSelectedItemIds())) {
-                    } else {
-                        Log.e(TAG, "Delete notes error, should not happens");
-                    }
-                } else {
-                    // in sync mode, we'll move the deleted note into the trash
-                    // folder
-                    if (!DataUtils.batchMoveToFolder(mContentResolver, mNotesListAdapter
-                            .getSelectedItemIds(), Notes.ID_TRASH_FOLER)) {
-                        Log.e(TAG, "Move notes to trash folder error, should not happens");
-                    }
-                }
-                return widgets;
-            }
-
-            @Override
-            protected void onPostExecute(HashSet<AppWidgetAttribute> widgets) {
-                if (widgets != null) {
-                    for (AppWidgetAttribute widget : widgets) {
-                        if (widget.widgetId != AppWidgetManager.INVALID_APPWIDGET_ID
-                                && widget.widgetType != Notes.TYPE_WIDGET_INVALIDE) {
-                            updateWidget(widget.widgetId, widget.widgetType);
-                        }
-                    }
-                }
-                mModeCallBack.finishActionMode();
-            }
-        }.execute();
+        String selection = mNotesListAdapter.getSelectionClause();
+        if (selection != null) {
+            deleteNotes(selection, mNotesListAdapter.getSelectionArgs());
+        }
+        mModeCallBack.finishActionMode();
     }
 
     private void deleteFolder(long folderId) {
@@ -511,18 +583,127 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             Log.e(TAG, "Wrong folder id, should not happen " + folderId);
             return;
         }
+        // the notes in the folder go along with it
+        deleteNotes(NoteColumns.ID + "=" + folderId, null);
+    }
 
-        HashSet<Long> ids = new HashSet<Long>();
-        ids.add(folderId);
-        HashSet<AppWidgetAttribute> widgets = DataUtils.getFolderNoteWidget(mContentResolver,
-                folderId);
+    private void deleteNotes(String selection, String[] selectionArgs) {
+        BulkOperationCallback callback = new BulkOperationCallback(
+                R.string.progress_delete_notes);
         if (!isSyncMode()) {
-            // if not synced, delete folder directly
-            DataUtils.batchDeleteNotes(mContentResolver, ids);
+            // if not synced, delete notes directly
+            startBulkOperation(BulkNoteOperation.delete(mContentResolver, selection,
+                    selectionArgs, callback), R.string.progress_delete_notes);
         } else {
-            // in sync mode, we'll move the deleted folder into the trash folder
-            DataUtils.batchMoveToFolder(mContentResolver, ids, Notes.ID_TRASH_FOLER);
+            // in sync mode, we'll move the deleted notes into the trash folder
+            startBulkOperation(BulkNoteOperation.move(mContentResolver, selection,
+                    selectionArgs, Notes.ID_TRASH_FOLER, callback),
+                    R.string.progress_delete_notes);
         }
+    }
+
+    private void startBulkOperation(BulkNoteOperation operation, int titleId) {
+        if (sBulkOperation != null) {
+            Log.w(TAG, "Another operation on notes is running");
+            Toast.makeText(this, R.string.bulk_operation_running, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        sBulkOperation = operation;
+        sBulkTitleId = titleId;
+        operation.executeOnExecutor(TaskExecutor.getExecutor(TaskExecutor.Lane.WRITE,
+                "bulk notes operation"));
+    }
+
+    private void dismissBulkProgress() {
+        if (mBulkProgress != null) {
+            mBulkProgress.dismiss();
+            mBulkProgress = null;
+        }
+    }
+
+    /**
+     * Shows the progress of a bulk operation once it takes more than one chunk, and updates
+     * the widgets of the changed notes when it is over
+     */
+    private class BulkOperationCallback implements BulkNoteOperation.Callback {
+        private final int mTitleId;
+
+        BulkOperationCallback(int titleId) {
+            mTitleId = titleId;
+        }
+
+        NotesListActivity getActivity() {
+            return NotesListActivity.this;
+        }
+
+        public void onBulkProgress(int done, int total) {
+            if (mBulkProgress == null && sBulkOperation != null
+                    && total > BulkNoteOperation.CHUNK_SIZE) {
+                mBulkProgress = new ProgressDialog(NotesListActivity.this);
+                mBulkProgress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+                mBulkProgress.setMessage(getString(mTitleId));
+                mBulkProgress.setCancelable(false);
+                mBulkProgress.setButton(DialogInterface.BUTTON_NEGATIVE,
+                        getString(android.R.string.cancel),
+                        new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                if (sBulkOperation != null) {
+                                    sBulkOperation.cancel(false);
+                                }
+                            }
+                        });
+                mBulkProgress.setMax(total);
+                mBulkProgress.show();
+            }
+            if (mBulkProgress != null) {
+                mBulkProgress.setMax(total);
+                mBulkProgress.setProgress(done);
+            }
+        }
+
+        public void onBulkFinished(HashSet<AppWidgetAttribute> widgets, int done,
+                boolean cancelled) {
+            sBulkOperation = null;
+            dismissBulkProgress();
+            updateWidgets(widgets);
+            if (cancelled) {
+                Toast.makeText(NotesListActivity.this,
+                        getString(R.string.format_bulk_cancelled, done), Toast.LENGTH_SHORT)
+                        .show();
+            } else {
+                onFinished(done);
+            }
+        }
+
+        protected void onFinished(int done) {
+        }
+    }
+
+    /**
+     * Takes over a bulk operation whose activity is gone, only the widgets are updated
+     */
+    private static class DetachedBulkCallback implements BulkNoteOperation.Callback {
+        private final Context mContext;
+
+        DetachedBulkCallback(Context context) {
+            mContext = context;
+        }
+
+        public void onBulkProgress(int done, int total) {
+        }
+
+        public void onBulkFinished(HashSet<AppWidgetAttribute> widgets, int done,
+                boolean cancelled) {
+            sBulkOperation = null;
+            if (widgets != null) {
+                for (AppWidgetAttribute widget : widgets) {
+                    sendWidgetUpdate(mContext, widget.widgetId, widget.widgetType);
+                }
+            }
+        }
+    }
+
+    private void updateWidgets(HashSet<AppWidgetAttribute> widgets) {
         if (widgets != null) {
             for (AppWidgetAttribute widget : widgets) {
                 if (widget.widgetId != AppWidgetManager.INVALID_APPWIDGET_ID
@@ -534,6 +715,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     }
 
     private void openNode(NoteItemData data) {
+        NoteLoader.getInstance(this).prefetch(data.getId());
         Intent intent = new Intent(this, NoteEditActivity.class);
         intent.setAction(Intent.ACTION_VIEW);
         intent.putExtra(Intent.EXTRA_UID, data.getId());
@@ -542,6 +724,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     private void openFolder(NoteItemData data) {
         mCurrentFolderId = data.getId();
+        mNotesListAdapter.clearItemCache();
         startAsyncNotesListQuery();
         if (data.getId() == Notes.ID_CALL_RECORD_FOLDER) {
             mState = ListEditState.CALL_RECORD_FOLDER;
@@ -610,7 +793,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             public void onClick(View v) {
                 hideSoftInput(etName);
                 String name = etName.getText().toString();
-                if (DataUtils.checkVisibleFolderName(mContentResolver, name)) {
+                if (DataUtils.checkVisibleFolderName(NotesListActivity.this, name)) {
                     Toast.makeText(NotesListActivity.this, getString(R.string.folder_exist, name),
                             Toast.LENGTH_LONG).show();
                     etName.setSelection(0, etName.length());
@@ -633,6 +816,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                     values.put(NoteColumns.TYPE, Notes.TYPE_FOLDER);
                     mContentResolver.insert(Notes.CONTENT_NOTE_URI, values);
                 }
+                FolderRegistry.getInstance(NotesListActivity.this).reloadNow();
                 dialog.dismiss();
             }
         });
@@ -666,15 +850,21 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     @Override
     public void onBackPressed() {
+        if (mSearchMode) {
+            stopSearchMode();
+            return;
+        }
         switch (mState) {
             case SUB_FOLDER:
                 mCurrentFolderId = Notes.ID_ROOT_FOLDER;
+                mNotesListAdapter.clearItemCache();
                 mState = ListEditState.NOTE_LIST;
                 startAsyncNotesListQuery();
                 mTitleBar.setVisibility(View.GONE);
                 break;
             case CALL_RECORD_FOLDER:
                 mCurrentFolderId = Notes.ID_ROOT_FOLDER;
+                mNotesListAdapter.clearItemCache();
                 mState = ListEditState.NOTE_LIST;
                 mAddNewNote.setVisibility(View.VISIBLE);
                 mTitleBar.setVisibility(View.GONE);
@@ -689,22 +879,38 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     }
 
     private void updateWidget(int appWidgetId, int appWidgetType) {
+        Intent intent = sendWidgetUpdate(this, appWidgetId, appWidgetType);
+        if (intent != null) {
+            setResult(RESULT_OK, intent);
+        }
+    }
+
+    /**
+     * @return the update sent, null if the widget is none
+     */
+    private static Intent sendWidgetUpdate(Context context, int appWidgetId,
+            int appWidgetType) {
+        if (appWidgetId == AppWidgetManager.INVALID_APPWIDGET_ID) {
+            return null;
+        }
         Intent intent = new Intent(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
         if (appWidgetType == Notes.TYPE_WIDGET_2X) {
-            intent.setClass(this, NoteWidgetProvider_2x.class);
+            intent.setClass(context, NoteWidgetProvider_2x.class);
         } else if (appWidgetType == Notes.TYPE_WIDGET_4X) {
-            intent.setClass(this, NoteWidgetProvider_4x.class);
+            intent.setClass(context, NoteWidgetProvider_4x.class);
+        } else if (appWidgetType == Notes.TYPE_WIDGET_INVALIDE) {
+            return null;
         } else {
             Log.e(TAG, "Unspported widget type");
-            return;
+            return null;
         }
 
         intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, new int[] {
             appWidgetId
         });
 
-        sendBroadcast(intent);
-        setResult(RESULT_OK, intent);
+        context.sendBroadcast(intent);
+        return intent;
     }
 
     private final OnCreateContextMenuListener mFolderOnCreateContextMenuListener = new OnCreateContextMenuListener() {
@@ -810,7 +1016,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                 break;
             }
             case R.id.menu_search:
-                onSearchRequested();
+                startSearchMode();
                 break;
             default:
                 break;
@@ -818,6 +1024,35 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         return true;
     }
 
+    /**
+     * Search the notes as the user types, the results replace the list until back is pressed
+     */
+    private void startSearchMode() {
+        if (mSearchMode) {
+            return;
+        }
+        mSearchMode = true;
+        mSearchText.setText("");
+        mSearchText.setVisibility(View.VISIBLE);
+        mSearchText.requestFocus();
+        showSoftInput();
+        mAddNewNote.setVisibility(View.GONE);
+        mSearchAdapter.swapCursor(null);
+        mNotesListView.setAdapter(mSearchAdapter);
+    }
+
+    private void stopSearchMode() {
+        mSearchMode = false;
+        mSearchController.setQuery(null);
+        mSearchController.cancel();
+        hideSoftInput(mSearchText);
+        mSearchText.setVisibility(View.GONE);
+        if (mState != ListEditState.CALL_RECORD_FOLDER) {
+            mAddNewNote.setVisibility(View.VISIBLE);
+        }
+        mNotesListView.setAdapter(mNotesListAdapter);
+    }
+
     @Override
     public boolean onSearchRequested() {
         startSearch(null, false, null /* appData */, false);
@@ -863,7 +1098,8 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                 }
             }
 
-        }.execute();
+        }.executeOnExecutor(TaskExecutor.getExecutor(TaskExecutor.Lane.BACKGROUND,
+                "export text"));
     }
 
     private boolean isSyncMode() {
@@ -876,6 +1112,62 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         from.startActivityIfNeeded(intent, -1);
     }
 
+    /**
+     * Start loading a note once its row is held as long as the list takes to show it pressed,
+     * so the editor finds it in memory. The first touch of a scroll moves on before that and
+     * loads nothing
+     */
+    private class PrefetchOnTouchListener implements OnTouchListener, Runnable {
+        private final int mTouchSlop = ViewConfiguration.get(NotesListActivity.this)
+                .getScaledTouchSlop();
+
+        private float mDownX;
+
+        private float mDownY;
+
+        public boolean onTouch(View v, MotionEvent event) {
+            switch (event.getActionMasked()) {
+                case MotionEvent.ACTION_DOWN:
+                    v.removeCallbacks(this);
+                    if (!mNotesListAdapter.isInChoiceMode()) {
+                        mDownX = event.getX();
+                        mDownY = event.getY();
+                        v.postDelayed(this, ViewConfiguration.getTapTimeout());
+                    }
+                    break;
+                case MotionEvent.ACTION_MOVE:
+                    if (Math.abs(event.getX() - mDownX) > mTouchSlop
+                            || Math.abs(event.getY() - mDownY) > mTouchSlop) {
+                        v.removeCallbacks(this);
+                    }
+                    break;
+                case MotionEvent.ACTION_UP:
+                case MotionEvent.ACTION_CANCEL:
+                    // a tap opens the note, which loads it anyway
+                    v.removeCallbacks(this);
+                    break;
+                default:
+                    break;
+            }
+            return false;
+        }
+
+        public void run() {
+            int position = mNotesListView.pointToPosition((int) mDownX, (int) mDownY);
+            if (position == AdapterView.INVALID_POSITION) {
+                return;
+            }
+            View view = mNotesListView.getChildAt(position
+                    - mNotesListView.getFirstVisiblePosition());
+            if (view instanceof NotesListItem) {
+                NoteItemData item = ((NotesListItem) view).getItemData();
+                if (item != null && item.getType() == Notes.TYPE_NOTE) {
+                    NoteLoader.getInstance(NotesListActivity.this).prefetch(item.getId());
+                }
+            }
+        }
+    }
+
     private class OnListItemClickListener implements OnItemClickListener {
 
         public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
@@ -885,7 +1177,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                     if (item.getType() == Notes.TYPE_NOTE) {
                         position = position - mNotesListView.getHeaderViewsCount();
                         mModeCallBack.onItemCheckedStateChanged(null, position, id,
-                                !mNotesListAdapter.isSelectedItem(position));
+                                !mNotesListAdapter.isSelectedItem(id));
                     }
                     return;
                 }
@@ -918,24 +1210,20 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     }
 
     private void startQueryDestinationFolders() {
-        String selection = NoteColumns.TYPE + "=? AND " + NoteColumns.PARENT_ID + "<>? AND " + NoteColumns.ID + "<>?";
-        selection = (mState == ListEditState.NOTE_LIST) ? selection:
-            "(" + selection + ") OR (" + NoteColumns.ID + "=" + Notes.ID_ROOT_FOLDER + ")";
-
-        mBackgroundQueryHandler.startQuery(FOLDER_LIST_QUERY_TOKEN,
-                null,
-                Notes.CONTENT_NOTE_URI,
-                FoldersListAdapter.PROJECTION,
-                selection,
-                new String[] {
-                        String.valueOf(Notes.TYPE_FOLDER),
-                        String.valueOf(Notes.ID_TRASH_FOLER),
-                        String.valueOf(mCurrentFolderId)
-                },
-                NoteColumns.MODIFIED_DATE + " DESC");
+        // a sub folder can move its notes back to the root folder
+        List<Folder> folders = FolderRegistry.getInstance(this).getDestinationFolders(
+                mCurrentFolderId, mState != ListEditState.NOTE_LIST);
+        if (folders.size() > 0) {
+            showFolderListMenu(folders);
+        } else {
+            Log.e(TAG, "Query folder failed");
+        }
     }
 
     public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+        if (mSearchMode) {
+            return false;
+        }
         if (view instanceof NotesListItem) {
             mFocusNoteDataItem = ((NotesListItem) view).getItemData();
             if (mFocusNoteDataItem.getType() == Notes.TYPE_NOTE && !mNotesListAdapter.isInChoiceMode()) {
@@ -18,25 +18,29 @@ package net.micode.notes.ui;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.Bundle;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
 
 import net.micode.notes.data.Notes;
-
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import net.micode.notes.tool.QueryHighlighter;
 
 
 public class NotesListAdapter extends CursorAdapter {
     private static final String TAG = "NotesListAdapter";
     private Context mContext;
-    private HashMap<Integer, Boolean> mSelectedIndex;
+    private NoteSelection mSelection;
+    private String mListSelection;
+    private String[] mListSelectionArgs;
     private int mNotesCount;
+    // position of the first note when the cursor tells how many notes it has, -1 otherwise
+    private int mFirstNotePosition;
+    private NoteItemCache mItemCache;
     private boolean mChoiceMode;
+    private QueryHighlighter mHighlighter;
 
     public static class AppWidgetAttribute {
         public int widgetId;
@@ -44,8 +48,11 @@ public class NotesListAdapter extends CursorAdapter {
     };
 
     public NotesListAdapter(Context context) {
-        super(context, null);
-        mSelectedIndex = new HashMap<Integer, Boolean>();
+        // the loader keeps the cursor up to date, it is never requeried
+        super(context, null, 0);
+        mSelection = new NoteSelection();
+        mItemCache = new NoteItemCache();
+        mFirstNotePosition = -1;
         mContext = context;
         mNotesCount = 0;
     }
@@ -58,14 +65,48 @@ public class NotesListAdapter extends CursorAdapter {
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
         if (view instanceof NotesListItem) {
-            NoteItemData itemData = new NoteItemData(context, cursor);
+            NoteItemData itemData = mItemCache.get(context, cursor);
+            if (mFirstNotePosition >= 0) {
+                itemData.setPosition(cursor.getPosition(), cursor.getCount(),
+                        mFirstNotePosition);
+            } else {
+                itemData.checkPostion(cursor);
+            }
             ((NotesListItem) view).bind(context, itemData, mChoiceMode,
-                    isSelectedItem(cursor.getPosition()));
+                    isSelectedItem(itemData.getId()), mHighlighter);
+        }
+    }
+
+    /**
+     * Drop the items of the folder left, none of them is shown in the next one
+     */
+    public void clearItemCache() {
+        mItemCache.clear();
+    }
+
+    /**
+     * Highlight the words of {@code query} in the note titles, null or empty to stop
+     */
+    public void setHighlightQuery(String query) {
+        if (TextUtils.isEmpty(query)) {
+            mHighlighter = null;
+        } else if (mHighlighter == null || !mHighlighter.hasSameQuery(query)) {
+            mHighlighter = new QueryHighlighter(query);
         }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Selection and arguments the list cursor was queried with, needed to resolve "select
+     * all" in SQL
+     */
+    public void setListQuery(String selection, String[] selectionArgs) {
+        mListSelection = selection;
+        mListSelectionArgs = selectionArgs;
     }
 
-    public void setCheckedItem(final int position, final boolean checked) {
-        mSelectedIndex.put(position, checked);
+    public void setCheckedItem(final long id, final boolean checked) {
+        mSelection.setSelected(id, checked);
         notifyDataSetChanged();
     }
 
@@ -74,73 +115,37 @@ public class NotesListAdapter extends CursorAdapter {
     }
 
     public void setChoiceMode(boolean mode) {
-        mSelectedIndex.clear();
+        mSelection.clear();
         mChoiceMode = mode;
     }
 
     public void selectAll(boolean checked) {
-        Cursor cursor = getCursor();
-        for (int i = 0; i < getCount(); i++) {
-            if (cursor.moveToPosition(i)) {
-                if (NoteItemData.getNoteType(cursor) == Notes.TYPE_NOTE) {
-                    setCheckedItem(i, checked);
-                }
-            }
+        if (checked) {
+            mSelection.selectAll(mNotesCount);
+        } else {
+            mSelection.clear();
         }
+        notifyDataSetChanged();
     }
 
-    public HashSet<Long> getSelectedItemIds() {
-        HashSet<Long> itemSet = new HashSet<Long>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position) == true) {
-                Long id = getItemId(position);
-                if (id == Notes.ID_ROOT_FOLDER) {
-                    Log.d(TAG, "Wrong item id, should not happen");
-                } else {
-                    itemSet.add(id);
-                }
-            }
+    /**
+     * @return the selection clause of the selected notes, to be used with
+     *         {@link #getSelectionArgs()}
+     */
+    public String getSelectionClause() {
+        if (mSelection.isAllSelected() && mListSelection == null) {
+            Log.e(TAG, "Select all without the list query");
+            return null;
         }
+        return mSelection.toSelection(mListSelection);
+    }
 
-        return itemSet;
-    }
-
-    public HashSet<AppWidgetAttribute> getSelectedWidget() {
-        HashSet<AppWidgetAttribute> itemSet = new HashSet<AppWidgetAttribute>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position) == true) {
-                Cursor c = (Cursor) getItem(position);
-                if (c != null) {
-                    AppWidgetAttribute widget = new AppWidgetAttribute();
-                    NoteItemData item = new NoteItemData(mContext, c);
-                    widget.widgetId = item.getWidgetId();
-                    widget.widgetType = item.getWidgetType();
-                    itemSet.add(widget);
-                    /**
-                     * Don't close cursor here, only the adapter could close it
-                     */
-                } else {
-                    Log.e(TAG, "Invalid cursor");
-                    return null;
-                }
-            }
-        }
-        return itemSet;
+    public String[] getSelectionArgs() {
+        return mSelection.isAllSelected() ? mListSelectionArgs : null;
     }
 
     public int getSelectedCount() {
-        Collection<Boolean> values = mSelectedIndex.values();
-        if (null == values) {
-            return 0;
-        }
-        Iterator<Boolean> iter = values.iterator();
-        int count = 0;
-        while (iter.hasNext()) {
-            if (true == iter.next()) {
-                count++;
-            }
-        }
-        return count;
+        return mSelection.getCount();
     }
 
     public boolean isAllSelected() {
@@ -148,11 +153,8 @@ public class NotesListAdapter extends CursorAdapter {
         return (checkedCount != 0 && checkedCount == mNotesCount);
     }
 
-    public boolean isSelectedItem(final int position) {
-        if (null == mSelectedIndex.get(position)) {
-            return false;
-        }
-        return mSelectedIndex.get(position);
+    public boolean isSelectedItem(final long id) {
+        return mSelection.isSelected(id);
     }
 
     @Override
@@ -162,13 +164,36 @@ public class NotesListAdapter extends CursorAdapter {
     }
 
     @Override
-    public void changeCursor(Cursor cursor) {
-        super.changeCursor(cursor);
+    public Cursor swapCursor(Cursor cursor) {
+        // changeCursor comes here too
+        Cursor old = super.swapCursor(cursor);
         calcNotesCount();
+        return old;
     }
 
     private void calcNotesCount() {
+        countNotes();
+        mSelection.setTotalCount(mNotesCount);
+    }
+
+    private void countNotes() {
         mNotesCount = 0;
+        mFirstNotePosition = -1;
+        Cursor cursor = getCursor();
+        if (cursor == null) {
+            return;
+        }
+        Bundle extras = cursor.getExtras();
+        if (extras != null && extras.containsKey(Notes.EXTRA_NOTES_COUNT)) {
+            mNotesCount = extras.getInt(Notes.EXTRA_NOTES_COUNT);
+            // folders are sorted before notes, the notes start after them. The counts may be
+            // those of the whole list while the cursor holds only its first rows
+            mFirstNotePosition = extras.getInt(Notes.EXTRA_FOLDERS_COUNT,
+                    cursor.getCount() - mNotesCount);
+            return;
+        }
+
+        // the cursor was not queried with the counts, walk the rows
         for (int i = 0; i < getCount(); i++) {
             Cursor c = (Cursor) getItem(i);
             if (c != null) {
@@ -17,7 +17,6 @@
 package net.micode.notes.ui;
 
 import android.content.Context;
-import android.text.format.DateUtils;
 import android.view.View;
 import android.widget.CheckBox;
 import android.widget.ImageView;
@@ -26,7 +25,7 @@ import android.widget.TextView;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
-import net.micode.notes.tool.DataUtils;
+import net.micode.notes.tool.QueryHighlighter;
 import net.micode.notes.tool.ResourceParser.NoteItemBgResources;
 
 
@@ -37,6 +36,8 @@ public class NotesListItem extends LinearLayout {
     private TextView mCallName;
     private NoteItemData mItemData;
     private CheckBox mCheckBox;
+    // applying a text appearance reads the style anew, so only do it when it changes
+    private int mTitleAppearance;
 
     public NotesListItem(Context context) {
         super(context);
@@ -48,7 +49,8 @@ public class NotesListItem extends LinearLayout {
         mCheckBox = (CheckBox) findViewById(android.R.id.checkbox);
     }
 
-    public void bind(Context context, NoteItemData data, boolean choiceMode, boolean checked) {
+    public void bind(Context context, NoteItemData data, boolean choiceMode, boolean checked,
+            QueryHighlighter highlighter) {
         if (choiceMode && data.getType() == Notes.TYPE_NOTE) {
             mCheckBox.setVisibility(View.VISIBLE);
             mCheckBox.setChecked(checked);
@@ -60,15 +62,14 @@ public class NotesListItem extends LinearLayout {
         if (data.getId() == Notes.ID_CALL_RECORD_FOLDER) {
             mCallName.setVisibility(View.GONE);
             mAlert.setVisibility(View.VISIBLE);
-            mTitle.setTextAppearance(context, R.style.TextAppearancePrimaryItem);
-            mTitle.setText(context.getString(R.string.call_record_folder_name)
-                    + context.getString(R.string.format_folder_files_count, data.getNotesCount()));
+            setTitleAppearance(context, R.style.TextAppearancePrimaryItem);
+            mTitle.setText(data.getTitle(context));
             mAlert.setImageResource(R.drawable.call_record);
         } else if (data.getParentId() == Notes.ID_CALL_RECORD_FOLDER) {
             mCallName.setVisibility(View.VISIBLE);
             mCallName.setText(data.getCallName());
-            mTitle.setTextAppearance(context,R.style.TextAppearanceSecondaryItem);
-            mTitle.setText(DataUtils.getFormattedSnippet(data.getSnippet()));
+            setTitleAppearance(context, R.style.TextAppearanceSecondaryItem);
+            mTitle.setText(data.getTitle(context));
             if (data.hasAlert()) {
                 mAlert.setImageResource(R.drawable.clock);
                 mAlert.setVisibility(View.VISIBLE);
@@ -77,15 +78,14 @@ public class NotesListItem extends LinearLayout {
             }
         } else {
             mCallName.setVisibility(View.GONE);
-            mTitle.setTextAppearance(context, R.style.TextAppearancePrimaryItem);
+            setTitleAppearance(context, R.style.TextAppearancePrimaryItem);
 
             if (data.getType() == Notes.TYPE_FOLDER) {
-                mTitle.setText(data.getSnippet()
-                        + context.getString(R.string.format_folder_files_count,
-                                data.getNotesCount()));
+                mTitle.setText(data.getTitle(context));
                 mAlert.setVisibility(View.GONE);
             } else {
-                mTitle.setText(DataUtils.getFormattedSnippet(data.getSnippet()));
+                mTitle.setText(data.getHighlightedTitle(context, highlighter,
+                        context.getResources().getColor(R.color.user_query_highlight)));
                 if (data.hasAlert()) {
                     mAlert.setImageResource(R.drawable.clock);
                     mAlert.setVisibility(View.VISIBLE);
@@ -94,11 +94,18 @@ public class NotesListItem extends LinearLayout {
                 }
             }
         }
-        mTime.setText(DateUtils.getRelativeTimeSpanString(data.getModifiedDate()));
+        mTime.setText(data.getTimeText());
 
         setBackground(data);
     }
 
+    private void setTitleAppearance(Context context, int resId) {
+        if (mTitleAppearance != resId) {
+            mTitle.setTextAppearance(context, resId);
+            mTitleAppearance = resId;
+        }
+    }
+
     private void setBackground(NoteItemData data) {
         int id = data.getBgColorId();
         if (data.getType() == Notes.TYPE_NOTE) {
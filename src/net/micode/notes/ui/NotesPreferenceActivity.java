@@ -21,7 +21,7 @@ import android.accounts.AccountManager;
 import android.app.ActionBar;
 import android.app.AlertDialog;
 import android.content.BroadcastReceiver;
-import android.content.ContentValues;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -42,10 +42,14 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.List;
+
 import net.micode.notes.R;
-import net.micode.notes.data.Notes;
-import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.gtask.remote.GTaskSessionStore;
+import net.micode.notes.gtask.remote.GTaskSyncReport;
 import net.micode.notes.gtask.remote.GTaskSyncService;
+import net.micode.notes.tool.DataUtils;
+import net.micode.notes.tool.TaskExecutor;
 
 
 public class NotesPreferenceActivity extends PreferenceActivity {
@@ -191,6 +195,23 @@ public class NotesPreferenceActivity extends PreferenceActivity {
                 lastSyncTimeView.setVisibility(View.GONE);
             }
         }
+
+        // set recent sync reports
+        TextView syncReportView = (TextView) findViewById(R.id.preference_sync_report_textview);
+        List<GTaskSyncReport> reports = GTaskSyncReport.getRecentReports(this);
+        if (!GTaskSyncService.isSyncing() && !reports.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            for (GTaskSyncReport report : reports) {
+                if (sb.length() > 0) {
+                    sb.append("\n\n");
+                }
+                sb.append(report.getSummary(this));
+            }
+            syncReportView.setText(sb.toString());
+            syncReportView.setVisibility(View.VISIBLE);
+        } else {
+            syncReportView.setVisibility(View.GONE);
+        }
     }
 
     private void refreshUI() {
@@ -302,15 +323,11 @@ public class NotesPreferenceActivity extends PreferenceActivity {
             // clean up last sync time
             setLastSyncTime(this, 0);
 
+            // the stored gtask session belongs to the previous account
+            GTaskSessionStore.clear(this);
+
             // clean up local gtask related info
-            new Thread(new Runnable() {
-                public void run() {
-                    ContentValues values = new ContentValues();
-                    values.put(NoteColumns.GTASK_ID, "");
-                    values.put(NoteColumns.SYNC_ID, 0);
-                    getContentResolver().update(Notes.CONTENT_NOTE_URI, values, null, null);
-                }
-            }).start();
+            clearLocalSyncInfo();
 
             Toast.makeText(NotesPreferenceActivity.this,
                     getString(R.string.preferences_toast_success_set_accout, account),
@@ -328,16 +345,20 @@ public class NotesPreferenceActivity extends PreferenceActivity {
             editor.remove(PREFERENCE_LAST_SYNC_TIME);
         }
         editor.commit();
+        GTaskSyncReport.clear(this);
+        GTaskSessionStore.clear(this);
 
         // clean up local gtask related info
-        new Thread(new Runnable() {
+        clearLocalSyncInfo();
+    }
+
+    private void clearLocalSyncInfo() {
+        final ContentResolver resolver = getContentResolver();
+        TaskExecutor.submit(TaskExecutor.Lane.BACKGROUND, "clear sync info", new Runnable() {
             public void run() {
-                ContentValues values = new ContentValues();
-                values.put(NoteColumns.GTASK_ID, "");
-                values.put(NoteColumns.SYNC_ID, 0);
-                getContentResolver().update(Notes.CONTENT_NOTE_URI, values, null, null);
+                DataUtils.resetSyncInfo(resolver);
             }
-        }).start();
+        });
     }
 
     public static String getSyncAccountName(Context context) {
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import net.micode.notes.data.ContentChunks;
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.tool.TaskExecutor;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Searches the notes while the user types. A query only runs once typing pauses, a newer
+ * query cancels the queued ones, stops the running one on API 16 and later, and the results
+ * of superseded queries are dropped. The first {@link #FIRST_RESULTS} matches are shown as
+ * soon as they are found, the rest up to {@link #MAX_RESULTS} follow with a second query
+ * that starts after them. Complete results are cached per query until the notes change.
+ */
+public class NotesSearchController {
+    public interface Callback {
+        /**
+         * Called on the main thread with results of the current query
+         *
+         * @param complete false while only the first results are in
+         */
+        void onSearchResults(String query, NoteListSnapshot results, boolean complete);
+    }
+
+    private static final long DEBOUNCE_DELAY = 250;
+
+    static final int FIRST_RESULTS = 20;
+
+    static final int MAX_RESULTS = 200;
+
+    private static final int CACHE_SIZE = 16;
+
+    private static final String SELECTION = NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " AND "
+            + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER + " AND "
+            + "(" + NoteColumns.SNIPPET + " LIKE ? ESCAPE '\\' OR " + NoteColumns.ID + " IN ("
+            + ContentChunks.selectNoteIdsLike(true) + "))";
+
+    private static final String SORT_ORDER = NoteColumns.MODIFIED_DATE + " DESC";
+
+    private static class Request {
+        final String query;
+        final int generation;
+        final int changeSeq;
+        // the results of the first query, null while running it
+        final NoteListSnapshot firstResults;
+
+        Request(String query, int generation, int changeSeq, NoteListSnapshot firstResults) {
+            this.query = query;
+            this.generation = generation;
+            this.changeSeq = changeSeq;
+            this.firstResults = firstResults;
+        }
+    }
+
+    private static class CachedResult {
+        final NoteListSnapshot results;
+        final int changeSeq;
+
+        CachedResult(NoteListSnapshot results, int changeSeq) {
+            this.results = results;
+            this.changeSeq = changeSeq;
+        }
+    }
+
+    private final ContentResolver mResolver;
+
+    private final Callback mCallback;
+
+    private final Handler mHandler;
+
+    // the queued or running query
+    private Future<?> mPending;
+
+    // stops the SQL of the running query, null before API 16
+    private CancellationSignal mPendingSignal;
+
+    private final ContentObserver mObserver;
+
+    private final LruCache<String, CachedResult> mCache;
+
+    private String mQuery;
+
+    // bumped for every new query, results of older ones are dropped
+    private int mGeneration;
+
+    // bumped whenever the notes change, cached results of older sequences are stale
+    private int mChangeSeq;
+
+    private final Runnable mSearch = new Runnable() {
+        public void run() {
+            search();
+        }
+    };
+
+    public NotesSearchController(Context context, Callback callback) {
+        mResolver = context.getContentResolver();
+        mCallback = callback;
+        mHandler = new Handler();
+        mCache = new LruCache<String, CachedResult>(CACHE_SIZE);
+        mObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mChangeSeq++;
+                if (!TextUtils.isEmpty(mQuery)) {
+                    // keep the shown results current
+                    mHandler.removeCallbacks(mSearch);
+                    mHandler.postDelayed(mSearch, DEBOUNCE_DELAY);
+                }
+            }
+        };
+    }
+
+    /**
+     * Follow changes of the notes until {@link #stop()}
+     */
+    public void start() {
+        // changes while stopped went unseen
+        mChangeSeq++;
+        mResolver.registerContentObserver(Notes.CONTENT_NOTE_URI, true, mObserver);
+    }
+
+    public void stop() {
+        mResolver.unregisterContentObserver(mObserver);
+        cancel();
+    }
+
+    /**
+     * Search for {@code query} once the user stops typing
+     */
+    public void setQuery(String query) {
+        query = query != null ? query.trim() : "";
+        if (TextUtils.equals(query, mQuery)) {
+            return;
+        }
+        mQuery = query;
+        mHandler.removeCallbacks(mSearch);
+        if (query.length() == 0) {
+            cancel();
+            mCallback.onSearchResults(query, null, true);
+            return;
+        }
+
+        CachedResult cached = mCache.get(query);
+        if (cached != null && cached.changeSeq == mChangeSeq) {
+            cancel();
+            mCallback.onSearchResults(query, cached.results, true);
+            return;
+        }
+        mHandler.postDelayed(mSearch, DEBOUNCE_DELAY);
+    }
+
+    public String getQuery() {
+        return mQuery;
+    }
+
+    /**
+     * Drop the pending and running queries
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mSearch);
+        if (mPending != null) {
+            mPending.cancel(false);
+            mPending = null;
+        }
+        if (mPendingSignal != null) {
+            mPendingSignal.cancel();
+            mPendingSignal = null;
+        }
+        mGeneration++;
+    }
+
+    private void search() {
+        cancel();
+        if (TextUtils.isEmpty(mQuery)) {
+            return;
+        }
+        startQuery(new Request(mQuery, mGeneration, mChangeSeq, null));
+    }
+
+    private void startQuery(final Request request) {
+        Uri.Builder builder = Notes.CONTENT_NOTE_URI.buildUpon();
+        if (request.firstResults == null) {
+            builder.appendQueryParameter(Notes.PARAM_LIMIT, String.valueOf(FIRST_RESULTS));
+        } else {
+            // only the rows after the first results
+            builder.appendQueryParameter(Notes.PARAM_OFFSET, String.valueOf(FIRST_RESULTS))
+                    .appendQueryParameter(Notes.PARAM_LIMIT,
+                            String.valueOf(MAX_RESULTS - FIRST_RESULTS));
+        }
+        final Uri uri = builder.build();
+        final String pattern = "%" + escapeLike(request.query) + "%";
+        final String[] selectionArgs = new String[] {
+                pattern, pattern
+        };
+        final CancellationSignal signal = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                ? new CancellationSignal() : null;
+        mPendingSignal = signal;
+        mPending = TaskExecutor.submit(TaskExecutor.Lane.READ, "search notes", new Runnable() {
+            public void run() {
+                NoteListSnapshot results = null;
+                try {
+                    Cursor cursor = signal != null
+                            ? mResolver.query(uri, NoteItemData.PROJECTION, SELECTION,
+                                    selectionArgs, SORT_ORDER, signal)
+                            : mResolver.query(uri, NoteItemData.PROJECTION, SELECTION,
+                                    selectionArgs, SORT_ORDER);
+                    if (cursor != null) {
+                        try {
+                            results = merge(request.firstResults,
+                                    NoteListSnapshot.readRows(cursor));
+                        } finally {
+                            cursor.close();
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    if (signal == null || !signal.isCanceled()) {
+                        throw e;
+                    }
+                    // superseded while running, nobody waits for it
+                    return;
+                }
+                final NoteListSnapshot found = results;
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        onResults(request, found);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onResults(Request request, NoteListSnapshot results) {
+        if (request.generation != mGeneration || results == null) {
+            // superseded by a newer query, or the query failed
+            return;
+        }
+
+        boolean complete = request.firstResults != null
+                || results.getCount() < FIRST_RESULTS;
+        if (complete && request.changeSeq == mChangeSeq) {
+            mCache.put(request.query, new CachedResult(results, request.changeSeq));
+        }
+        mCallback.onSearchResults(request.query, results, complete);
+        if (!complete) {
+            startQuery(new Request(request.query, request.generation, request.changeSeq,
+                    results));
+        }
+    }
+
+    /**
+     * @return the first results followed by the rows of the second query, a note that moved
+     *         up between the two queries is kept once
+     */
+    private static NoteListSnapshot merge(NoteListSnapshot first, List<Object[]> rest) {
+        if (first == null) {
+            return new NoteListSnapshot(rest);
+        }
+        List<Object[]> firstRows = first.getRows();
+        HashSet<Long> ids = new HashSet<Long>(firstRows.size() * 2);
+        ArrayList<Object[]> rows = new ArrayList<Object[]>(firstRows.size() + rest.size());
+        for (Object[] row : firstRows) {
+            ids.add(NoteListSnapshot.getLong(row, NoteListSnapshot.ID_INDEX));
+            rows.add(row);
+        }
+        for (Object[] row : rest) {
+            if (!ids.contains(NoteListSnapshot.getLong(row, NoteListSnapshot.ID_INDEX))) {
+                rows.add(row);
+            }
+        }
+        return new NoteListSnapshot(rows);
+    }
+
+    private static String escapeLike(String s) {
+        return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+}
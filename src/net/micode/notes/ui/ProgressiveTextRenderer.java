@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.os.SystemClock;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.View.OnTouchListener;
+import android.view.ViewConfiguration;
+import android.widget.EditText;
+
+/**
+ * Puts a long text into an editor a piece at a time. The first screen of text is shown at
+ * once, the rest is appended over the following frames, each frame spends at most
+ * {@link #FRAME_BUDGET} on it. The editor is read only until the whole text is in, tapping
+ * it appends the rest right away and puts the cursor where it was tapped, while scrolling it
+ * keeps appending frame by frame. Once the whole text is in the cursor is at its end, as for
+ * a text set in one go.
+ */
+public class ProgressiveTextRenderer implements OnTouchListener {
+    /**
+     * Texts up to this length are set in one go
+     */
+    public static final int THRESHOLD = 16 * 1024;
+
+    private static final int FIRST_SCREEN_LENGTH = 4 * 1024;
+
+    private static final int CHUNK_LENGTH = 4 * 1024;
+
+    private static final long FRAME_BUDGET = 8;
+
+    private final EditText mEditor;
+
+    private CharSequence mText;
+
+    private int mRendered;
+
+    private final int mTouchSlop;
+
+    // where the current touch went down, it stays a tap while it moves no further than the slop
+    private float mDownX;
+
+    private float mDownY;
+
+    private boolean mTapping;
+
+    private final Runnable mStep = new Runnable() {
+        public void run() {
+            step();
+        }
+    };
+
+    public ProgressiveTextRenderer(EditText editor) {
+        mEditor = editor;
+        mTouchSlop = ViewConfiguration.get(editor.getContext()).getScaledTouchSlop();
+        mEditor.setOnTouchListener(this);
+    }
+
+    /**
+     * Show {@code text} in the editor, anything still being appended is dropped
+     *
+     * @return false if the text was set in one go
+     */
+    public boolean render(CharSequence text) {
+        cancel();
+        if (text.length() <= THRESHOLD) {
+            mEditor.setText(text);
+            return false;
+        }
+
+        mText = text;
+        mRendered = nextBoundary(0, FIRST_SCREEN_LENGTH);
+        mEditor.setFocusable(false);
+        mEditor.setFocusableInTouchMode(false);
+        mEditor.setText(text.subSequence(0, mRendered));
+        mEditor.post(mStep);
+        return true;
+    }
+
+    public boolean isRendering() {
+        return mText != null;
+    }
+
+    /**
+     * Append the rest of the text now
+     */
+    public void finish() {
+        if (mText == null) {
+            return;
+        }
+        mEditor.removeCallbacks(mStep);
+        mEditor.append(mText.subSequence(mRendered, mText.length()));
+        done();
+    }
+
+    private void cancel() {
+        if (mText == null) {
+            return;
+        }
+        mEditor.removeCallbacks(mStep);
+        mText = null;
+        mEditor.setFocusable(true);
+        mEditor.setFocusableInTouchMode(true);
+    }
+
+    private void step() {
+        if (mText == null) {
+            return;
+        }
+        long deadline = SystemClock.uptimeMillis() + FRAME_BUDGET;
+        do {
+            int end = nextBoundary(mRendered, CHUNK_LENGTH);
+            mEditor.append(mText.subSequence(mRendered, end));
+            mRendered = end;
+        } while (mRendered < mText.length() && SystemClock.uptimeMillis() < deadline);
+
+        if (mRendered < mText.length()) {
+            mEditor.post(mStep);
+        } else {
+            done();
+        }
+    }
+
+    private void done() {
+        mText = null;
+        mEditor.setFocusable(true);
+        mEditor.setFocusableInTouchMode(true);
+        mEditor.setSelection(mEditor.length());
+    }
+
+    /**
+     * @return the end of a piece of about {@code length} chars starting at {@code start},
+     *         moved to the next line break when there is one close by
+     */
+    private int nextBoundary(int start, int length) {
+        int end = start + length;
+        if (end >= mText.length()) {
+            return mText.length();
+        }
+        for (int i = end; i < mText.length() && i < end + 256; i++) {
+            if (mText.charAt(i) == '\n') {
+                return i + 1;
+            }
+        }
+        // never split a surrogate pair
+        if (Character.isHighSurrogate(mText.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    public boolean onTouch(View v, MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                mDownX = event.getX();
+                mDownY = event.getY();
+                mTapping = mText != null;
+                break;
+            case MotionEvent.ACTION_MOVE:
+                if (mTapping && (Math.abs(event.getX() - mDownX) > mTouchSlop
+                        || Math.abs(event.getY() - mDownY) > mTouchSlop)) {
+                    // a scroll, the text keeps being appended
+                    mTapping = false;
+                }
+                break;
+            case MotionEvent.ACTION_UP:
+                if (mTapping && mText != null) {
+                    // the user is about to edit, the whole text has to be there. The editor
+                    // did not take the touch while read only, so focus it here
+                    int offset = mEditor.getOffsetForPosition(event.getX(), event.getY());
+                    finish();
+                    mEditor.requestFocus();
+                    if (offset >= 0) {
+                        mEditor.setSelection(offset);
+                    }
+                }
+                mTapping = false;
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                mTapping = false;
+                break;
+            default:
+                break;
+        }
+        return false;
+    }
+}
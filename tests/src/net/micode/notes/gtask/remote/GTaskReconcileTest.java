@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.test.InstrumentationTestCase;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.tool.DataUtils;
+
+/**
+ * Syncs against the stand-in server to check that a local change which was not queued in the
+ * outbox still reaches the server. Wipes the notes of the app under test.
+ */
+public class GTaskReconcileTest extends InstrumentationTestCase {
+    private static final String CONTENT = "reconcile note";
+
+    private static final String EDITED_CONTENT = "reconcile note edited";
+
+    private Context mContext;
+
+    private ContentResolver mContentResolver;
+
+    private GTaskStandInServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mContentResolver = mContext.getContentResolver();
+        mServer = new GTaskStandInServer();
+        mServer.start();
+        GTaskClient.getInstance().useStandInEndpoint(mServer.getBaseUrl());
+        resetLocalNotes();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        GTaskClient.getInstance().useStandInEndpoint(null);
+        mServer.stop();
+        resetLocalNotes();
+        super.tearDown();
+    }
+
+    public void testEditKeepingModifiedDateIsPushed() {
+        long noteId = insertNote(CONTENT);
+        assertEquals(GTaskManager.STATE_SUCCESS, GTaskManager.getInstance().sync(mContext, null));
+        assertTrue("note not created remotely", mServer.hasTask(CONTENT));
+
+        // the text changes and the note is flagged, but its modified date stays, so the
+        // outbox is not told about it
+        ContentValues data = new ContentValues();
+        data.put(DataColumns.CONTENT, EDITED_CONTENT);
+        mContentResolver.update(Notes.CONTENT_DATA_URI, data, DataColumns.NOTE_ID + "=?",
+                new String[] {
+                    String.valueOf(noteId)
+                });
+        ContentValues note = new ContentValues();
+        note.put(NoteColumns.LOCAL_MODIFIED, 1);
+        mContentResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId),
+                note, null, null);
+        assertFalse("edit was queued", GTaskOutbox.hasPending(mContentResolver));
+
+        assertEquals(GTaskManager.STATE_SUCCESS, GTaskManager.getInstance().sync(mContext, null));
+        assertTrue("edit not pushed", mServer.hasTask(EDITED_CONTENT));
+        assertFalse("old text still remote", mServer.hasTask(CONTENT));
+    }
+
+    private long insertNote(String content) {
+        long now = System.currentTimeMillis();
+        ContentValues note = new ContentValues();
+        note.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        note.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        note.put(NoteColumns.CREATED_DATE, now);
+        note.put(NoteColumns.MODIFIED_DATE, now);
+        note.put(NoteColumns.LOCAL_MODIFIED, 1);
+        Uri uri = mContentResolver.insert(Notes.CONTENT_NOTE_URI, note);
+        long noteId = ContentUris.parseId(uri);
+
+        ContentValues data = new ContentValues();
+        data.put(DataColumns.NOTE_ID, noteId);
+        data.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
+        data.put(DataColumns.CONTENT, content);
+        mContentResolver.insert(Notes.CONTENT_DATA_URI, data);
+        return noteId;
+    }
+
+    private void resetLocalNotes() {
+        mContentResolver.delete(Notes.CONTENT_NOTE_URI, NoteColumns.TYPE + "<>?",
+                new String[] {
+                    String.valueOf(Notes.TYPE_SYSTEM)
+                });
+
+        // the system folders stay, but they must be created again on the fresh server
+        DataUtils.resetSyncInfo(mContentResolver);
+    }
+}
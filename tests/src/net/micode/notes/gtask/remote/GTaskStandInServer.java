@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.Log;
+
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.DefaultHttpServerConnection;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A loopback stand-in for the GTask web endpoint used by {@link GTaskClient}. It serves the
+ * "_setup(" bootstrap page on GET and answers "action_list" POSTs (create, update, move and
+ * get_all) against an in-memory model, so the whole sync path can run without Google's servers.
+ * Every request is counted together with the body bytes received and sent.
+ */
+public class GTaskStandInServer {
+    private static final String TAG = GTaskStandInServer.class.getSimpleName();
+
+    private static final long CLIENT_VERSION = 1;
+
+    private static final String AUTH_COOKIE = "GTL=stand-in; Path=/";
+
+    private ServerSocket mServerSocket;
+
+    private Thread mAcceptThread;
+
+    private volatile boolean mRunning;
+
+    private final LinkedHashMap<String, RemoteList> mLists;
+
+    private final HashMap<String, RemoteTask> mTasks;
+
+    private long mNextId;
+
+    private long mClock;
+
+    private int mRequestCount;
+
+    private long mBytesIn;
+
+    private long mBytesOut;
+
+    private static class RemoteList {
+        String gid;
+
+        String name;
+
+        long lastModified;
+
+        final ArrayList<RemoteTask> tasks = new ArrayList<RemoteTask>();
+    }
+
+    private static class RemoteTask {
+        String gid;
+
+        String name;
+
+        String notes;
+
+        boolean deleted;
+
+        boolean completed;
+
+        long lastModified;
+
+        RemoteList parent;
+    }
+
+    public GTaskStandInServer() {
+        mLists = new LinkedHashMap<String, RemoteList>();
+        mTasks = new HashMap<String, RemoteTask>();
+        mNextId = 1;
+        mClock = System.currentTimeMillis();
+    }
+
+    public synchronized void start() throws IOException {
+        if (mRunning) {
+            return;
+        }
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mRunning = true;
+        mAcceptThread = new Thread(new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        }, TAG);
+        mAcceptThread.start();
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+        if (mServerSocket != null) {
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                Log.w(TAG, e.toString());
+            }
+            mServerSocket = null;
+        }
+    }
+
+    /**
+     * The base url to hand to {@link GTaskClient#useStandInEndpoint(String)}
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/tasks/";
+    }
+
+    public synchronized void resetCounters() {
+        mRequestCount = 0;
+        mBytesIn = 0;
+        mBytesOut = 0;
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized long getBytesIn() {
+        return mBytesIn;
+    }
+
+    public synchronized long getBytesOut() {
+        return mBytesOut;
+    }
+
+    public synchronized int getTaskCount() {
+        int count = 0;
+        for (RemoteTask task : mTasks.values()) {
+            if (!task.deleted) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return whether a task that is not deleted has the given name
+     */
+    public synchronized boolean hasTask(String name) {
+        for (RemoteTask task : mTasks.values()) {
+            if (!task.deleted && name.equals(task.name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                Thread worker = new Thread(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                }, TAG + "-conn");
+                worker.setDaemon(true);
+                worker.start();
+            } catch (IOException e) {
+                if (mRunning) {
+                    Log.e(TAG, "accept failed: " + e.toString());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        DefaultHttpServerConnection conn = new DefaultHttpServerConnection();
+        HttpParams params = new BasicHttpParams();
+        try {
+            conn.bind(socket, params);
+            while (mRunning && conn.isOpen()) {
+                HttpRequest request = conn.receiveRequestHeader();
+                byte[] body = null;
+                if (request instanceof HttpEntityEnclosingRequest) {
+                    conn.receiveRequestEntity((HttpEntityEnclosingRequest) request);
+                    HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                    body = entity != null ? EntityUtils.toByteArray(entity) : new byte[0];
+                }
+
+                HttpResponse response = handle(request, body);
+                conn.sendResponseHeader(response);
+                conn.sendResponseEntity(response);
+                conn.flush();
+            }
+        } catch (IOException e) {
+            // the client closed the connection, nothing to do
+        } catch (HttpException e) {
+            Log.w(TAG, e.toString());
+        } finally {
+            try {
+                conn.shutdown();
+            } catch (IOException e) {
+                Log.w(TAG, e.toString());
+            }
+        }
+    }
+
+    private synchronized HttpResponse handle(HttpRequest request, byte[] body) {
+        mRequestCount++;
+        if (body != null) {
+            mBytesIn += body.length;
+        }
+
+        String content;
+        int status = HttpStatus.SC_OK;
+        try {
+            if (body == null) {
+                content = getSetupPage();
+            } else {
+                content = handleActionList(body).toString();
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            status = HttpStatus.SC_BAD_REQUEST;
+            content = "";
+        }
+
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+        response.addHeader("Set-Cookie", AUTH_COOKIE);
+        try {
+            byte[] out = content.getBytes("UTF-8");
+            mBytesOut += out.length;
+            response.setEntity(new ByteArrayEntity(out));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return response;
+    }
+
+    private String getSetupPage() throws JSONException {
+        JSONArray lists = new JSONArray();
+        for (RemoteList list : mLists.values()) {
+            JSONObject js = new JSONObject();
+            js.put(GTaskStringUtils.GTASK_JSON_ID, list.gid);
+            js.put(GTaskStringUtils.GTASK_JSON_NAME, list.name);
+            js.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, list.lastModified);
+            lists.put(js);
+        }
+        JSONObject t = new JSONObject();
+        t.put(GTaskStringUtils.GTASK_JSON_LISTS, lists);
+        JSONObject setup = new JSONObject();
+        setup.put("v", CLIENT_VERSION);
+        setup.put("t", t);
+        return "<html><head><script type=\"text/javascript\">function(){_setup("
+                + setup.toString() + ")}</script></head></html>";
+    }
+
+    private JSONObject handleActionList(byte[] body) throws JSONException {
+        String request = null;
+        List<NameValuePair> pairs;
+        try {
+            ByteArrayEntity entity = new ByteArrayEntity(body);
+            entity.setContentType("application/x-www-form-urlencoded;charset=utf-8");
+            pairs = URLEncodedUtils.parse(entity);
+        } catch (IOException e) {
+            throw new JSONException("unable to parse request body");
+        }
+        for (NameValuePair pair : pairs) {
+            if ("r".equals(pair.getName())) {
+                request = pair.getValue();
+            }
+        }
+        if (request == null) {
+            throw new JSONException("missing request");
+        }
+
+        JSONArray actions = new JSONObject(request).getJSONArray(
+                GTaskStringUtils.GTASK_JSON_ACTION_LIST);
+        JSONObject response = new JSONObject();
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < actions.length(); i++) {
+            JSONObject action = actions.getJSONObject(i);
+            String type = action.getString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE);
+            JSONObject result = new JSONObject();
+            result.put(GTaskStringUtils.GTASK_JSON_ACTION_ID,
+                    action.optInt(GTaskStringUtils.GTASK_JSON_ACTION_ID));
+            if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE.equals(type)) {
+                result.put(GTaskStringUtils.GTASK_JSON_NEW_ID, create(action));
+            } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_UPDATE.equals(type)) {
+                update(action);
+            } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE.equals(type)) {
+                move(action);
+            } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL.equals(type)) {
+                response.put(GTaskStringUtils.GTASK_JSON_TASKS, getAll(action));
+            } else {
+                Log.w(TAG, "unsupported action type " + type);
+            }
+            results.put(result);
+        }
+        response.put(GTaskStringUtils.GTASK_JSON_RESULTS, results);
+        return response;
+    }
+
+    private String create(JSONObject action) throws JSONException {
+        JSONObject entity = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+        String gid = "standin-" + (mNextId++);
+        if (GTaskStringUtils.GTASK_JSON_TYPE_GROUP.equals(entity
+                .getString(GTaskStringUtils.GTASK_JSON_ENTITY_TYPE))) {
+            RemoteList list = new RemoteList();
+            list.gid = gid;
+            list.name = entity.getString(GTaskStringUtils.GTASK_JSON_NAME);
+            list.lastModified = ++mClock;
+            mLists.put(gid, list);
+        } else {
+            RemoteList parent = mLists.get(action.getString(GTaskStringUtils.GTASK_JSON_LIST_ID));
+            if (parent == null) {
+                throw new JSONException("unknown list for new task");
+            }
+            RemoteTask task = new RemoteTask();
+            task.gid = gid;
+            task.name = entity.optString(GTaskStringUtils.GTASK_JSON_NAME, "");
+            task.notes = entity.has(GTaskStringUtils.GTASK_JSON_NOTES) ? entity
+                    .getString(GTaskStringUtils.GTASK_JSON_NOTES) : null;
+            task.lastModified = ++mClock;
+            task.parent = parent;
+            int index = action.optInt(GTaskStringUtils.GTASK_JSON_INDEX, parent.tasks.size());
+            parent.tasks.add(Math.min(Math.max(index, 0), parent.tasks.size()), task);
+            mTasks.put(gid, task);
+        }
+        return gid;
+    }
+
+    private void update(JSONObject action) throws JSONException {
+        String gid = action.getString(GTaskStringUtils.GTASK_JSON_ID);
+        JSONObject entity = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+        RemoteTask task = mTasks.get(gid);
+        if (task != null) {
+            if (entity.has(GTaskStringUtils.GTASK_JSON_NAME)) {
+                task.name = entity.getString(GTaskStringUtils.GTASK_JSON_NAME);
+            }
+            if (entity.has(GTaskStringUtils.GTASK_JSON_NOTES)) {
+                task.notes = entity.getString(GTaskStringUtils.GTASK_JSON_NOTES);
+            }
+            if (entity.has(GTaskStringUtils.GTASK_JSON_DELETED)) {
+                task.deleted = entity.getBoolean(GTaskStringUtils.GTASK_JSON_DELETED);
+            }
+            task.lastModified = ++mClock;
+            return;
+        }
+
+        RemoteList list = mLists.get(gid);
+        if (list != null) {
+            if (entity.has(GTaskStringUtils.GTASK_JSON_NAME)) {
+                list.name = entity.getString(GTaskStringUtils.GTASK_JSON_NAME);
+            }
+            if (entity.optBoolean(GTaskStringUtils.GTASK_JSON_DELETED, false)) {
+                mLists.remove(gid);
+            }
+            list.lastModified = ++mClock;
+        } else {
+            Log.w(TAG, "update of unknown node " + gid);
+        }
+    }
+
+    private void move(JSONObject action) throws JSONException {
+        RemoteTask task = mTasks.get(action.getString(GTaskStringUtils.GTASK_JSON_ID));
+        if (task == null || !action.has(GTaskStringUtils.GTASK_JSON_DEST_LIST)) {
+            return;
+        }
+        RemoteList dest = mLists.get(action.getString(GTaskStringUtils.GTASK_JSON_DEST_LIST));
+        if (dest != null) {
+            task.parent.tasks.remove(task);
+            dest.tasks.add(task);
+            task.parent = dest;
+            task.lastModified = ++mClock;
+        }
+    }
+
+    private JSONArray getAll(JSONObject action) throws JSONException {
+        JSONArray tasks = new JSONArray();
+        RemoteList list = mLists.get(action.getString(GTaskStringUtils.GTASK_JSON_LIST_ID));
+        if (list == null) {
+            return tasks;
+        }
+        for (RemoteTask task : list.tasks) {
+            if (task.deleted) {
+                continue;
+            }
+            JSONObject js = new JSONObject();
+            js.put(GTaskStringUtils.GTASK_JSON_ID, task.gid);
+            js.put(GTaskStringUtils.GTASK_JSON_NAME, task.name);
+            if (task.notes != null) {
+                js.put(GTaskStringUtils.GTASK_JSON_NOTES, task.notes);
+            }
+            js.put(GTaskStringUtils.GTASK_JSON_DELETED, false);
+            js.put(GTaskStringUtils.GTASK_JSON_COMPLETED, task.completed);
+            js.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, task.lastModified);
+            tasks.put(js);
+        }
+        return tasks;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.tool.DataUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drives {@link GTaskManager#sync} end to end against a {@link GTaskStandInServer} and reports
+ * round trips, bytes on the wire, wall time and peak heap for a full sync, a no-op re-sync and
+ * an incremental sync after touching about 1% of the notes.
+ *
+ * NOTE: the local notes database is wiped and reseeded for every size, only run it on a
+ * throwaway device or emulator. It is part of the test project for that reason, and run by
+ * {@link GTaskSyncBenchmarkTest}.
+ */
+public class GTaskSyncBenchmark {
+    private static final String TAG = GTaskSyncBenchmark.class.getSimpleName();
+
+    public static final int[] DEFAULT_SIZES = new int[] {
+            1000, 10000, 100000
+    };
+
+    public static final String SCENARIO_FULL = "full";
+
+    public static final String SCENARIO_NOOP = "no-op";
+
+    public static final String SCENARIO_INCREMENTAL = "incremental";
+
+    private static final int SEED_BATCH_SIZE = 250;
+
+    private static final int INCREMENTAL_STRIDE = 100;
+
+    private static final long HEAP_SAMPLE_INTERVAL = 10;
+
+    private final Context mContext;
+
+    private final ContentResolver mContentResolver;
+
+    public static class Result {
+        public final String scenario;
+
+        public final int noteCount;
+
+        public final int syncState;
+
+        public final int roundTrips;
+
+        public final long bytesSent;
+
+        public final long bytesReceived;
+
+        public final long wallTimeMs;
+
+        public final long peakHeapBytes;
+
+        Result(String scenario, int noteCount, int syncState, int roundTrips, long bytesSent,
+                long bytesReceived, long wallTimeMs, long peakHeapBytes) {
+            this.scenario = scenario;
+            this.noteCount = noteCount;
+            this.syncState = syncState;
+            this.roundTrips = roundTrips;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.wallTimeMs = wallTimeMs;
+            this.peakHeapBytes = peakHeapBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-11s notes=%-6d state=%d roundTrips=%-5d sent=%-9d "
+                    + "received=%-9d wall=%dms peakHeap=%dKB", scenario, noteCount, syncState,
+                    roundTrips, bytesSent, bytesReceived, wallTimeMs, peakHeapBytes / 1024);
+        }
+    }
+
+    public GTaskSyncBenchmark(Context context) {
+        mContext = context.getApplicationContext();
+        mContentResolver = mContext.getContentResolver();
+    }
+
+    /**
+     * Run all three scenarios for every size, must not be called on the main thread
+     */
+    public List<Result> run(int[] sizes) throws IOException {
+        List<Result> results = new ArrayList<Result>();
+        for (int size : sizes) {
+            GTaskStandInServer server = new GTaskStandInServer();
+            server.start();
+            GTaskClient.getInstance().useStandInEndpoint(server.getBaseUrl());
+            try {
+                resetLocalNotes();
+                seedNotes(size);
+
+                results.add(measure(SCENARIO_FULL, size, server));
+                results.add(measure(SCENARIO_NOOP, size, server));
+                touchNotes();
+                results.add(measure(SCENARIO_INCREMENTAL, size, server));
+            } finally {
+                GTaskClient.getInstance().useStandInEndpoint(null);
+                server.stop();
+            }
+        }
+
+        for (Result result : results) {
+            Log.i(TAG, result.toString());
+        }
+        return results;
+    }
+
+    private Result measure(String scenario, int size, GTaskStandInServer server) {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        HeapSampler sampler = new HeapSampler(runtime);
+        sampler.start();
+        server.resetCounters();
+
+        long start = System.currentTimeMillis();
+        int state = GTaskManager.getInstance().sync(mContext, null);
+        long wallTime = System.currentTimeMillis() - start;
+
+        sampler.finish();
+        if (state != GTaskManager.STATE_SUCCESS) {
+            Log.w(TAG, scenario + " sync of " + size + " notes finished with state " + state);
+        }
+        return new Result(scenario, size, state, server.getRequestCount(), server.getBytesIn(),
+                server.getBytesOut(), wallTime, sampler.getPeak());
+    }
+
+    private void resetLocalNotes() {
+        mContentResolver.delete(Notes.CONTENT_NOTE_URI, NoteColumns.TYPE + "<>?",
+                new String[] {
+                    String.valueOf(Notes.TYPE_SYSTEM)
+                });
+
+        // the system folders stay, but they must be created again on the fresh server
+        DataUtils.resetSyncInfo(mContentResolver);
+    }
+
+    private void seedNotes(int size) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < size; i++) {
+            String content = "benchmark note " + i;
+            operations.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                    .withValue(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER)
+                    .withValue(NoteColumns.TYPE, Notes.TYPE_NOTE)
+                    .withValue(NoteColumns.CREATED_DATE, now)
+                    .withValue(NoteColumns.MODIFIED_DATE, now)
+                    .withValue(NoteColumns.LOCAL_MODIFIED, 1)
+                    .build());
+            operations.add(ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                    .withValueBackReference(DataColumns.NOTE_ID, operations.size() - 1)
+                    .withValue(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE)
+                    .withValue(DataColumns.CONTENT, content)
+                    .build());
+            if (operations.size() >= SEED_BATCH_SIZE * 2) {
+                applyBatch(operations);
+            }
+        }
+        applyBatch(operations);
+    }
+
+    private void touchNotes() {
+        String stride = String.valueOf(INCREMENTAL_STRIDE);
+        ContentValues data = new ContentValues();
+        data.put(DataColumns.CONTENT, "benchmark note edited");
+        mContentResolver.update(Notes.CONTENT_DATA_URI, data, "(" + DataColumns.NOTE_ID
+                + " % ?)=0 AND " + DataColumns.MIME_TYPE + "=?", new String[] {
+                stride, TextNote.CONTENT_ITEM_TYPE
+        });
+
+        ContentValues note = new ContentValues();
+        note.put(NoteColumns.LOCAL_MODIFIED, 1);
+        note.put(NoteColumns.MODIFIED_DATE, System.currentTimeMillis());
+        mContentResolver.update(Notes.CONTENT_NOTE_URI, note, "(" + NoteColumns.ID
+                + " % " + stride + ")=0 AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE,
+                new String[0]);
+    }
+
+    private void applyBatch(ArrayList<ContentProviderOperation> operations) {
+        if (operations.isEmpty()) {
+            return;
+        }
+        try {
+            mContentResolver.applyBatch(Notes.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+        operations.clear();
+    }
+
+    private static class HeapSampler extends Thread {
+        private final Runtime mRuntime;
+
+        private volatile boolean mStopped;
+
+        private volatile long mPeak;
+
+        HeapSampler(Runtime runtime) {
+            super(TAG + "-heap");
+            mRuntime = runtime;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!mStopped) {
+                sample();
+                try {
+                    Thread.sleep(HEAP_SAMPLE_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void sample() {
+            long used = mRuntime.totalMemory() - mRuntime.freeMemory();
+            if (used > mPeak) {
+                mPeak = used;
+            }
+        }
+
+        void finish() {
+            mStopped = true;
+            sample();
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        long getPeak() {
+            return mPeak;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.os.Bundle;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+
+import java.util.List;
+
+/**
+ * Runs {@link GTaskSyncBenchmark} against the stand-in server. The sizes default to the
+ * smallest one, pass e.g. "-e sizes 1000,10000,100000" to the runner for the full set.
+ * Wipes the notes of the app under test.
+ */
+public class GTaskSyncBenchmarkTest extends InstrumentationTestCase {
+    public void testSync() throws Exception {
+        List<GTaskSyncBenchmark.Result> results = new GTaskSyncBenchmark(
+                getInstrumentation().getTargetContext())
+                .run(getSizes());
+        for (GTaskSyncBenchmark.Result result : results) {
+            assertEquals(result.toString(), GTaskManager.STATE_SUCCESS, result.syncState);
+        }
+    }
+
+    private int[] getSizes() {
+        Bundle arguments = getInstrumentation() instanceof InstrumentationTestRunner
+                ? ((InstrumentationTestRunner) getInstrumentation()).getArguments() : null;
+        String sizes = arguments != null ? arguments.getString("sizes") : null;
+        if (sizes == null) {
+            return new int[] {
+                GTaskSyncBenchmark.DEFAULT_SIZES[0]
+            };
+        }
+        String[] parts = sizes.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+}
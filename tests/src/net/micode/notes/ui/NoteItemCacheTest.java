@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+
+import net.micode.notes.data.Notes;
+
+/**
+ * Checks that scrolling over cached rows of the notes list allocates nothing, and that a
+ * changed row is made anew. Needs no notes of the app under test.
+ */
+public class NoteItemCacheTest extends InstrumentationTestCase {
+    // rows of a list scrolled back and forth, ids 1 to ROWS are expected to share no slot
+    private static final int ROWS = 128;
+
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testCachedRowsAllocateNothing() {
+        NoteItemCache cache = new NoteItemCache();
+        MatrixCursor cursor = newCursor(1, 1, "note ");
+        try {
+            // the first pass makes the items
+            lookUpAll(cache, cursor);
+
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+            lookUpAll(cache, cursor);
+            int allocated = Debug.getThreadAllocCount();
+            Debug.stopAllocCounting();
+            assertEquals("allocations while scrolling over cached rows", 0, allocated);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testChangedRowIsMadeAnew() {
+        NoteItemCache cache = new NoteItemCache();
+        MatrixCursor cursor = newCursor(1, 1, "note ");
+        MatrixCursor changed = newCursor(2, 1, "note ");
+        try {
+            cursor.moveToFirst();
+            NoteItemData item = cache.get(mContext, cursor);
+            assertSame(item, cache.get(mContext, cursor));
+
+            changed.moveToFirst();
+            NoteItemData newItem = cache.get(mContext, changed);
+            assertNotSame(item, newItem);
+            assertSame(newItem, cache.get(mContext, changed));
+        } finally {
+            cursor.close();
+            changed.close();
+        }
+    }
+
+    public void testChangedContentIsMadeAnew() {
+        NoteItemCache cache = new NoteItemCache();
+        MatrixCursor cursor = newCursor(1, 1, "note ");
+        MatrixCursor changed = newCursor(1, 2, "edited note ");
+        try {
+            cursor.moveToFirst();
+            NoteItemData item = cache.get(mContext, cursor);
+            changed.moveToFirst();
+            NoteItemData newItem = cache.get(mContext, changed);
+            assertNotSame(item, newItem);
+            assertEquals("edited note 1", newItem.getTitle(mContext));
+        } finally {
+            cursor.close();
+            changed.close();
+        }
+    }
+
+    public void testClear() {
+        NoteItemCache cache = new NoteItemCache();
+        MatrixCursor cursor = newCursor(1, 1, "note ");
+        try {
+            cursor.moveToFirst();
+            NoteItemData item = cache.get(mContext, cursor);
+            cache.clear();
+            assertNotSame(item, cache.get(mContext, cursor));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void lookUpAll(NoteItemCache cache, MatrixCursor cursor) {
+        for (int i = 0; i < ROWS; i++) {
+            cursor.moveToPosition(i);
+            cache.get(mContext, cursor);
+        }
+    }
+
+    private MatrixCursor newCursor(long version, long contentVersion, String snippet) {
+        MatrixCursor cursor = new MatrixCursor(NoteItemData.PROJECTION, ROWS);
+        long now = System.currentTimeMillis();
+        for (long id = 1; id <= ROWS; id++) {
+            cursor.addRow(new Object[] {
+                    id, 0L, 0, now, 0, now, 0, (long) Notes.ID_ROOT_FOLDER, snippet + id,
+                    Notes.TYPE_NOTE, 0, Notes.TYPE_WIDGET_INVALIDE, version, contentVersion
+            });
+        }
+        return cursor;
+    }
+}
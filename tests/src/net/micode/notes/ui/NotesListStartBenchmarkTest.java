@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.app.Activity;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.OperationApplicationException;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.util.Log;
+import android.widget.ListView;
+
+import net.micode.notes.R;
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Measures the time from starting the notes list to the first rows shown, once without the
+ * snapshot file of the list and once restored from it. The process of the app is already
+ * running, so its start is not part of the times; "adb shell am start -W" measures that.
+ * Adds its own notes to the root folder and deletes them afterwards, pass e.g.
+ * "-e notes 1000" to the runner for another number of notes.
+ */
+public class NotesListStartBenchmarkTest extends InstrumentationTestCase {
+    private static final String TAG = NotesListStartBenchmarkTest.class.getSimpleName();
+
+    private static final String SNIPPET_PREFIX = "start benchmark note ";
+
+    private static final int DEFAULT_NOTES = 200;
+
+    private static final int SEED_BATCH_SIZE = 250;
+
+    private static final int RUNS = 5;
+
+    private static final long TIMEOUT = 10000;
+
+    private static final long POLL_INTERVAL = 5;
+
+    private Context mContext;
+
+    private ContentResolver mContentResolver;
+
+    private File mSnapshotFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mContentResolver = mContext.getContentResolver();
+        mSnapshotFile = new File(mContext.getCacheDir(), NotesListActivity.LIST_SNAPSHOT_FILE);
+        deleteNotes();
+        seedNotes(getNotesCount());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteNotes();
+        // the saved first screen shows the deleted notes
+        mSnapshotFile.delete();
+        super.tearDown();
+    }
+
+    public void testStartWithoutSnapshot() throws Exception {
+        long[] times = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            mSnapshotFile.delete();
+            times[i] = measureStart();
+        }
+        report("without snapshot", times);
+    }
+
+    public void testStartFromSnapshot() throws Exception {
+        mSnapshotFile.delete();
+        measureStart();
+        waitForSnapshotFile();
+
+        long[] times = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            assertTrue("snapshot file missing", mSnapshotFile.exists());
+            times[i] = measureStart();
+        }
+        report("from snapshot", times);
+    }
+
+    /**
+     * @return milliseconds from starting the activity to its list showing rows
+     */
+    private long measureStart() throws InterruptedException {
+        Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.setClass(mContext, NotesListActivity.class);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
+
+        long start = SystemClock.uptimeMillis();
+        Activity activity = getInstrumentation().startActivitySync(intent);
+        try {
+            final ListView list = (ListView) activity.findViewById(R.id.notes_list);
+            final boolean[] shown = new boolean[1];
+            Runnable check = new Runnable() {
+                public void run() {
+                    // the footer is always there, rows come before it
+                    shown[0] = list.getCount() > list.getFooterViewsCount()
+                            && list.getChildCount() > 0;
+                }
+            };
+            while (true) {
+                getInstrumentation().runOnMainSync(check);
+                long time = SystemClock.uptimeMillis() - start;
+                if (shown[0]) {
+                    return time;
+                }
+                assertTrue("no rows shown after " + time + "ms", time < TIMEOUT);
+                Thread.sleep(POLL_INTERVAL);
+            }
+        } finally {
+            activity.finish();
+            getInstrumentation().waitForIdleSync();
+        }
+    }
+
+    private void waitForSnapshotFile() throws InterruptedException {
+        long start = SystemClock.uptimeMillis();
+        while (!mSnapshotFile.exists()) {
+            assertTrue("list snapshot not written",
+                    SystemClock.uptimeMillis() - start < TIMEOUT);
+            Thread.sleep(POLL_INTERVAL);
+        }
+    }
+
+    private void report(String scenario, long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        Log.i(TAG, String.format("%-16s notes=%-6d median=%dms min=%dms max=%dms runs=%s",
+                scenario, getNotesCount(), sorted[sorted.length / 2], sorted[0],
+                sorted[sorted.length - 1], Arrays.toString(times)));
+    }
+
+    private int getNotesCount() {
+        Bundle arguments = getInstrumentation() instanceof InstrumentationTestRunner
+                ? ((InstrumentationTestRunner) getInstrumentation()).getArguments() : null;
+        String notes = arguments != null ? arguments.getString("notes") : null;
+        return notes != null ? Integer.parseInt(notes.trim()) : DEFAULT_NOTES;
+    }
+
+    private void seedNotes(int count) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            operations.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                    .withValue(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER)
+                    .withValue(NoteColumns.TYPE, Notes.TYPE_NOTE)
+                    .withValue(NoteColumns.CREATED_DATE, now - i)
+                    .withValue(NoteColumns.MODIFIED_DATE, now - i)
+                    .build());
+            operations.add(ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                    .withValueBackReference(DataColumns.NOTE_ID, operations.size() - 1)
+                    .withValue(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE)
+                    .withValue(DataColumns.CONTENT, SNIPPET_PREFIX + i)
+                    .build());
+            if (operations.size() >= SEED_BATCH_SIZE * 2) {
+                applyBatch(operations);
+            }
+        }
+        applyBatch(operations);
+    }
+
+    private void deleteNotes() {
+        mContentResolver.delete(Notes.CONTENT_NOTE_URI, NoteColumns.TYPE + "=? AND "
+                + NoteColumns.SNIPPET + " LIKE ?", new String[] {
+                String.valueOf(Notes.TYPE_NOTE), SNIPPET_PREFIX + "%"
+        });
+    }
+
+    private void applyBatch(ArrayList<ContentProviderOperation> operations) {
+        if (operations.isEmpty()) {
+            return;
+        }
+        try {
+            mContentResolver.applyBatch(Notes.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+        operations.clear();
+    }
+}